@@ -0,0 +1,106 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.inmobi.rpc.HealthIndex;
+import com.inmobi.rpc.LeastLoaded;
+import com.inmobi.rpc.PowerOfTwoChoices;
+import com.inmobi.rpc.RoundRobin;
+import com.inmobi.rpc.RpcService;
+import com.inmobi.rpc.WeightedRoundRobin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per call overhead of the flat balancers. Backends answer immediately, so the numbers
+ * are the cost of select() and the in-flight bookkeeping around it. Thread count is
+ * varied from the command line (-t), see {@link ThreadSweep}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalancerBenchmark {
+
+    @Param({"2", "10", "900", "10000"})
+    public int backendCount;
+
+    @Param({"1.0", "0.5", "0.1"})
+    public double healthyFraction;
+
+    private final Object request = new Object();
+
+    private LeastLoaded<Object, Object> leastLoaded;
+
+    private PowerOfTwoChoices<Object, Object> powerOfTwoChoices;
+
+    private RoundRobin<Object, Object> roundRobin;
+
+    private HealthIndex<Object, Object> healthIndex;
+
+    private RoundRobin<Object, Object> indexedRoundRobin;
+
+    private WeightedRoundRobin<Object, Object> weightedRoundRobin;
+
+    @Setup
+    public void setUp() {
+        ImmutableList<RpcService<Object, Object>> backends =
+                StubBackend.create(backendCount, healthyFraction);
+
+        ImmutableList.Builder<Integer> weights = ImmutableList.builder();
+        for (int i = 0; i < backendCount; i++) {
+            weights.add(1 + (i % 3));
+        }
+
+        leastLoaded = new LeastLoaded<>(backends, 0);
+        powerOfTwoChoices = new PowerOfTwoChoices<>(backends);
+        roundRobin = new RoundRobin<>(backends, 0);
+        healthIndex = new HealthIndex<>(backends, 1, TimeUnit.SECONDS);
+        indexedRoundRobin = new RoundRobin<>(healthIndex, 1);
+        weightedRoundRobin = new WeightedRoundRobin<>(backends, weights.build());
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> leastLoaded() {
+        return leastLoaded.apply(request);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> powerOfTwoChoices() {
+        return powerOfTwoChoices.apply(request);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> roundRobin() {
+        return roundRobin.apply(request);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> indexedRoundRobin() {
+        return indexedRoundRobin.apply(request);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> weightedRoundRobin() {
+        return weightedRoundRobin.apply(request);
+    }
+
+    @TearDown
+    public void tearDown() {
+        healthIndex.close();
+    }
+}
@@ -0,0 +1,166 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.inmobi.rpc.LeastLoaded;
+import com.inmobi.rpc.RpcService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-flight bookkeeping of LeastLoaded against the previous implementation, which kept
+ * an unpadded AtomicInteger per backend and registered a new method reference as the
+ * completion listener of every request. Run with -prof gc to compare allocation, and at
+ * several thread counts ({@link ThreadSweep}) to see the effect of false sharing.
+ *
+ * With pending completion every backend returns a new future which the benchmark
+ * completes right after the call, so the listener path is taken. That future is counted
+ * in the allocation of both variants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InFlightBenchmark {
+
+    @Param({"10"})
+    public int backendCount;
+
+    @Param({"immediate", "pending"})
+    public String completion;
+
+    private final Object request = new Object();
+
+    private final Object response = new Object();
+
+    private LeastLoaded<Object, Object> current;
+
+    private UnpaddedLeastLoaded previous;
+
+    /**
+     * Backend answering with a new, not yet completed future.
+     */
+    private static class PendingBackend implements RpcService<Object, Object> {
+
+        @Override
+        public ListenableFuture<Object> apply(Object o) {
+            return SettableFuture.create();
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+    }
+
+    /**
+     * LeastLoaded as it was before the counters were padded and the listener reused.
+     */
+    private static class UnpaddedLeastLoaded {
+
+        private static class RpcWrapper {
+
+            final RpcService<Object, Object> service;
+
+            final AtomicInteger outboundRequests = new AtomicInteger(0);
+
+            RpcWrapper(RpcService<Object, Object> service) {
+                this.service = service;
+            }
+
+            ListenableFuture<Object> call(Object req) {
+                outboundRequests.incrementAndGet();
+                ListenableFuture<Object> serverFuture = service.apply(req);
+                serverFuture.addListener(outboundRequests::decrementAndGet, MoreExecutors.directExecutor());
+                return serverFuture;
+            }
+        }
+
+        private final AtomicInteger loopCounter = new AtomicInteger();
+
+        private final ImmutableList<RpcWrapper> backends;
+
+        UnpaddedLeastLoaded(List<RpcService<Object, Object>> backends) {
+            ImmutableList.Builder<RpcWrapper> builder = ImmutableList.builder();
+            for (RpcService<Object, Object> backend : backends) {
+                builder.add(new RpcWrapper(backend));
+            }
+            this.backends = builder.build();
+        }
+
+        ListenableFuture<Object> apply(Object req) {
+            int cost = Integer.MAX_VALUE;
+            RpcWrapper ret = null;
+            int size = backends.size();
+            int start = loopCounter.get();
+            int nextLoopCounter = start;
+            for (int i = 0; i < size; i++) {
+                int j = (start + i) % size;
+                RpcWrapper wrapper = backends.get(j);
+                if (wrapper.service.isHealthy()) {
+                    int rpcCost = wrapper.outboundRequests.get();
+                    if (rpcCost < cost) {
+                        cost = rpcCost;
+                        ret = wrapper;
+                        nextLoopCounter = j + 1;
+                    }
+                }
+            }
+            loopCounter.set(nextLoopCounter);
+            return ret == null
+                    ? Futures.immediateFailedFuture(new IllegalStateException("No healthy servers"))
+                    : ret.call(req);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        ImmutableList<RpcService<Object, Object>> backends;
+        if (completion.equals("pending")) {
+            ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+            for (int i = 0; i < backendCount; i++) {
+                builder.add(new PendingBackend());
+            }
+            backends = builder.build();
+        } else {
+            backends = StubBackend.create(backendCount, 1.0);
+        }
+        current = new LeastLoaded<>(backends, 0);
+        previous = new UnpaddedLeastLoaded(backends);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> current() {
+        return complete(current.apply(request));
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> previous() {
+        return complete(previous.apply(request));
+    }
+
+    private ListenableFuture<Object> complete(ListenableFuture<Object> future) {
+        if (future instanceof SettableFuture) {
+            ((SettableFuture<Object>) future).set(response);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,86 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.inmobi.rpc.Instrumented;
+import com.inmobi.rpc.RpcService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Instrumented over the bare backend. Run with -prof gc to see the allocation per
+ * call: none for futures which are already done, one listener for pending ones.
+ *
+ * With pending completion the backend returns a new future which the benchmark completes
+ * right after the call, so the listener path is taken. That future is counted in the
+ * allocation of both variants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentedBenchmark {
+
+    @Param({"immediate", "pending"})
+    public String completion;
+
+    private final Object request = new Object();
+
+    private final Object response = new Object();
+
+    private RpcService<Object, Object> bare;
+
+    private Instrumented<Object, Object> instrumented;
+
+    /**
+     * Backend answering with a new, not yet completed future.
+     */
+    private static class PendingBackend implements RpcService<Object, Object> {
+
+        @Override
+        public ListenableFuture<Object> apply(Object o) {
+            return SettableFuture.create();
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        bare = completion.equals("pending") ? new PendingBackend() : new StubBackend(true);
+        instrumented = new Instrumented<>(bare);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> bare() {
+        return complete(bare.apply(request));
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> instrumented() {
+        return complete(instrumented.apply(request));
+    }
+
+    private ListenableFuture<Object> complete(ListenableFuture<Object> future) {
+        if (future instanceof SettableFuture) {
+            ((SettableFuture<Object>) future).set(response);
+        }
+        return future;
+    }
+}
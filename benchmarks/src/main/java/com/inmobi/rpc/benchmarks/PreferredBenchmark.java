@@ -0,0 +1,76 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.inmobi.rpc.LeastLoaded;
+import com.inmobi.rpc.Preferred;
+import com.inmobi.rpc.RpcService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The primary/secondary tree from the README:
+ * Preferred(LeastLoaded(10 primaries), LeastLoaded(900 secondaries)). With a healthy
+ * primary fraction of zero every request falls through to the secondary tier, which is
+ * the worst case for the recursive health checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreferredBenchmark {
+
+    @Param({"10"})
+    public int primaryCount;
+
+    @Param({"900"})
+    public int secondaryCount;
+
+    @Param({"1.0", "0.5", "0.0"})
+    public double primaryHealthyFraction;
+
+    @Param({"1.0", "0.5"})
+    public double secondaryHealthyFraction;
+
+    private final Object request = new Object();
+
+    private Preferred<Object, Object> preferred;
+
+    @Setup
+    public void setUp() {
+        ImmutableList<RpcService<Object, Object>> primaries;
+        if (primaryHealthyFraction == 0.0) {
+            ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+            for (int i = 0; i < primaryCount; i++) {
+                builder.add(new StubBackend(false));
+            }
+            primaries = builder.build();
+        } else {
+            primaries = StubBackend.create(primaryCount, primaryHealthyFraction);
+        }
+        ImmutableList<RpcService<Object, Object>> secondaries =
+                StubBackend.create(secondaryCount, secondaryHealthyFraction);
+
+        preferred = new Preferred<>(ImmutableList.<RpcService<Object, Object>>of(
+                new LeastLoaded<>(primaries, 0),
+                new LeastLoaded<>(secondaries, 0)));
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> apply() {
+        return preferred.apply(request);
+    }
+}
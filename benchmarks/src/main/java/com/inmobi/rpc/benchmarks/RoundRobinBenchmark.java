@@ -0,0 +1,165 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.inmobi.rpc.RoundRobin;
+import com.inmobi.rpc.RpcService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and fairness of RoundRobin under many concurrent callers, 64 threads unless
+ * overridden with -t. Compares a single ticket counter, striped counters, and the previous
+ * implementation which read and then wrote one shared rotation.
+ *
+ * Fairness is printed after each iteration as the spread of requests across backends,
+ * (max - min) / mean, so 0 is perfectly even.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class RoundRobinBenchmark {
+
+    @Param({"10"})
+    public int backendCount;
+
+    @Param({"1", "64"})
+    public int stripes;
+
+    private final Object request = new Object();
+
+    private RoundRobin<Object, Object> roundRobin;
+
+    private GetSetRoundRobin previous;
+
+    private AtomicLongArray selections;
+
+    /**
+     * Selections seen by one thread, merged into the totals at the end of an iteration so
+     * that counting does not add contention of its own.
+     */
+    @State(Scope.Thread)
+    public static class ThreadCounts {
+
+        long[] counts;
+
+        @Setup(Level.Iteration)
+        public void setUp(RoundRobinBenchmark benchmark) {
+            counts = new long[benchmark.backendCount];
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown(RoundRobinBenchmark benchmark) {
+            for (int i = 0; i < counts.length; i++) {
+                benchmark.selections.addAndGet(i, counts[i]);
+            }
+        }
+    }
+
+    /**
+     * RoundRobin as it was before tickets, the rotation is read and then written back.
+     */
+    private static class GetSetRoundRobin {
+
+        private final List<RpcService<Object, Object>> backends;
+
+        private final AtomicInteger rotation = new AtomicInteger();
+
+        GetSetRoundRobin(List<RpcService<Object, Object>> backends) {
+            this.backends = backends;
+        }
+
+        ListenableFuture<Object> apply(Object req) {
+            int size = backends.size();
+            int start = rotation.get();
+            for (int i = 0; i < size; i++) {
+                int pos = (start + i) % size;
+                RpcService<Object, Object> host = backends.get(pos);
+                if (host.isHealthy()) {
+                    rotation.set((pos + 1) % size);
+                    return host.apply(req);
+                }
+            }
+            return Futures.immediateFailedFuture(new IllegalStateException("No healthy hosts"));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ImmutableList.Builder<RpcService<Object, Object>> backends = ImmutableList.builder();
+        for (int i = 0; i < backendCount; i++) {
+            ListenableFuture<Object> response = Futures.immediateFuture(i);
+            backends.add(new RpcService<Object, Object>() {
+                @Override
+                public ListenableFuture<Object> apply(Object o) {
+                    return response;
+                }
+
+                @Override
+                public boolean isHealthy() {
+                    return true;
+                }
+            });
+        }
+        roundRobin = new RoundRobin<>(backends.build(), 0, stripes);
+        previous = new GetSetRoundRobin(backends.build());
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounts() {
+        selections = new AtomicLongArray(backendCount);
+    }
+
+    @TearDown(Level.Iteration)
+    public void printFairness() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long total = 0;
+        for (int i = 0; i < selections.length(); i++) {
+            long count = selections.get(i);
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+            total += count;
+        }
+        if (total > 0) {
+            System.out.printf(" (spread %.4f)", (max - min) / ((double) total / selections.length()));
+        }
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> current(ThreadCounts counts) {
+        return count(roundRobin.apply(request), counts);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> previous(ThreadCounts counts) {
+        return count(previous.apply(request), counts);
+    }
+
+    private static ListenableFuture<Object> count(ListenableFuture<Object> future, ThreadCounts counts) {
+        counts.counts[(Integer) Futures.getUnchecked(future)]++;
+        return future;
+    }
+}
@@ -0,0 +1,48 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.inmobi.rpc.RpcService;
+
+import java.util.Random;
+
+/**
+ * Backend which answers every request with the same already completed future, so
+ * that a benchmark measures only the balancing overhead and not the backend itself.
+ */
+public class StubBackend implements RpcService<Object, Object> {
+
+    private static final ListenableFuture<Object> RESPONSE = Futures.immediateFuture(new Object());
+
+    private final boolean healthy;
+
+    public StubBackend(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public ListenableFuture<Object> apply(Object o) {
+        return RESPONSE;
+    }
+
+    /**
+     * Creates backends of which roughly healthyFraction are healthy. Unhealthy ones are
+     * spread using a fixed seed so that every run sees the same layout, and at least one
+     * backend is always healthy.
+     */
+    public static ImmutableList<RpcService<Object, Object>> create(int count, double healthyFraction) {
+        Random random = new Random(count);
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            boolean healthy = i == count - 1 || random.nextDouble() < healthyFraction;
+            builder.add(new StubBackend(healthy));
+        }
+        return builder.build();
+    }
+}
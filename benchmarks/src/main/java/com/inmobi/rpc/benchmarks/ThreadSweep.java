@@ -0,0 +1,37 @@
+package com.inmobi.rpc.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected benchmarks once per thread count: 1, 2, 4, ... up to the number of
+ * available processors (which is always included). Any other JMH command line option is
+ * passed through, for example:
+ * <pre>
+ *   java -cp target/benchmarks.jar com.inmobi.rpc.benchmarks.ThreadSweep BalancerBenchmark -p backendCount=900
+ * </pre>
+ * Results of each run are written to jmh-result-{threads}.json in the working directory.
+ */
+public class ThreadSweep {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + ".json")
+                    .build()).run();
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.inmobi.rpc.benchmarks;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.inmobi.rpc.QpsThrottler;
+import com.inmobi.rpc.SemaphoreThrottler;
+import com.inmobi.rpc.TokenBucketThrottler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission cost of the throttlers in front of a backend which answers immediately.
+ * A small limit makes threads compete for the last permits, a large one measures the
+ * uncontended path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrottlerBenchmark {
+
+    @Param({"4", "1000000"})
+    public int limit;
+
+    private final Object request = new Object();
+
+    private SemaphoreThrottler<Object, Object> semaphoreThrottler;
+
+    private QpsThrottler<Object, Object> qpsThrottler;
+
+    private TokenBucketThrottler<Object, Object> tokenBucketThrottler;
+
+    @Setup
+    public void setUp() {
+        semaphoreThrottler = new SemaphoreThrottler<>(new StubBackend(true), limit);
+        qpsThrottler = new QpsThrottler<>(new StubBackend(true), limit, 1, TimeUnit.SECONDS,
+                Clock.systemUTC());
+        tokenBucketThrottler = new TokenBucketThrottler<>(new StubBackend(true), limit, 1, TimeUnit.SECONDS,
+                limit);
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> semaphoreThrottler() {
+        return semaphoreThrottler.apply(request);
+    }
+
+    @Benchmark
+    public boolean semaphoreThrottlerHealth() {
+        return semaphoreThrottler.isHealthy();
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> qpsThrottler() {
+        return qpsThrottler.apply(request);
+    }
+
+    @Benchmark
+    public boolean qpsThrottlerHealth() {
+        return qpsThrottler.isHealthy();
+    }
+
+    @Benchmark
+    public ListenableFuture<Object> tokenBucketThrottler() {
+        return tokenBucketThrottler.apply(request);
+    }
+
+    @Benchmark
+    public boolean tokenBucketThrottlerHealth() {
+        return tokenBucketThrottler.isHealthy();
+    }
+}
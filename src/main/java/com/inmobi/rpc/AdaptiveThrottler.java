@@ -0,0 +1,250 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limiter like {@link SemaphoreThrottler}, but the limit is not fixed: it is
+ * adjusted after every response by a {@link LimitAlgorithm}, from the observed latency and
+ * whether the request failed. When the backend slows down the limit shrinks, so requests
+ * are rejected early instead of queueing up at the backend, and it grows again once the
+ * backend recovers. Rejected requests get a cancelled future. Requests cancelled by the
+ * caller tell nothing about the backend and leave the limit alone.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class AdaptiveThrottler<Req, Resp> implements RpcService<Req, Resp> {
+
+    /**
+     * Computes the next concurrency limit. Calls are serialized by the throttler, so
+     * implementations may keep state without synchronization, as long as an instance is
+     * not shared between throttlers.
+     */
+    public interface LimitAlgorithm {
+
+        int initialLimit();
+
+        /**
+         * @param limit current limit.
+         * @param rttNanos latency of the request which just completed.
+         * @param inFlight requests outstanding when it was sent, including itself.
+         * @param dropped whether it failed.
+         * @return the new limit.
+         */
+        int update(int limit, long rttNanos, int inFlight, boolean dropped);
+    }
+
+    /**
+     * Additive increase, multiplicative decrease. The limit grows by one per successful
+     * response while the limit is actually in use, and is multiplied by backoffRatio when a
+     * request fails or takes longer than the latency threshold.
+     */
+    public static LimitAlgorithm aimd(int initialLimit, int minLimit, int maxLimit,
+                                      double backoffRatio, long latencyThreshold, TimeUnit unit) {
+        checkLimits(initialLimit, minLimit, maxLimit);
+        Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1, "Backoff ratio must be in (0, 1)");
+        return new Aimd(initialLimit, minLimit, maxLimit, backoffRatio, unit.toNanos(latencyThreshold));
+    }
+
+    /**
+     * Gradient based limit, in the spirit of TCP Vegas. The ratio of the long term average
+     * latency to the short term one tells whether requests are queueing at the backend:
+     * when they are, the ratio drops below one and the limit shrinks proportionally. A
+     * headroom of sqrt(limit) lets it probe for more capacity while latencies are steady.
+     * Failures halve the limit.
+     */
+    public static LimitAlgorithm gradient(int initialLimit, int minLimit, int maxLimit) {
+        checkLimits(initialLimit, minLimit, maxLimit);
+        return new Gradient(initialLimit, minLimit, maxLimit);
+    }
+
+    private static void checkLimits(int initialLimit, int minLimit, int maxLimit) {
+        Preconditions.checkArgument(minLimit > 0 && minLimit <= initialLimit && initialLimit <= maxLimit,
+                "Limits must satisfy 0 < min <= initial <= max");
+    }
+
+    private static class Aimd implements LimitAlgorithm {
+
+        private final int initialLimit;
+
+        private final int minLimit;
+
+        private final int maxLimit;
+
+        private final double backoffRatio;
+
+        private final long thresholdNanos;
+
+        Aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long thresholdNanos) {
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffRatio = backoffRatio;
+            this.thresholdNanos = thresholdNanos;
+        }
+
+        @Override
+        public int initialLimit() {
+            return initialLimit;
+        }
+
+        @Override
+        public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > thresholdNanos) {
+                return Math.max(minLimit, (int) (limit * backoffRatio));
+            }
+            if (inFlight * 2 >= limit) {
+                return Math.min(maxLimit, limit + 1);
+            }
+            return limit;
+        }
+    }
+
+    private static class Gradient implements LimitAlgorithm {
+
+        private static final double LONG_TERM_SMOOTHING = 0.01;
+
+        private static final double SHORT_TERM_SMOOTHING = 0.1;
+
+        private final int initialLimit;
+
+        private final int minLimit;
+
+        private final int maxLimit;
+
+        private double longRtt = 0;
+
+        private double shortRtt = 0;
+
+        private double estimatedLimit;
+
+        Gradient(int initialLimit, int minLimit, int maxLimit) {
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.estimatedLimit = initialLimit;
+        }
+
+        @Override
+        public int initialLimit() {
+            return initialLimit;
+        }
+
+        @Override
+        public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+            if (dropped) {
+                estimatedLimit = Math.max(minLimit, estimatedLimit / 2);
+                return (int) estimatedLimit;
+            }
+            if (longRtt == 0) {
+                longRtt = rttNanos;
+                shortRtt = rttNanos;
+            }
+            longRtt += (rttNanos - longRtt) * LONG_TERM_SMOOTHING;
+            shortRtt += (rttNanos - shortRtt) * SHORT_TERM_SMOOTHING;
+
+            if (inFlight * 2 < estimatedLimit) {
+                // Too little traffic to tell anything about the backend.
+                return limit;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, longRtt / shortRtt));
+            double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, 0.8 * estimatedLimit + 0.2 * target));
+            return (int) estimatedLimit;
+        }
+    }
+
+    private final RpcService<Req, Resp> backend;
+
+    private final LimitAlgorithm algorithm;
+
+    private final Ticker ticker;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /**
+     * Serializes calls to the algorithm. Private, so that code locking the algorithm
+     * cannot stall responses.
+     */
+    private final Object lock = new Object();
+
+    private volatile int limit;
+
+    public AdaptiveThrottler(RpcService<Req, Resp> backend, LimitAlgorithm algorithm) {
+        this(backend, algorithm, Ticker.systemTicker());
+    }
+
+    public AdaptiveThrottler(RpcService<Req, Resp> backend, LimitAlgorithm algorithm, Ticker ticker) {
+        this.backend = backend;
+        this.algorithm = algorithm;
+        this.ticker = ticker;
+        this.limit = algorithm.initialLimit();
+    }
+
+    /**
+     * @return the current concurrency limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return inFlight.get() < limit && backend.isHealthy();
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        int outstanding = tryAcquire();
+        if (outstanding == 0) {
+            return Futures.immediateCancelledFuture();
+        }
+        long start = ticker.read();
+        try {
+            ListenableFuture<Resp> serverFuture = backend.apply(req);
+            serverFuture.addListener(() -> release(serverFuture, start, outstanding),
+                    MoreExecutors.directExecutor());
+            return serverFuture;
+        } catch (Exception e) {
+            inFlight.decrementAndGet();
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * @return requests in flight including the acquired one, zero if the limit is reached.
+     */
+    private int tryAcquire() {
+        do {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return 0;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        } while (true);
+    }
+
+    private void release(ListenableFuture<Resp> serverFuture, long start, int outstanding) {
+        if (!serverFuture.isCancelled()) {
+            long rtt = ticker.read() - start;
+            boolean dropped = !RpcFutures.isSuccess(serverFuture);
+            synchronized (lock) {
+                limit = algorithm.update(limit, rtt, outstanding, dropped);
+            }
+        }
+        inFlight.decrementAndGet();
+    }
+}
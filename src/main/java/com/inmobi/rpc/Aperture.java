@@ -0,0 +1,403 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends requests of one client to a small subset of a large backend list, so that
+ * thousands of clients do not each keep connections to every backend. Every client
+ * knows its id and the number of clients. Backends and clients are both spread evenly
+ * over a ring: each backend owns an equal arc, and each client starts at its own
+ * position and uses the arc from there, the aperture. A backend only partly inside the
+ * aperture gets requests in proportion to the part inside, so as long as every client
+ * uses the same width, given in slices of one client's share of the ring, the windows
+ * of all clients tile the ring and every backend sees the same share of the traffic.
+ * Within the window requests go to the less loaded of two random picks.
+ *
+ * The aperture starts at its minimum, which is never less than one slice, so that the
+ * windows of all clients cover every backend. It grows by one slice while a moving
+ * average of the outstanding requests is above highLoad per backend in the window, and
+ * shrinks by one while it is below lowLoad. The average spans a few seconds, so a short
+ * burst does not resize the window. It is sampled by one caller every twentieth of that
+ * span, the others only read the aperture, so that no lock is taken on the request path. If every backend in the window is unhealthy, the
+ * next healthy backend on the ring is used.
+ *
+ * Backends and the client count can be changed at any time, for example when either
+ * fleet is scaled, and the windows of all clients move to stay evenly spread, starting
+ * again from the minimum aperture. Removal works as in {@link LeastLoaded}, except that
+ * the last backend cannot be removed.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Aperture<Req, Resp> implements RpcService<Req, Resp>, Closeable {
+
+    private static final int MAX_DRAWS_PER_CHOICE = 3;
+
+    private static final int SAMPLES_PER_SMOOTHING = 20;
+
+    /**
+     * Backends twice over, so that every window is a sublist, and where this client's
+     * window starts, in backends from the start of the ring.
+     */
+    private static class Ring<Req, Resp> {
+
+        final ImmutableList<TrackedService<Req, Resp>> backends;
+
+        final ImmutableList<TrackedService<Req, Resp>> doubled;
+
+        final double offset;
+
+        /**
+         * Share of the ring of one client, in backends.
+         */
+        final double slice;
+
+        final int minSlices;
+
+        final int maxSlices;
+
+        Ring(ImmutableList<TrackedService<Req, Resp>> backends, int clientId, int clientCount, int minAperture) {
+            int size = backends.size();
+            this.backends = backends;
+            this.doubled = ImmutableList.<TrackedService<Req, Resp>>builder()
+                    .addAll(backends)
+                    .addAll(backends)
+                    .build();
+            this.offset = (double) clientId * size / clientCount;
+            this.slice = (double) size / clientCount;
+            this.maxSlices = clientCount;
+            int slices = (int) Math.ceil(Math.min(minAperture, size) / slice - 1e-9);
+            this.minSlices = Math.min(clientCount, Math.max(1, slices));
+        }
+
+        /**
+         * @return the backend at position, in backends from the start of the ring.
+         */
+        TrackedService<Req, Resp> at(double position) {
+            int index = (int) position;
+            return backends.get(index >= backends.size() ? index - backends.size() : index);
+        }
+
+        int first() {
+            return (int) offset;
+        }
+
+        /**
+         * @return number of backends at least partly inside a window of width backends.
+         */
+        int count(double width) {
+            int last = (int) Math.ceil(offset + width - 1e-9);
+            return Math.min(backends.size(), last - first());
+        }
+    }
+
+    private final int minAperture;
+
+    private final double lowLoad;
+
+    private final double highLoad;
+
+    private final double smoothingNanos;
+
+    private final Ticker ticker;
+
+    private final HealthAggregate health;
+
+    private final AtomicInteger slices = new AtomicInteger();
+
+    private final long sampleNanos;
+
+    private final AtomicLong stampNanos;
+
+    // Written only by the caller which advanced stampNanos.
+    private volatile double load;
+
+    private int clientId;
+
+    private int clientCount;
+
+    private volatile Ring<Req, Resp> ring;
+
+    /**
+     * Uses at least 3 backends, grows above 2 outstanding requests per backend and shrinks
+     * below 0.5.
+     */
+    public Aperture(List<RpcService<Req, Resp>> backends, int clientId, int clientCount) {
+        this(backends, clientId, clientCount, 3, 0.5, 2.0);
+    }
+
+    /**
+     * Averages the load over 5 seconds.
+     */
+    public Aperture(List<RpcService<Req, Resp>> backends,
+                    int clientId,
+                    int clientCount,
+                    int minAperture,
+                    double lowLoad,
+                    double highLoad) {
+        this(backends, clientId, clientCount, minAperture, lowLoad, highLoad, 5, TimeUnit.SECONDS,
+                Ticker.systemTicker());
+    }
+
+    /**
+     * @param backends full list, in the same order on every client.
+     * @param clientId of this client, from 0 to clientCount - 1.
+     * @param clientCount number of clients sharing the backends.
+     * @param minAperture fewest backends to use, for redundancy.
+     * @param lowLoad outstanding requests per backend below which the aperture shrinks.
+     * @param highLoad outstanding requests per backend above which the aperture grows.
+     * @param smoothingTime time constant of the moving average of outstanding requests.
+     * @param smoothingUnit unit of smoothingTime.
+     * @param ticker to age the moving average with.
+     */
+    public Aperture(List<RpcService<Req, Resp>> backends,
+                    int clientId,
+                    int clientCount,
+                    int minAperture,
+                    double lowLoad,
+                    double highLoad,
+                    long smoothingTime,
+                    TimeUnit smoothingUnit,
+                    Ticker ticker) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(minAperture > 0, "Minimum aperture must be positive");
+        Preconditions.checkArgument(lowLoad >= 0 && lowLoad < highLoad, "Low load must be below high load");
+        Preconditions.checkArgument(smoothingTime > 0, "Smoothing time must be positive");
+        checkClient(clientId, clientCount);
+        this.minAperture = minAperture;
+        this.lowLoad = lowLoad;
+        this.highLoad = highLoad;
+        this.smoothingNanos = smoothingUnit.toNanos(smoothingTime);
+        this.sampleNanos = Math.max(1, smoothingUnit.toNanos(smoothingTime) / SAMPLES_PER_SMOOTHING);
+        this.ticker = ticker;
+        this.stampNanos = new AtomicLong(ticker.read());
+        this.clientId = clientId;
+        this.clientCount = clientCount;
+        this.ring = new Ring<>(ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new)),
+                clientId, clientCount, minAperture);
+        this.slices.set(ring.minSlices);
+        this.health = new HealthAggregate(backends);
+    }
+
+    private static void checkClient(int clientId, int clientCount) {
+        Preconditions.checkArgument(clientCount > 0, "Client count must be positive");
+        Preconditions.checkElementIndex(clientId, clientCount);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        Ring<Req, Resp> ring = this.ring;
+        double width = adjust(ring) * ring.slice;
+        TrackedService<Req, Resp> host = sample(ring, width);
+        if (host == null) {
+            host = nextHealthy(ring);
+        }
+        if (host == null) {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+        return host.apply(req);
+    }
+
+    /**
+     * At most once per sample interval, folds the outstanding requests into their moving
+     * average, and grows or shrinks the aperture by one slice if the average is outside
+     * the bounds. Other calls only read the aperture.
+     *
+     * @return the aperture to use, in slices.
+     */
+    private int adjust(Ring<Req, Resp> ring) {
+        int current = slices.get();
+        int next = Math.min(ring.maxSlices, Math.max(ring.minSlices, current));
+        long now = ticker.read();
+        long stamp = stampNanos.get();
+        if (now - stamp < sampleNanos || !stampNanos.compareAndSet(stamp, now)) {
+            return next;
+        }
+        double w = Math.exp(-(now - stamp) / smoothingNanos);
+        double load = this.load * w + outstanding(ring) * (1 - w);
+        this.load = load;
+        double width = next * ring.slice;
+        if (load > highLoad * width && next < ring.maxSlices) {
+            next++;
+        } else if (load < lowLoad * width && next > ring.minSlices) {
+            next--;
+        }
+        if (next != current) {
+            // Lost only to a membership change, which resets the aperture anyway.
+            slices.compareAndSet(current, next);
+        }
+        return next;
+    }
+
+    /**
+     * @return requests of this client not completed yet, including those sent outside
+     * the window.
+     */
+    private static int outstanding(Ring<?, ?> ring) {
+        int sum = 0;
+        for (TrackedService<?, ?> backend : ring.backends) {
+            sum += backend.getOutboundRequests();
+        }
+        return sum;
+    }
+
+    /**
+     * Picks two healthy backends at random positions in the window, so that a backend
+     * partly inside is picked in proportion, and returns the less loaded one, null if
+     * no healthy backend was picked.
+     */
+    private TrackedService<Req, Resp> sample(Ring<Req, Resp> ring, double width) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TrackedService<Req, Resp> ret = null;
+        int draws = 2 * MAX_DRAWS_PER_CHOICE;
+        for (int sampled = 0; sampled < 2 && draws > 0; draws--) {
+            TrackedService<Req, Resp> candidate = ring.at(ring.offset + random.nextDouble() * width);
+            if (candidate.isHealthy()) {
+                sampled++;
+                if (ret == null || candidate.getOutboundRequests() < ret.getOutboundRequests()) {
+                    ret = candidate;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the first healthy backend on the ring from the start of the window, null if
+     * there is none.
+     */
+    private TrackedService<Req, Resp> nextHealthy(Ring<Req, Resp> ring) {
+        int size = ring.backends.size();
+        for (int i = 0; i < size; i++) {
+            TrackedService<Req, Resp> candidate = ring.doubled.get(ring.first() + i);
+            if (candidate.isHealthy()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return health.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return health.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        health.addListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        health.removeListener(listener);
+    }
+
+    /**
+     * Unsubscribes from the health of the backends, which would otherwise keep this
+     * balancer reachable for as long as they live. It is unhealthy afterwards.
+     */
+    @Override
+    public void close() {
+        health.close();
+    }
+
+    /**
+     * Starts sending requests to backend as well, appended to the end of the ring.
+     */
+    public synchronized void addBackend(RpcService<Req, Resp> backend) {
+        replaceBackends(ImmutableList.<RpcService<Req, Resp>>builder()
+                .addAll(Lists.transform(ring.backends, tracked -> tracked.service))
+                .add(backend)
+                .build());
+    }
+
+    /**
+     * Stops sending new requests to backend.
+     *
+     * @return see {@link LeastLoaded#removeBackend}.
+     * @throws IllegalArgumentException if backend is not part of this balancer, or is the
+     * only one.
+     */
+    public synchronized ListenableFuture<Void> removeBackend(RpcService<Req, Resp> backend) {
+        List<RpcService<Req, Resp>> remaining = new ArrayList<>(ring.backends.size());
+        boolean removed = false;
+        for (TrackedService<Req, Resp> tracked : ring.backends) {
+            if (!removed && tracked.service == backend) {
+                removed = true;
+            } else {
+                remaining.add(tracked.service);
+            }
+        }
+        Preconditions.checkArgument(removed, "Unknown backend");
+        return replaceBackends(remaining);
+    }
+
+    /**
+     * Replaces the set of backends in one step, and moves the window to stay evenly spread
+     * with the other clients. Backends present before and after, by identity, keep their
+     * outstanding request counts.
+     *
+     * @return see {@link LeastLoaded#replaceBackends}.
+     */
+    public synchronized ListenableFuture<Void> replaceBackends(List<RpcService<Req, Resp>> newBackends) {
+        Preconditions.checkArgument(!newBackends.isEmpty(), "At least one backend must be present");
+        List<TrackedService<Req, Resp>> removed = new ArrayList<>();
+        ring = new Ring<>(TrackedService.carryOver(ring.backends, newBackends, removed),
+                clientId, clientCount, minAperture);
+        slices.set(ring.minSlices);
+        health.setBackends(newBackends);
+        return TrackedService.drainAll(removed);
+    }
+
+    /**
+     * Changes the position of this client, when clients are added or removed.
+     */
+    public synchronized void setClient(int clientId, int clientCount) {
+        checkClient(clientId, clientCount);
+        this.clientId = clientId;
+        this.clientCount = clientCount;
+        ring = new Ring<>(ring.backends, clientId, clientCount, minAperture);
+        slices.set(ring.minSlices);
+    }
+
+    /**
+     * @return number of backends requests are currently sent to, counting those only
+     * partly inside the window.
+     */
+    public int getAperture() {
+        Ring<Req, Resp> ring = this.ring;
+        return ring.count(slices(ring) * ring.slice);
+    }
+
+    /**
+     * @return the backends requests are currently sent to, as long as they are healthy.
+     */
+    public List<RpcService<Req, Resp>> getSubset() {
+        Ring<Req, Resp> ring = this.ring;
+        int first = ring.first();
+        return Lists.transform(ring.doubled.subList(first, first + ring.count(slices(ring) * ring.slice)),
+                tracked -> tracked.service);
+    }
+
+    private int slices(Ring<Req, Resp> ring) {
+        return Math.min(ring.maxSlices, Math.max(ring.minSlices, slices.get()));
+    }
+}
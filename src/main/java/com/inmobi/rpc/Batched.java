@@ -0,0 +1,220 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Coalesces individual requests into batch calls. Requests are collected until either
+ * maxBatchSize of them are pending, in which case the batch is sent right away from the
+ * calling thread, or maxDelay has passed since the first of them arrived, in which case
+ * it is sent from the scheduler. Once the scheduler is shut down, every request is sent
+ * right away in a batch of its own. The batch backend must return one response per
+ * request, in the same order.
+ *
+ * A failed batch fails every request in it. Individual failures can be reported through
+ * itemError, which inspects each response and returns the exception to fail its request
+ * with, or null for success. Requests cancelled before their batch is sent are left out.
+ *
+ * A batch is sent under the latest {@link Deadline} of its requests, so that no request is
+ * cut short by the deadline of another, and under none if any of them has none.
+ *
+ * The batch backend may itself be a balancer over batch capable hosts, or each host of a
+ * balancer may be wrapped in its own Batched, since both are plain RpcServices.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Batched<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static class Pending<Req, Resp> {
+
+        final Req req;
+
+        final Deadline deadline;
+
+        final SettableFuture<Resp> future = SettableFuture.create();
+
+        Pending(Req req, Deadline deadline) {
+            this.req = req;
+            this.deadline = deadline;
+        }
+    }
+
+    private final RpcService<List<Req>, List<Resp>> batchBackend;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Function<Resp, ? extends Exception> itemError;
+
+    // Guarded by this.
+    private List<Pending<Req, Resp>> batch;
+
+    public Batched(RpcService<List<Req>, List<Resp>> batchBackend,
+                   int maxBatchSize,
+                   long maxDelay,
+                   TimeUnit unit,
+                   ScheduledExecutorService scheduler) {
+        this(batchBackend, maxBatchSize, maxDelay, unit, scheduler, resp -> null);
+    }
+
+    /**
+     * @param batchBackend to send the batches to.
+     * @param maxBatchSize requests after which a batch is sent without waiting.
+     * @param maxDelay longest time a request waits for its batch to fill.
+     * @param unit of maxDelay.
+     * @param scheduler to send batches from once they time out.
+     * @param itemError maps a response to the exception its request should fail with, or to
+     *                  null if it succeeded.
+     */
+    public Batched(RpcService<List<Req>, List<Resp>> batchBackend,
+                   int maxBatchSize,
+                   long maxDelay,
+                   TimeUnit unit,
+                   ScheduledExecutorService scheduler,
+                   Function<Resp, ? extends Exception> itemError) {
+        Preconditions.checkArgument(maxBatchSize > 0, "Batch size must be positive");
+        Preconditions.checkArgument(maxDelay >= 0, "Delay must not be negative");
+        this.batchBackend = batchBackend;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.scheduler = scheduler;
+        this.itemError = itemError;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return batchBackend.isHealthy();
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        Pending<Req, Resp> pending = new Pending<>(req, Deadline.current());
+        List<Pending<Req, Resp>> full = null;
+        List<Pending<Req, Resp>> started = null;
+        synchronized (this) {
+            if (batch == null) {
+                batch = new ArrayList<>(maxBatchSize);
+                started = batch;
+            }
+            batch.add(pending);
+            if (batch.size() >= maxBatchSize) {
+                full = batch;
+                batch = null;
+            }
+        }
+        if (full != null) {
+            send(full);
+        } else if (started != null) {
+            List<Pending<Req, Resp>> timedOut = started;
+            try {
+                scheduler.schedule(() -> flush(timedOut), maxDelayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Scheduler shut down, nothing would send the batch later.
+                flush(timedOut);
+            }
+        }
+        return pending.future;
+    }
+
+    private void flush(List<Pending<Req, Resp>> expected) {
+        synchronized (this) {
+            if (batch != expected) {
+                // Already sent because it filled up.
+                return;
+            }
+            batch = null;
+        }
+        send(expected);
+    }
+
+    private void send(List<Pending<Req, Resp>> pendings) {
+        List<Pending<Req, Resp>> live = new ArrayList<>(pendings.size());
+        ImmutableList.Builder<Req> requests = ImmutableList.builder();
+        Deadline deadline = null;
+        boolean unbounded = false;
+        for (Pending<Req, Resp> pending : pendings) {
+            if (!pending.future.isDone()) {
+                live.add(pending);
+                requests.add(pending.req);
+                if (pending.deadline == null) {
+                    unbounded = true;
+                } else {
+                    deadline = deadline == null ? pending.deadline : deadline.max(pending.deadline);
+                }
+            }
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+
+        ImmutableList<Req> batch = requests.build();
+        ListenableFuture<List<Resp>> batchFuture;
+        try {
+            if (deadline == null || unbounded) {
+                batchFuture = batchBackend.apply(batch);
+            } else {
+                batchFuture = Deadline.runWith(deadline, () -> batchBackend.apply(batch));
+            }
+        } catch (Exception e) {
+            batchFuture = Futures.immediateFailedFuture(e);
+        }
+        ListenableFuture<List<Resp>> sent = batchFuture;
+        sent.addListener(() -> complete(live, sent), MoreExecutors.directExecutor());
+    }
+
+    private void complete(List<Pending<Req, Resp>> live, ListenableFuture<List<Resp>> batchFuture) {
+        List<Resp> responses;
+        try {
+            responses = Futures.getDone(batchFuture);
+        } catch (ExecutionException e) {
+            for (Pending<Req, Resp> pending : live) {
+                pending.future.setException(e.getCause());
+            }
+            return;
+        } catch (CancellationException e) {
+            for (Pending<Req, Resp> pending : live) {
+                pending.future.setException(new RpcException("Batch cancelled"));
+            }
+            return;
+        }
+        if (responses == null || responses.size() != live.size()) {
+            RpcException mismatch = new RpcException("Batch returned "
+                    + (responses == null ? "no" : responses.size()) + " responses for " + live.size() + " requests");
+            for (Pending<Req, Resp> pending : live) {
+                pending.future.setException(mismatch);
+            }
+            return;
+        }
+        for (int i = 0; i < live.size(); i++) {
+            Resp resp = responses.get(i);
+            Exception error;
+            try {
+                error = itemError.apply(resp);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            if (error != null) {
+                live.get(i).future.setException(error);
+            } else {
+                live.get(i).future.set(resp);
+            }
+        }
+    }
+}
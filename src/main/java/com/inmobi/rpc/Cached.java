@@ -0,0 +1,208 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches responses by request, so any balancer tree can be made to serve cacheable calls
+ * without going to a backend. Requests are used as cache keys, so they must implement
+ * equals and hashCode.
+ *
+ * Entries are evicted in least recently used order once there are more than maximumSize,
+ * and expire a fixed time after they were loaded. With refreshAfterWrite, the first request
+ * for an entry older than that triggers a reload through the backend, while this and
+ * further requests keep getting the stale response until the reload completes. A failed
+ * reload keeps the stale response until it expires, counted from when it was loaded.
+ *
+ * Concurrent requests for a missing entry share a single backend call. Failed responses
+ * are not cached. Cancelling a returned future does not cancel the backend call, whose
+ * response is still cached for other callers.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Cached<Req, Resp> implements RpcService<Req, Resp> {
+
+    /**
+     * Response and when it was loaded, which a failed reload keeps.
+     */
+    private static final class Loaded<Resp> {
+
+        final ListenableFuture<Resp> response;
+
+        final long loadedNanos;
+
+        Loaded(ListenableFuture<Resp> response, long loadedNanos) {
+            this.response = response;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    private final RpcService<Req, Resp> backend;
+
+    private final Ticker ticker;
+
+    private final long expireNanos;
+
+    private final LoadingCache<Req, Loaded<Resp>> cache;
+
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Without refresh ahead.
+     */
+    public Cached(RpcService<Req, Resp> backend, long maximumSize, long expireAfterWrite, TimeUnit unit) {
+        this(backend, maximumSize, expireAfterWrite, 0, unit, Ticker.systemTicker());
+    }
+
+    /**
+     * @param backend to load responses from.
+     * @param maximumSize number of responses to keep.
+     * @param expireAfterWrite time after which a response is no longer served.
+     * @param refreshAfterWrite time after which a response is reloaded in the background,
+     *                          0 to disable. Should be less than expireAfterWrite.
+     * @param unit of expireAfterWrite and refreshAfterWrite.
+     * @param ticker time source.
+     */
+    public Cached(RpcService<Req, Resp> backend,
+                  long maximumSize,
+                  long expireAfterWrite,
+                  long refreshAfterWrite,
+                  TimeUnit unit,
+                  Ticker ticker) {
+        Preconditions.checkArgument(maximumSize > 0, "Maximum size must be positive");
+        Preconditions.checkArgument(expireAfterWrite > 0, "Expiry must be positive");
+        Preconditions.checkArgument(refreshAfterWrite >= 0, "Refresh time can not be negative");
+        this.backend = backend;
+        this.ticker = ticker;
+        this.expireNanos = unit.toNanos(expireAfterWrite);
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite, unit)
+                .ticker(ticker)
+                .recordStats();
+        if (refreshAfterWrite > 0) {
+            builder.refreshAfterWrite(refreshAfterWrite, unit);
+        }
+        this.cache = builder.build(new CacheLoader<Req, Loaded<Resp>>() {
+            @Override
+            public Loaded<Resp> load(Req req) {
+                return new Loaded<>(call(req), ticker.read());
+            }
+
+            @Override
+            public ListenableFuture<Loaded<Resp>> reload(Req req, Loaded<Resp> old) {
+                if (!old.response.isDone()) {
+                    // Initial load still in flight, nothing to refresh yet.
+                    return Futures.immediateFuture(old);
+                }
+                // Swap in the new response only once it has arrived, until then the old one
+                // keeps being served. A failure keeps the old one instead of failing the
+                // reload, which the cache would log.
+                ListenableFuture<Loaded<Resp>> reloaded = Futures.transform(call(req),
+                        resp -> new Loaded<>(Futures.immediateFuture(resp), ticker.read()),
+                        MoreExecutors.directExecutor());
+                return Futures.catching(reloaded, Exception.class, e -> old, MoreExecutors.directExecutor());
+            }
+        });
+    }
+
+    private ListenableFuture<Resp> call(Req req) {
+        ListenableFuture<Resp> future;
+        try {
+            future = backend.apply(req);
+        } catch (Exception e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        ListenableFuture<Resp> response = future;
+        response.addListener(() -> {
+            if (!RpcFutures.isSuccess(response)) {
+                failures.increment();
+            }
+        }, MoreExecutors.directExecutor());
+        return response;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return backend.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return backend.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        backend.addHealthListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        backend.removeHealthListener(listener);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        Loaded<Resp> cached = cache.getUnchecked(req);
+        if (ticker.read() - cached.loadedNanos >= expireNanos) {
+            // Kept past its expiry by failed reloads, which the cache counts as writes.
+            cache.asMap().remove(req, cached);
+            cached = cache.getUnchecked(req);
+        }
+        Loaded<Resp> loaded = cached;
+        ListenableFuture<Resp> response = loaded.response;
+        if (response.isDone()) {
+            if (!RpcFutures.isSuccess(response)) {
+                cache.asMap().remove(req, loaded);
+            }
+        } else {
+            response.addListener(() -> {
+                if (!RpcFutures.isSuccess(response)) {
+                    cache.asMap().remove(req, loaded);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return Futures.nonCancellationPropagating(response);
+    }
+
+    /**
+     * Drops the cached response for a request, if any.
+     */
+    public void invalidate(Req req) {
+        cache.invalidate(req);
+    }
+
+    /**
+     * @return number of cached responses, including ones still in flight.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return hit, miss, load and eviction counts since creation. Loads count as successful
+     * even when the backend failed, see {@link #failureCount()}.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return number of loads and reloads since creation for which the backend failed.
+     */
+    public long failureCount() {
+        return failures.sum();
+    }
+}
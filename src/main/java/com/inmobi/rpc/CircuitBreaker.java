@@ -0,0 +1,241 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a backend out of rotation when its requests fail. Wrap each backend before
+ * handing it to a balancer, the balancer then skips it through {@link #isHealthy()}.
+ *
+ * The breaker is closed (healthy) until either consecutiveFailures requests fail in a
+ * row, or at least failureRate of the last windowSize requests failed. It then opens and
+ * reports unhealthy for openDuration. After that it is half open: up to halfOpenProbes
+ * requests are let through, if all of them succeed the breaker closes again, a single
+ * failure opens it for another openDuration.
+ *
+ * Only failed futures count as failures. Cancelled ones are ignored, as cancellation is
+ * usually decided by the caller (hedging, throttling) and says little about the backend.
+ * Requests sent while open fail immediately with an {@link RpcException}.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class CircuitBreaker<Req, Resp> implements RpcService<Req, Resp> {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final RpcService<Req, Resp> backend;
+
+    private final Ticker ticker;
+
+    private final int consecutiveFailuresThreshold;
+
+    private final double failureRateThreshold;
+
+    private final boolean[] window;
+
+    private final long openNanos;
+
+    private final int halfOpenProbes;
+
+    private volatile State state = State.CLOSED;
+
+    private volatile long openUntil;
+
+    /**
+     * Guards the counters below. Private, so that code locking the breaker cannot stall
+     * responses.
+     */
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private int consecutiveFailures;
+
+    private int windowPosition;
+
+    private int windowCalls;
+
+    private int windowFailures;
+
+    private volatile int probesSent;
+
+    private int probesSucceeded;
+
+    /**
+     * Opens after consecutiveFailures failures in a row, probes with a single request.
+     */
+    public CircuitBreaker(RpcService<Req, Resp> backend,
+                          int consecutiveFailures,
+                          long openDuration,
+                          TimeUnit unit) {
+        this(backend, consecutiveFailures, 1.0, consecutiveFailures, openDuration, unit, 1, Ticker.systemTicker());
+    }
+
+    /**
+     * @param backend to protect.
+     * @param consecutiveFailures failures in a row which open the breaker.
+     * @param failureRate fraction of failures in the window which opens the breaker.
+     * @param windowSize number of most recent requests the failure rate is computed over.
+     * @param openDuration time the breaker stays open before probing.
+     * @param unit of openDuration.
+     * @param halfOpenProbes requests which must succeed while half open to close again.
+     * @param ticker time source.
+     */
+    public CircuitBreaker(RpcService<Req, Resp> backend,
+                          int consecutiveFailures,
+                          double failureRate,
+                          int windowSize,
+                          long openDuration,
+                          TimeUnit unit,
+                          int halfOpenProbes,
+                          Ticker ticker) {
+        Preconditions.checkArgument(consecutiveFailures > 0, "Consecutive failures must be positive");
+        Preconditions.checkArgument(failureRate > 0 && failureRate <= 1, "Failure rate must be in (0, 1]");
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+        Preconditions.checkArgument(halfOpenProbes > 0, "At least one probe is needed");
+        this.backend = backend;
+        this.ticker = ticker;
+        this.consecutiveFailuresThreshold = consecutiveFailures;
+        this.failureRateThreshold = failureRate;
+        this.window = new boolean[windowSize];
+        this.openNanos = unit.toNanos(openDuration);
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    public State getState() {
+        if (state == State.OPEN && ticker.read() - openUntil >= 0) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        switch (state) {
+            case CLOSED:
+                return backend.isHealthy();
+            case OPEN:
+                return ticker.read() - openUntil >= 0 && backend.isHealthy();
+            default:
+                return probesSent < halfOpenProbes && backend.isHealthy();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        boolean probe = false;
+        if (state != State.CLOSED) {
+            synchronized (lock) {
+                if (state == State.OPEN && ticker.read() - openUntil >= 0) {
+                    state = State.HALF_OPEN;
+                    probesSent = 0;
+                    probesSucceeded = 0;
+                }
+                if (state == State.OPEN || (state == State.HALF_OPEN && probesSent >= halfOpenProbes)) {
+                    return Futures.immediateFailedFuture(new RpcException("Circuit open"));
+                }
+                if (state == State.HALF_OPEN) {
+                    probesSent++;
+                    probe = true;
+                }
+            }
+        }
+        ListenableFuture<Resp> future;
+        try {
+            future = backend.apply(req);
+        } catch (Exception e) {
+            record(probe, false);
+            return Futures.immediateFailedFuture(e);
+        }
+        boolean isProbe = probe;
+        future.addListener(() -> onComplete(future, isProbe), MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private void onComplete(ListenableFuture<Resp> future, boolean probe) {
+        boolean success;
+        try {
+            Futures.getDone(future);
+            success = true;
+        } catch (CancellationException e) {
+            if (probe) {
+                synchronized (lock) {
+                    // Give the probe back, it told us nothing.
+                    if (state == State.HALF_OPEN) {
+                        probesSent--;
+                    }
+                }
+            }
+            return;
+        } catch (Exception e) {
+            success = false;
+        }
+        record(probe, success);
+    }
+
+    private void record(boolean probe, boolean success) {
+        synchronized (lock) {
+            if (state == State.HALF_OPEN) {
+                if (!probe) {
+                    // Sent before the breaker opened, too old to judge the recovery.
+                    return;
+                }
+                if (success) {
+                    probesSucceeded++;
+                    if (probesSucceeded >= halfOpenProbes) {
+                        close();
+                    }
+                } else {
+                    open();
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                return;
+            }
+
+            consecutiveFailures = success ? 0 : consecutiveFailures + 1;
+
+            if (windowCalls == window.length) {
+                if (window[windowPosition]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCalls++;
+            }
+            window[windowPosition] = !success;
+            if (!success) {
+                windowFailures++;
+            }
+            windowPosition = (windowPosition + 1) % window.length;
+
+            if (consecutiveFailures >= consecutiveFailuresThreshold
+                    || (windowCalls == window.length && windowFailures >= failureRateThreshold * window.length)) {
+                open();
+            }
+        }
+    }
+
+    private void open() {
+        openUntil = ticker.read() + openNanos;
+        state = State.OPEN;
+    }
+
+    private void close() {
+        consecutiveFailures = 0;
+        windowPosition = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+        state = State.CLOSED;
+    }
+}
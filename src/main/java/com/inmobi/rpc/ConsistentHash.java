@@ -0,0 +1,194 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Routes requests with the same key to the same backend, so that backends keeping per key
+ * caches see a high hit rate. Backends are placed on a hash ring at many points each, and
+ * a request goes to the first backend clockwise from the hash of its key.
+ *
+ * Loads are bounded: a backend with more than (1 + balanceFactor) times the average number
+ * of outstanding requests per healthy backend is skipped, as are unhealthy backends, and
+ * the walk continues clockwise. This keeps a hot key from overloading its backend, and
+ * moves only the keys of a failing backend. If every healthy backend is over the bound,
+ * the first healthy one is used. The walk checks the health of the backends it passes
+ * only, and the number of healthy backends is kept up to date from those which announce
+ * theirs, see {@link RpcService#announcesHealth()}.
+ *
+ * The points of a backend are derived from its name, so clients given the same names
+ * route the same keys to the same backends, and adding, removing or reordering backends
+ * moves only the keys of the backends added or removed.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class ConsistentHash<Req, Resp> implements RpcService<Req, Resp>, Closeable {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final ImmutableList<TrackedService<Req, Resp>> backends;
+
+    private final Function<? super Req, ?> keyFunction;
+
+    private final double balanceFactor;
+
+    /**
+     * Sorted positions on the ring, and the index of the backend at each position.
+     */
+    private final long[] ring;
+
+    private final int[] owners;
+
+    private final AtomicInteger totalOutbound = new AtomicInteger(0);
+
+    private final HealthAggregate health;
+
+    /**
+     * 100 points per backend, and loads bounded to 1.25 times the average.
+     */
+    public ConsistentHash(List<RpcService<Req, Resp>> backends,
+                          List<String> names,
+                          Function<? super Req, ?> keyFunction) {
+        this(backends, names, keyFunction, 100, 0.25);
+    }
+
+    /**
+     * @param backends to route to.
+     * @param names stable and distinct name of each backend, such as its host and port,
+     *              which places it on the ring.
+     * @param keyFunction requests with equal keys go to the same backend while it is
+     *                    healthy and not overloaded.
+     * @param pointsPerBackend positions of each backend on the ring, more points spread keys
+     *                         more evenly at the cost of memory.
+     * @param balanceFactor how far above the average load a backend may go before requests
+     *                      spill over to the next one.
+     */
+    public ConsistentHash(List<RpcService<Req, Resp>> backends,
+                          List<String> names,
+                          Function<? super Req, ?> keyFunction,
+                          int pointsPerBackend,
+                          double balanceFactor) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(names.size() == backends.size(), "Names must match backend count");
+        Preconditions.checkArgument(new HashSet<>(names).size() == names.size(), "Names must be distinct");
+        Preconditions.checkArgument(pointsPerBackend > 0, "Points per backend must be positive");
+        Preconditions.checkArgument(balanceFactor > 0, "Balance factor must be positive");
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.keyFunction = keyFunction;
+        this.balanceFactor = balanceFactor;
+        this.health = new HealthAggregate(backends);
+
+        int size = backends.size() * pointsPerBackend;
+        long[][] points = new long[size][];
+        for (int i = 0; i < backends.size(); i++) {
+            for (int j = 0; j < pointsPerBackend; j++) {
+                long position = HASH.newHasher()
+                        .putString(names.get(i), StandardCharsets.UTF_8)
+                        .putInt(j)
+                        .hash()
+                        .asLong();
+                points[i * pointsPerBackend + j] = new long[]{position, i};
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        this.ring = new long[size];
+        this.owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return health.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return health.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        health.addListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        health.removeListener(listener);
+    }
+
+    /**
+     * Unsubscribes from the health of the backends, which would otherwise keep this
+     * balancer reachable for as long as they live. It is unhealthy afterwards.
+     */
+    @Override
+    public void close() {
+        health.close();
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        TrackedService<Req, Resp> host = select(keyFunction.apply(req));
+        if (host == null) {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+        totalOutbound.incrementAndGet();
+        ListenableFuture<Resp> future = host.apply(req);
+        future.addListener(totalOutbound::decrementAndGet, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private TrackedService<Req, Resp> select(Object key) {
+        long hash = HASH.hashInt(key.hashCode()).asLong();
+        int start = Arrays.binarySearch(ring, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int healthyCount = health.healthyCount();
+        if (healthyCount == 0) {
+            return null;
+        }
+        // Bound on the load of the chosen backend after this request is added.
+        int bound = (int) Math.ceil((1 + balanceFactor) * (totalOutbound.get() + 1) / healthyCount);
+
+        // The loads of the healthy backends average below the bound, so one of them is under
+        // it and the walk ends early unless loads change under it, at worst after one turn.
+        TrackedService<Req, Resp> firstHealthy = null;
+        int previous = -1;
+        for (int i = 0; i < ring.length; i++) {
+            int owner = owners[(start + i) % ring.length];
+            if (owner == previous) {
+                continue;
+            }
+            previous = owner;
+            TrackedService<Req, Resp> backend = backends.get(owner);
+            if (!backend.isHealthy()) {
+                continue;
+            }
+            if (backend.getOutboundRequests() < bound) {
+                return backend;
+            }
+            if (firstHealthy == null) {
+                firstHealthy = backend;
+            }
+        }
+        return firstHealthy;
+    }
+}
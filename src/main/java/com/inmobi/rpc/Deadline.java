@@ -0,0 +1,81 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Point in time by which a request must complete. While a {@link TimeLimited} service
+ * forwards a request, the deadline is available to everything called on the same thread
+ * through {@link #current()}, so that nested timeouts never extend it, and backends can
+ * pass the remaining time on to the actual RPC. Services which call their backends later
+ * from another thread, such as {@link Retrying}, {@link Hedged} and {@link Batched},
+ * carry the deadline of the request over to that call.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final Ticker ticker;
+
+    private final long deadlineNanos;
+
+    private Deadline(Ticker ticker, long deadlineNanos) {
+        this.ticker = ticker;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    static Deadline after(long duration, TimeUnit unit, Ticker ticker) {
+        return new Deadline(ticker, ticker.read() + unit.toNanos(duration));
+    }
+
+    /**
+     * @return deadline of the request being sent on this thread, null if there is none.
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Calls supplier with deadline as the current deadline of this thread.
+     */
+    static <T> T runWith(Deadline deadline, Supplier<T> supplier) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(deadline);
+        try {
+            return supplier.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @return time left, zero or negative if the deadline has passed.
+     */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(deadlineNanos - ticker.read(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - ticker.read() <= 0;
+    }
+
+    /**
+     * @return the earlier of the two deadlines.
+     */
+    Deadline min(Deadline other) {
+        return other.remaining(TimeUnit.NANOSECONDS) < remaining(TimeUnit.NANOSECONDS) ? other : this;
+    }
+
+    /**
+     * @return the later of the two deadlines.
+     */
+    Deadline max(Deadline other) {
+        return other.remaining(TimeUnit.NANOSECONDS) > remaining(TimeUnit.NANOSECONDS) ? other : this;
+    }
+}
@@ -0,0 +1,12 @@
+package com.inmobi.rpc;
+
+/**
+ * A request did not complete before its deadline, or its deadline had already passed
+ * before it could be sent.
+ */
+public class DeadlineExceededException extends RpcException {
+
+    public DeadlineExceededException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,203 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Health of a composite service, which is healthy while any of its backends is. Backends
+ * which announce their health are counted as they change, so that {@link #isHealthy()}
+ * does not have to walk them, the others are polled on every call. The composite
+ * announces its own health as long as none of its backends has to be polled, so that a
+ * tree of composites over announcing backends answers in constant time at every level.
+ *
+ * Listeners are called on the thread of the backend announcing the change, after the
+ * aggregate has been updated.
+ */
+final class HealthAggregate {
+
+    private final class Child implements HealthListener {
+
+        final RpcService<?, ?> service;
+
+        // Guarded by HealthAggregate.this.
+        boolean announces;
+
+        // Guarded by HealthAggregate.this, counted in healthyAnnounced.
+        boolean healthy;
+
+        Child(RpcService<?, ?> service) {
+            this.service = service;
+        }
+
+        @Override
+        public void healthChanged() {
+            update(this);
+        }
+    }
+
+    /**
+     * Serializes membership changes, so that subscriptions follow them in order. Never
+     * taken by health changes.
+     */
+    private final Object membership = new Object();
+
+    private final Map<RpcService<?, ?>, Child> children = new IdentityHashMap<>();
+
+    private final List<HealthListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile int healthyAnnounced;
+
+    private volatile ImmutableList<RpcService<?, ?>> polled = ImmutableList.of();
+
+    private boolean lastAnnounces;
+
+    private boolean lastHealthy;
+
+    HealthAggregate(List<? extends RpcService<?, ?>> backends) {
+        setBackends(backends);
+    }
+
+    boolean isHealthy() {
+        if (healthyAnnounced > 0) {
+            return true;
+        }
+        for (RpcService<?, ?> backend : polled) {
+            if (backend.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of healthy backends, polling only those which do not announce.
+     */
+    int healthyCount() {
+        int count = healthyAnnounced;
+        for (RpcService<?, ?> backend : polled) {
+            count += backend.isHealthy() ? 1 : 0;
+        }
+        return count;
+    }
+
+    boolean announcesHealth() {
+        return polled.isEmpty();
+    }
+
+    void addListener(HealthListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(HealthListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Subscribes to the backends not seen before, and unsubscribes from those no longer
+     * present.
+     */
+    void setBackends(List<? extends RpcService<?, ?>> backends) {
+        synchronized (membership) {
+            List<Child> added = new ArrayList<>();
+            Collection<Child> removed;
+            synchronized (this) {
+                Map<RpcService<?, ?>, Child> previous = new IdentityHashMap<>(children);
+                children.clear();
+                for (RpcService<?, ?> backend : backends) {
+                    if (children.containsKey(backend)) {
+                        continue;
+                    }
+                    Child child = previous.remove(backend);
+                    if (child == null) {
+                        // Polled until update has read its state.
+                        child = new Child(backend);
+                        added.add(child);
+                    }
+                    children.put(backend, child);
+                }
+                removed = previous.values();
+                int healthy = 0;
+                for (Child child : children.values()) {
+                    healthy += child.healthy ? 1 : 0;
+                }
+                healthyAnnounced = healthy;
+                rebuildPolled();
+            }
+            // Outside the lock, like update, the backends may take locks of their own.
+            for (Child child : removed) {
+                child.service.removeHealthListener(child);
+            }
+            for (Child child : added) {
+                // Subscribed before reading, so that no change in between is missed.
+                child.service.addHealthListener(child);
+                update(child);
+            }
+        }
+        notifyIfChanged();
+    }
+
+    /**
+     * Unsubscribes from every backend, after which the aggregate is unhealthy.
+     */
+    void close() {
+        setBackends(ImmutableList.of());
+    }
+
+    private void update(Child child) {
+        boolean announces;
+        boolean healthy;
+        do {
+            // Read outside the lock, the backend may take locks of its own.
+            announces = child.service.announcesHealth();
+            healthy = announces && child.service.isHealthy();
+            synchronized (this) {
+                if (children.get(child.service) != child) {
+                    return;
+                }
+                if (healthy != child.healthy) {
+                    child.healthy = healthy;
+                    healthyAnnounced += healthy ? 1 : -1;
+                }
+                if (announces != child.announces) {
+                    child.announces = announces;
+                    rebuildPolled();
+                }
+            }
+            // A concurrent change may have been applied first and overwritten since.
+        } while (announces != child.service.announcesHealth()
+                || healthy != (announces && child.service.isHealthy()));
+        notifyIfChanged();
+    }
+
+    private void rebuildPolled() {
+        ImmutableList.Builder<RpcService<?, ?>> builder = ImmutableList.builder();
+        for (Child child : children.values()) {
+            if (!child.announces) {
+                builder.add(child.service);
+            }
+        }
+        polled = builder.build();
+    }
+
+    private void notifyIfChanged() {
+        boolean changed;
+        synchronized (this) {
+            boolean announces = polled.isEmpty();
+            boolean healthy = healthyAnnounced > 0;
+            changed = announces != lastAnnounces || (announces && healthy != lastHealthy);
+            lastAnnounces = announces;
+            lastHealthy = healthy;
+        }
+        if (changed) {
+            for (HealthListener listener : listeners) {
+                listener.healthChanged();
+            }
+        }
+    }
+}
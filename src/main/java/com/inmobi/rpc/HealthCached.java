@@ -0,0 +1,160 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the health of a backend, so that balancers calling {@link #isHealthy()} on every
+ * request only read a volatile field. The cached value is refreshed in the background at
+ * a fixed interval, and optionally as soon as a request fails, so that a failing backend
+ * is taken out of rotation without waiting for the next interval.
+ *
+ * Many instances can share one scheduler. Health checks which throw are treated as
+ * unhealthy. Call {@link #close()} to stop refreshing.
+ *
+ * Changes found by a refresh are announced to health listeners, so that the balancers
+ * above need not poll this service at all.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class HealthCached<Req, Resp> implements RpcService<Req, Resp>, Closeable {
+
+    private final RpcService<Req, Resp> backend;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final boolean ownScheduler;
+
+    private final boolean refreshOnFailure;
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+    private final ScheduledFuture<?> refresher;
+
+    private final List<HealthListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean healthy;
+
+    /**
+     * Refreshes on a scheduler thread of its own.
+     */
+    public HealthCached(RpcService<Req, Resp> backend, long period, TimeUnit unit) {
+        this(backend, Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("health-cached-%d")
+                .setDaemon(true)
+                .build()), true, period, unit, false);
+    }
+
+    /**
+     * @param backend whose health is cached.
+     * @param scheduler to run the health checks on, may be shared.
+     * @param period between two refreshes.
+     * @param unit of period.
+     * @param refreshOnFailure whether a failed or cancelled request triggers a refresh.
+     */
+    public HealthCached(RpcService<Req, Resp> backend,
+                        ScheduledExecutorService scheduler,
+                        long period,
+                        TimeUnit unit,
+                        boolean refreshOnFailure) {
+        this(backend, scheduler, false, period, unit, refreshOnFailure);
+    }
+
+    private HealthCached(RpcService<Req, Resp> backend,
+                         ScheduledExecutorService scheduler,
+                         boolean ownScheduler,
+                         long period,
+                         TimeUnit unit,
+                         boolean refreshOnFailure) {
+        Preconditions.checkArgument(period > 0, "Refresh period must be positive");
+        this.backend = backend;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.refreshOnFailure = refreshOnFailure;
+        refresh();
+        this.refresher = scheduler.scheduleAtFixedRate(this::refresh, period, period, unit);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return true;
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        ListenableFuture<Resp> future = backend.apply(req);
+        if (refreshOnFailure) {
+            future.addListener(() -> {
+                if (!RpcFutures.isSuccess(future)) {
+                    refreshSoon();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return future;
+    }
+
+    /**
+     * Evaluates the health of the backend now, on the calling thread.
+     */
+    public void refresh() {
+        refreshPending.set(false);
+        boolean result;
+        try {
+            result = backend.isHealthy();
+        } catch (RuntimeException e) {
+            result = false;
+        }
+        if (healthy != result) {
+            healthy = result;
+            for (HealthListener listener : listeners) {
+                listener.healthChanged();
+            }
+        }
+    }
+
+    private void refreshSoon() {
+        // Failures tend to come in bursts, one pending refresh is enough for all of them.
+        if (refreshPending.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshPending.set(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.cancel(false);
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitmap of the healthy backends of a pool, kept up to date in the background so that
+ * balancers do not call {@link RpcService#isHealthy()} on every backend per request.
+ * Finding the next healthy backend from a position skips 64 backends per word read, so
+ * a pool with long stretches of unhealthy backends costs a few reads instead of a call
+ * per backend.
+ *
+ * The bitmap is refreshed at a fixed interval, which is how stale a balancer's view of
+ * health can be. Health checks which throw are treated as unhealthy. Backends can be
+ * added, removed and replaced at any time. New members are checked before they are
+ * published, the others keep their health as of the last refresh. Call {@link #close()}
+ * to stop refreshing.
+ *
+ * Pass the same index to {@link RoundRobin} or {@link Preferred} instead of a backend list.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class HealthIndex<Req, Resp> implements Closeable {
+
+    /**
+     * Backends and their health bits, published together.
+     */
+    static class Members<Req, Resp> {
+
+        final ImmutableList<RpcService<Req, Resp>> backends;
+
+        private final AtomicLongArray words;
+
+        Members(ImmutableList<RpcService<Req, Resp>> backends) {
+            this.backends = backends;
+            this.words = new AtomicLongArray((backends.size() + 63) >>> 6);
+        }
+
+        void refresh() {
+            for (int w = 0; w < words.length(); w++) {
+                long word = 0;
+                int end = Math.min(backends.size(), (w + 1) << 6);
+                for (int i = w << 6; i < end; i++) {
+                    if (check(backends.get(i))) {
+                        word |= 1L << i;
+                    }
+                }
+                words.set(w, word);
+            }
+        }
+
+        /**
+         * Sets the bits of the backends also in previous from it, and checks the others.
+         */
+        void carryOver(Members<Req, Resp> previous) {
+            Map<RpcService<Req, Resp>, Integer> positions = new IdentityHashMap<>();
+            for (int i = 0; i < previous.backends.size(); i++) {
+                positions.putIfAbsent(previous.backends.get(i), i);
+            }
+            for (int w = 0; w < words.length(); w++) {
+                long word = 0;
+                int end = Math.min(backends.size(), (w + 1) << 6);
+                for (int i = w << 6; i < end; i++) {
+                    Integer position = positions.get(backends.get(i));
+                    if (position != null ? previous.isHealthy(position) : check(backends.get(i))) {
+                        word |= 1L << i;
+                    }
+                }
+                words.set(w, word);
+            }
+        }
+
+        private boolean isHealthy(int index) {
+            return (words.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+        private static boolean check(RpcService<?, ?> backend) {
+            try {
+                return backend.isHealthy();
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        boolean anyHealthy() {
+            for (int w = 0; w < words.length(); w++) {
+                if (words.get(w) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int healthyCount() {
+            int count = 0;
+            for (int w = 0; w < words.length(); w++) {
+                count += Long.bitCount(words.get(w));
+            }
+            return count;
+        }
+
+        /**
+         * @return index of the first healthy backend at or after from, wrapping around to
+         * the start, -1 if no backend is healthy.
+         */
+        int nextHealthy(int from) {
+            int wordCount = words.length();
+            if (wordCount == 0) {
+                return -1;
+            }
+            int w = from >>> 6;
+            long word = words.get(w) & (-1L << from);
+            // One more word than there are, for the bits before from in the first word.
+            for (int i = 0; i <= wordCount; i++) {
+                if (word != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+                w = w + 1 == wordCount ? 0 : w + 1;
+                word = words.get(w);
+            }
+            return -1;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+
+    private final boolean ownScheduler;
+
+    private final ScheduledFuture<?> refresher;
+
+    private volatile Members<Req, Resp> members;
+
+    /**
+     * Refreshes on a scheduler thread of its own.
+     */
+    public HealthIndex(ImmutableList<RpcService<Req, Resp>> backends, long period, TimeUnit unit) {
+        this(backends, Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("health-index-%d")
+                .setDaemon(true)
+                .build()), true, period, unit);
+    }
+
+    /**
+     * @param backends whose health is indexed.
+     * @param scheduler to run the health checks on, may be shared.
+     * @param period between two refreshes.
+     * @param unit of period.
+     */
+    public HealthIndex(ImmutableList<RpcService<Req, Resp>> backends,
+                       ScheduledExecutorService scheduler,
+                       long period,
+                       TimeUnit unit) {
+        this(backends, scheduler, false, period, unit);
+    }
+
+    private HealthIndex(ImmutableList<RpcService<Req, Resp>> backends,
+                        ScheduledExecutorService scheduler,
+                        boolean ownScheduler,
+                        long period,
+                        TimeUnit unit) {
+        Preconditions.checkArgument(period > 0, "Refresh period must be positive");
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.members = checked(backends);
+        this.refresher = scheduler.scheduleAtFixedRate(this::refresh, period, period, unit);
+    }
+
+    private static <Req, Resp> Members<Req, Resp> checked(ImmutableList<RpcService<Req, Resp>> backends) {
+        Members<Req, Resp> members = new Members<>(backends);
+        members.refresh();
+        return members;
+    }
+
+    private Members<Req, Resp> carriedOver(ImmutableList<RpcService<Req, Resp>> backends) {
+        Members<Req, Resp> next = new Members<>(backends);
+        next.carryOver(members);
+        return next;
+    }
+
+    Members<Req, Resp> members() {
+        return members;
+    }
+
+    /**
+     * Evaluates the health of every backend now, on the calling thread.
+     */
+    public void refresh() {
+        members.refresh();
+    }
+
+    /**
+     * @return number of backends healthy as of the last refresh.
+     */
+    public int getHealthyCount() {
+        return members.healthyCount();
+    }
+
+    /**
+     * @return the backends currently indexed.
+     */
+    public ImmutableList<RpcService<Req, Resp>> getBackends() {
+        return members.backends;
+    }
+
+    /**
+     * Indexes backend as well, after checking its health.
+     */
+    public synchronized void addBackend(RpcService<Req, Resp> backend) {
+        members = carriedOver(ImmutableList.<RpcService<Req, Resp>>builder()
+                .addAll(members.backends)
+                .add(backend)
+                .build());
+    }
+
+    /**
+     * Drops backend from the index.
+     *
+     * @throws IllegalArgumentException if backend is not part of this index.
+     */
+    public synchronized void removeBackend(RpcService<Req, Resp> backend) {
+        ImmutableList.Builder<RpcService<Req, Resp>> builder = ImmutableList.builder();
+        boolean removed = false;
+        for (RpcService<Req, Resp> current : members.backends) {
+            if (!removed && current == backend) {
+                removed = true;
+            } else {
+                builder.add(current);
+            }
+        }
+        Preconditions.checkArgument(removed, "Unknown backend");
+        members = carriedOver(builder.build());
+    }
+
+    /**
+     * Replaces the set of backends in one step, after checking the health of those not
+     * indexed before.
+     */
+    public synchronized void replaceBackends(List<RpcService<Req, Resp>> backends) {
+        members = carriedOver(ImmutableList.copyOf(backends));
+    }
+
+    @Override
+    public void close() {
+        refresher.cancel(false);
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.inmobi.rpc;
+
+/**
+ * Called by a service which announces its health, see {@link RpcService#announcesHealth()},
+ * after its health or whether it announces it has changed. The new state is read from the
+ * service, so that listeners are not confused by notifications arriving out of order.
+ */
+@FunctionalInterface
+public interface HealthListener {
+
+    void healthChanged();
+}
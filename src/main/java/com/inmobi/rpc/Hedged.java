@@ -0,0 +1,244 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Least loaded balancer which hedges slow requests. If a request is not completed after
+ * the hedge delay, a backup request is sent to a different backend, the first successful
+ * response is returned and the other request is cancelled. If all attempts fail, the
+ * failure of the last one is returned.
+ *
+ * The hedge delay follows a percentile (usually 95) of the latencies of recent
+ * successful requests, but never goes below the configured minimum, which is also used
+ * until enough samples have been seen. Backup requests are limited by a budget, a ratio
+ * of 0.05 allows at most 5% extra load.
+ *
+ * A {@link Deadline} present when the request is made also applies to the backup
+ * request, which is not sent once the deadline has passed.
+ *
+ * This has to be done at the balancer level, because only here it is known which
+ * backend the first request went to.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Hedged<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static final int MAX_BUDGET_BURST = 10;
+
+    private final ImmutableList<TrackedService<Req, Resp>> backends;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Ticker ticker;
+
+    private final double percentile;
+
+    private final long minDelayNanos;
+
+    private final LatencyWindow latencies;
+
+    private final int refreshEvery;
+
+    private final RequestBudget budget;
+
+    private volatile long hedgeDelayNanos;
+
+    /**
+     * Hedges at the 95th percentile over the last 1000 responses, with at most 5% extra
+     * load.
+     */
+    public Hedged(List<RpcService<Req, Resp>> backends,
+                  ScheduledExecutorService scheduler,
+                  long minDelay,
+                  TimeUnit unit) {
+        this(backends, scheduler, 95, 1000, 0.05, minDelay, unit, Ticker.systemTicker());
+    }
+
+    /**
+     * @param backends to balance across, at least two for hedging to happen.
+     * @param scheduler to fire the hedge timers on, backup requests are sent from it.
+     * @param percentile of recent latencies to use as hedge delay, between 0 and 100.
+     * @param windowSize number of recent responses the percentile is computed over.
+     * @param maxHedgeRatio backup requests allowed per request.
+     * @param minDelay lower bound of the hedge delay.
+     * @param unit of minDelay.
+     * @param ticker to measure latencies with.
+     */
+    public Hedged(List<RpcService<Req, Resp>> backends,
+                  ScheduledExecutorService scheduler,
+                  double percentile,
+                  int windowSize,
+                  double maxHedgeRatio,
+                  long minDelay,
+                  TimeUnit unit,
+                  Ticker ticker) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(percentile > 0 && percentile <= 100, "Percentile must be in (0, 100]");
+        Preconditions.checkArgument(minDelay >= 0, "Minimum delay must not be negative");
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.scheduler = scheduler;
+        this.ticker = ticker;
+        this.percentile = percentile;
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.latencies = new LatencyWindow(windowSize);
+        this.refreshEvery = Math.max(1, windowSize / 10);
+        this.budget = new RequestBudget(maxHedgeRatio, MAX_BUDGET_BURST);
+        this.hedgeDelayNanos = minDelayNanos;
+    }
+
+    /**
+     * @return the delay after which a request is currently hedged.
+     */
+    public long getHedgeDelay(TimeUnit unit) {
+        return unit.convert(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (TrackedService<Req, Resp> backend : backends) {
+            if (backend.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        TrackedService<Req, Resp> primary = TrackedService.leastLoaded(backends, ImmutableList.of());
+        if (primary == null) {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+        budget.deposit();
+        return new HedgedCall(req, Deadline.current()).start(primary);
+    }
+
+    private class HedgedCall {
+
+        private final Req req;
+
+        private final Deadline deadline;
+
+        private final SettableFuture<Resp> result = SettableFuture.create();
+
+        /**
+         * Attempts which are in flight. Once it drops to zero it stays there, and no
+         * more attempts are started.
+         */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private volatile ListenableFuture<Resp> primaryFuture;
+
+        private volatile ListenableFuture<Resp> backupFuture;
+
+        private volatile ScheduledFuture<?> timer;
+
+        HedgedCall(Req req, Deadline deadline) {
+            this.req = req;
+            this.deadline = deadline;
+        }
+
+        ListenableFuture<Resp> start(TrackedService<Req, Resp> primary) {
+            long startNanos = ticker.read();
+            ListenableFuture<Resp> future = primary.apply(req);
+            if (future.isDone()) {
+                onComplete(future, startNanos);
+                return future;
+            }
+            primaryFuture = future;
+            result.addListener(this::cleanUp, MoreExecutors.directExecutor());
+            future.addListener(() -> onComplete(future, startNanos), MoreExecutors.directExecutor());
+            if (!result.isDone()) {
+                try {
+                    timer = scheduler.schedule(() -> hedge(primary), hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Scheduler shut down, the primary alone settles the result.
+                    return result;
+                }
+                if (result.isDone()) {
+                    timer.cancel(false);
+                }
+            }
+            return result;
+        }
+
+        private void hedge(TrackedService<Req, Resp> primary) {
+            if (result.isDone() || (deadline != null && deadline.isExpired())) {
+                return;
+            }
+            TrackedService<Req, Resp> backup = TrackedService.leastLoaded(backends, ImmutableList.of(primary));
+            if (backup == null) {
+                return;
+            }
+            if (pending.getAndUpdate(p -> p == 0 ? 0 : p + 1) == 0) {
+                return;
+            }
+            // Withdrawn only once the backup is certain to be sent, so no token is wasted.
+            if (!budget.tryWithdraw()) {
+                if (pending.decrementAndGet() == 0) {
+                    // The primary failed meanwhile and left the result to this attempt.
+                    result.setFuture(primaryFuture);
+                }
+                return;
+            }
+            long startNanos = ticker.read();
+            ListenableFuture<Resp> future;
+            if (deadline == null) {
+                future = backup.apply(req);
+            } else {
+                future = Deadline.runWith(deadline, () -> backup.apply(req));
+            }
+            backupFuture = future;
+            future.addListener(() -> onComplete(future, startNanos), MoreExecutors.directExecutor());
+            if (result.isDone()) {
+                future.cancel(true);
+            }
+        }
+
+        private void onComplete(ListenableFuture<Resp> future, long startNanos) {
+            if (RpcFutures.isSuccess(future)) {
+                recordLatency(ticker.read() - startNanos);
+                result.setFuture(future);
+            } else if (pending.decrementAndGet() == 0) {
+                result.setFuture(future);
+            }
+        }
+
+        private void cleanUp() {
+            ScheduledFuture<?> timer = this.timer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            cancel(primaryFuture);
+            cancel(backupFuture);
+        }
+
+        private void cancel(ListenableFuture<Resp> future) {
+            if (future != null && !future.isDone()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        long count = latencies.record(nanos);
+        if (count % refreshEvery == 0) {
+            hedgeDelayNanos = Math.max(minDelayNanos, latencies.percentile(percentile));
+        }
+    }
+}
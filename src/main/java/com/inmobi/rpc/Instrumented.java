@@ -0,0 +1,197 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts requests passing through a service, how they complete, and how long they take.
+ * Any service can be wrapped: a backend below a balancer, to see how traffic is spread
+ * and where it is outstanding, a balancer, or a throttler.
+ *
+ * A request which is cancelled before apply returns, which is how throttlers reject
+ * requests, is counted as rejected rather than cancelled. Counters are LongAdders, so
+ * recording does not contend between threads. Use {@link #snapshot()} to export them.
+ *
+ * A request which is already done when apply returns is recorded right away, without
+ * allocating. Otherwise its start time has to be kept until it completes, which takes one
+ * listener object per request, on top of the node Guava allocates for any listener.
+ * {@code InstrumentedBenchmark} measures both paths.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Instrumented<Req, Resp> implements RpcService<Req, Resp> {
+
+    private final RpcService<Req, Resp> backend;
+
+    private final Ticker ticker;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder inFlight = new LongAdder();
+
+    private final LongAdder successes = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder cancellations = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public Instrumented(RpcService<Req, Resp> backend) {
+        this(backend, Ticker.systemTicker());
+    }
+
+    public Instrumented(RpcService<Req, Resp> backend, Ticker ticker) {
+        this.backend = backend;
+        this.ticker = ticker;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return backend.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return backend.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        backend.addHealthListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        backend.removeHealthListener(listener);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        requests.increment();
+        long start = ticker.read();
+        ListenableFuture<Resp> future;
+        try {
+            future = backend.apply(req);
+        } catch (Exception e) {
+            failures.increment();
+            return Futures.immediateFailedFuture(e);
+        }
+        if (future.isDone()) {
+            if (future.isCancelled()) {
+                rejections.increment();
+            } else {
+                record(future, start);
+            }
+            return future;
+        }
+        inFlight.increment();
+        future.addListener(() -> {
+            inFlight.decrement();
+            record(future, start);
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private void record(ListenableFuture<Resp> future, long start) {
+        if (future.isCancelled()) {
+            cancellations.increment();
+        } else if (RpcFutures.isSuccess(future)) {
+            successes.increment();
+            latencies.record(ticker.read() - start);
+        } else {
+            failures.increment();
+        }
+    }
+
+    /**
+     * @return current values of all counters. Counters are read one after another, so
+     * requests completing meanwhile may be seen by some and not others.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(requests.sum(), inFlight.sum(), successes.sum(), failures.sum(),
+                cancellations.sum(), rejections.sum(), latencies.snapshot());
+    }
+
+    /**
+     * Counters of an instrumented service at some point in time.
+     */
+    public static final class Snapshot {
+
+        private final long requests;
+        private final long inFlight;
+        private final long successes;
+        private final long failures;
+        private final long cancellations;
+        private final long rejections;
+        private final LatencyHistogram.Snapshot latencies;
+
+        private Snapshot(long requests, long inFlight, long successes, long failures,
+                         long cancellations, long rejections, LatencyHistogram.Snapshot latencies) {
+            this.requests = requests;
+            this.inFlight = inFlight;
+            this.successes = successes;
+            this.failures = failures;
+            this.cancellations = cancellations;
+            this.rejections = rejections;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return number of requests sent to the service, i.e. times it was selected.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        /**
+         * @return requests which completed with an exception, or threw one.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return requests cancelled after being accepted, for example by a timeout or a
+         * hedge.
+         */
+        public long getCancellations() {
+            return cancellations;
+        }
+
+        /**
+         * @return requests cancelled right away, for example by a throttler.
+         */
+        public long getRejections() {
+            return rejections;
+        }
+
+        /**
+         * @return latencies of successful requests.
+         */
+        public LatencyHistogram.Snapshot getLatencies() {
+            return latencies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d inFlight=%d successes=%d failures=%d cancellations=%d rejections=%d",
+                    requests, inFlight, successes, failures, cancellations, rejections);
+        }
+    }
+}
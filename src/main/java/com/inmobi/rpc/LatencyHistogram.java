@@ -0,0 +1,129 @@
+package com.inmobi.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies. Every power of two range of nanoseconds is split
+ * into 8 equal buckets, so any value is reported within 12.5% of its true value, from a
+ * nanosecond up to more than an hour. Recording is a single LongAdder increment, which
+ * does not allocate and scales with the number of recording threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Largest recorded power of two, 2^42 nanos is about 73 minutes. Longer values are
+     * counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 42;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[index(nanos)].increment();
+    }
+
+    static int index(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return largest value which falls in the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BITS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return copy of the counts recorded so far. Values recorded concurrently may or may
+     * not be included.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * Immutable view of a histogram at some point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.total = total;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return upper bound of the bucket the percentile falls in, 0 if nothing was
+         * recorded.
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return unit.convert(upperBound(i), TimeUnit.NANOSECONDS);
+                }
+            }
+            return unit.convert(upperBound(counts.length - 1), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return number of values recorded in each bucket, and the largest value of each
+         * bucket in nanoseconds, for exporting to other metric systems.
+         */
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public static long getUpperBoundNanos(int bucket) {
+            return upperBound(bucket);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window over the most recent latency samples. Recording is a single atomic
+ * increment and store, percentiles are computed from a sorted copy of the window, so they
+ * should be computed once in a while and cached, not on every request.
+ */
+class LatencyWindow {
+
+    private final AtomicLongArray samples;
+
+    private final AtomicLong count = new AtomicLong(0);
+
+    LatencyWindow(int size) {
+        Preconditions.checkArgument(size > 0, "Window size must be positive");
+        this.samples = new AtomicLongArray(size);
+    }
+
+    /**
+     * @return number of samples recorded so far, including the ones no longer in the window.
+     */
+    long record(long nanos) {
+        long index = count.getAndIncrement();
+        samples.set((int) (index % samples.length()), nanos);
+        return index + 1;
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the latency at the percentile in nanoseconds, zero if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        int size = (int) Math.min(count.get(), samples.length());
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+}
@@ -5,8 +5,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,77 +19,85 @@ import java.util.concurrent.atomic.AtomicInteger;
  * much faster than good servers, this may not be the right kind of balancing that is
  * needed, because it will increase the chance of new requests going to bad server. If
  * you could detect the bad servers and mark the backend as unhealthy promptly this is
- * not an issue.
+ * not an issue, for example by wrapping each backend in a {@link CircuitBreaker}.
+ *
+ * Backends can be added and removed at any time without losing the outstanding request
+ * counts of the others. Calls read the current backend list without locking. A removed
+ * backend gets no new requests, and is drained once the requests already sent to it have
+ * completed, which the future returned on removal tells.
+ *
+ * The health of this balancer is kept up to date from the backends which announce theirs,
+ * see {@link RpcService#announcesHealth()}, and it announces its own if all of them do.
  *
  * @param <Req> Request object type.
  * @param <Resp> Response object type.
  */
-public class LeastLoaded<Req, Resp> implements RpcService<Req, Resp> {
+public class LeastLoaded<Req, Resp> implements RpcService<Req, Resp>, Closeable {
 
     private final AtomicInteger loopCounter;
 
-    private class RpcWrapper {
-
-        final RpcService<Req, Resp> service;
-        final AtomicInteger outboundRequests = new AtomicInteger(0);
-
-        public RpcWrapper(RpcService<Req, Resp> service) {
-            this.service = service;
-        }
-
-        public ListenableFuture<Resp> call(final Req req) {
-            outboundRequests.incrementAndGet();
-            ListenableFuture<Resp> serverFuture = service.apply(req);
-            serverFuture.addListener(
-                    outboundRequests::decrementAndGet,
-                    MoreExecutors.directExecutor());
-
-            return serverFuture;
-        }
-
-        public boolean isHealthy() {
-            return service.isHealthy();
-        }
-    }
+    private volatile ImmutableList<TrackedService<Req, Resp>> backends;
 
-    private final List<RpcWrapper> backends;
+    private final HealthAggregate health;
 
     public LeastLoaded(List<RpcService<Req, Resp>> backends) {
         Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
-        this.backends = ImmutableList.copyOf(Lists.transform(backends, RpcWrapper::new));
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.health = new HealthAggregate(backends);
         this.loopCounter = new AtomicInteger(ThreadLocalRandom.current().nextInt(backends.size()));
     }
 
     public LeastLoaded(List<RpcService<Req, Resp>> backends, int startingPoint) {
         Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
         Preconditions.checkElementIndex(startingPoint, backends.size());
-        this.backends = ImmutableList.copyOf(Lists.transform(backends, RpcWrapper::new));
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.health = new HealthAggregate(backends);
         this.loopCounter = new AtomicInteger(startingPoint);
     }
 
     @Override
     public ListenableFuture<Resp> apply(Req req) {
-        RpcWrapper host = select();
+        TrackedService<Req, Resp> host = select();
         if (host != null) {
-            return host.call(req);
+            return host.apply(req);
         } else {
             return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
         }
     }
 
     public boolean isHealthy() {
-        for (RpcWrapper rpcWrapper : backends) {
-            if (rpcWrapper.isHealthy()) {
-                return true;
-            }
-        }
-        return false;
+        return health.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return health.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        health.addListener(listener);
     }
 
-    private RpcWrapper select() {
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        health.removeListener(listener);
+    }
+
+    /**
+     * Unsubscribes from the health of the backends, which would otherwise keep this
+     * balancer reachable for as long as they live. It is unhealthy afterwards.
+     */
+    @Override
+    public void close() {
+        health.close();
+    }
+
+    private TrackedService<Req, Resp> select() {
 
         int cost = Integer.MAX_VALUE;
-        RpcWrapper ret = null;
+        TrackedService<Req, Resp> ret = null;
+        List<TrackedService<Req, Resp>> backends = this.backends;
         int size = backends.size();
 
         int start = loopCounter.get();
@@ -96,9 +105,9 @@ public class LeastLoaded<Req, Resp> implements RpcService<Req, Resp> {
 
         for (int i = 0; i < size; i++) {
             int j = (start + i) % size;
-            RpcWrapper rpcWrapper = backends.get(j);
+            TrackedService<Req, Resp> rpcWrapper = backends.get(j);
             if (rpcWrapper.isHealthy()) {
-                int rpcCost = rpcWrapper.outboundRequests.get();
+                int rpcCost = rpcWrapper.getOutboundRequests();
                 if (rpcCost < cost) {
                     cost = rpcCost;
                     ret = rpcWrapper;
@@ -111,4 +120,71 @@ public class LeastLoaded<Req, Resp> implements RpcService<Req, Resp> {
 
         return ret;
     }
+
+    /**
+     * Starts sending requests to backend as well.
+     */
+    public synchronized void addBackend(RpcService<Req, Resp> backend) {
+        backends = ImmutableList.<TrackedService<Req, Resp>>builder()
+                .addAll(backends)
+                .add(new TrackedService<>(backend))
+                .build();
+        health.setBackends(getBackends());
+    }
+
+    /**
+     * Stops sending new requests to backend.
+     *
+     * @return future which completes once backend is drained, see above.
+     * @throws IllegalArgumentException if backend is not part of this balancer.
+     */
+    public synchronized ListenableFuture<Void> removeBackend(RpcService<Req, Resp> backend) {
+        ImmutableList.Builder<TrackedService<Req, Resp>> builder = ImmutableList.builder();
+        TrackedService<Req, Resp> removed = null;
+        for (TrackedService<Req, Resp> tracked : backends) {
+            if (removed == null && tracked.service == backend) {
+                removed = tracked;
+            } else {
+                builder.add(tracked);
+            }
+        }
+        Preconditions.checkArgument(removed != null, "Unknown backend");
+        backends = builder.build();
+        health.setBackends(getBackends());
+        return removed.drain();
+    }
+
+    /**
+     * Replaces the set of backends in one step. Backends present before and after, by
+     * identity, keep their outstanding request counts.
+     *
+     * @return future which completes once every backend no longer present is drained.
+     */
+    public synchronized ListenableFuture<Void> replaceBackends(List<RpcService<Req, Resp>> newBackends) {
+        Preconditions.checkArgument(!newBackends.isEmpty(), "At least one backend must be present");
+        List<TrackedService<Req, Resp>> removed = new ArrayList<>();
+        backends = TrackedService.carryOver(backends, newBackends, removed);
+        health.setBackends(newBackends);
+        return TrackedService.drainAll(removed);
+    }
+
+    /**
+     * @return number of requests sent to backend which have not completed yet.
+     * @throws IllegalArgumentException if backend is not part of this balancer.
+     */
+    public int getOutboundRequests(RpcService<Req, Resp> backend) {
+        for (TrackedService<Req, Resp> tracked : backends) {
+            if (tracked.service == backend) {
+                return tracked.getOutboundRequests();
+            }
+        }
+        throw new IllegalArgumentException("Unknown backend " + backend);
+    }
+
+    /**
+     * @return the backends currently requests are sent to.
+     */
+    public List<RpcService<Req, Resp>> getBackends() {
+        return Lists.transform(backends, tracked -> tracked.service);
+    }
 }
@@ -0,0 +1,167 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps traffic as close to the client as the load allows. Each backend has a location,
+ * a list of labels from the widest domain to the narrowest, for example zone, rack and
+ * switch. Labels only need to be unique within their parent domain. Backends are ranked
+ * by how many leading labels they share with the client's own location.
+ *
+ * Requests go to the most local backends while the load of that domain, outstanding
+ * requests over the capacity of its healthy backends, is below the spillover threshold.
+ * Beyond that the next wider domain is included, and so on. Within the chosen domain the
+ * backend with the smallest (outboundRequests + 1) / capacity is picked, so the spilled
+ * over traffic is shared in proportion to capacity, and domains with fewer or smaller
+ * servers get less of it. If every domain is over the threshold, all backends are
+ * balanced together.
+ *
+ * Capacity is the number of concurrent requests a backend handles comfortably, or any
+ * number proportional to it as long as the threshold is chosen accordingly.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class LocalityAware<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static class LocatedService<Req, Resp> extends TrackedService<Req, Resp> {
+
+        final int capacity;
+
+        LocatedService(RpcService<Req, Resp> service, int capacity) {
+            super(service);
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Backends grouped by the number of labels shared with the local location, the most
+     * local group first. Empty groups are left out.
+     */
+    private final ImmutableList<ImmutableList<LocatedService<Req, Resp>>> tiers;
+
+    private final double spilloverThreshold;
+
+    /**
+     * Spills over once a domain has 80% of its capacity in flight.
+     */
+    public LocalityAware(List<RpcService<Req, Resp>> backends,
+                         List<? extends List<String>> locations,
+                         List<Integer> capacities,
+                         List<String> localLocation) {
+        this(backends, locations, capacities, localLocation, 0.8);
+    }
+
+    /**
+     * @param backends to balance across.
+     * @param locations of each backend, widest domain first.
+     * @param capacities of each backend, must be positive.
+     * @param localLocation location of this client, widest domain first.
+     * @param spilloverThreshold fraction of the capacity of a domain which may be in flight
+     *                           before requests spill over to the next wider domain.
+     */
+    public LocalityAware(List<RpcService<Req, Resp>> backends,
+                         List<? extends List<String>> locations,
+                         List<Integer> capacities,
+                         List<String> localLocation,
+                         double spilloverThreshold) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(locations.size() == backends.size(), "Locations must match backend count");
+        Preconditions.checkArgument(capacities.size() == backends.size(), "Capacities must match backend count");
+        Preconditions.checkArgument(spilloverThreshold > 0, "Spillover threshold must be positive");
+
+        int depth = localLocation.size();
+        List<ImmutableList.Builder<LocatedService<Req, Resp>>> builders = new ArrayList<>();
+        for (int i = 0; i <= depth; i++) {
+            builders.add(ImmutableList.builder());
+        }
+        for (int i = 0; i < backends.size(); i++) {
+            int capacity = capacities.get(i);
+            Preconditions.checkArgument(capacity > 0, "Capacities must be positive");
+            int shared = sharedPrefix(locations.get(i), localLocation);
+            builders.get(depth - shared).add(new LocatedService<>(backends.get(i), capacity));
+        }
+        ImmutableList.Builder<ImmutableList<LocatedService<Req, Resp>>> tiers = ImmutableList.builder();
+        for (ImmutableList.Builder<LocatedService<Req, Resp>> builder : builders) {
+            ImmutableList<LocatedService<Req, Resp>> tier = builder.build();
+            if (!tier.isEmpty()) {
+                tiers.add(tier);
+            }
+        }
+        this.tiers = tiers.build();
+        this.spilloverThreshold = spilloverThreshold;
+    }
+
+    private static int sharedPrefix(List<String> location, List<String> localLocation) {
+        int shared = 0;
+        int max = Math.min(location.size(), localLocation.size());
+        while (shared < max && location.get(shared).equals(localLocation.get(shared))) {
+            shared++;
+        }
+        return shared;
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        LocatedService<Req, Resp> host = select();
+        if (host != null) {
+            return host.apply(req);
+        } else {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (List<LocatedService<Req, Resp>> tier : tiers) {
+            for (LocatedService<Req, Resp> backend : tier) {
+                if (backend.isHealthy()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private LocatedService<Req, Resp> select() {
+        // Load and healthy capacity of the domain considered so far, which widens by a tier
+        // at a time.
+        long domainLoad = 0;
+        long domainCapacity = 0;
+
+        // Cost of the best so far is bestLoad / bestCapacity, compared by cross multiplication.
+        long bestLoad = 1;
+        long bestCapacity = 0;
+        LocatedService<Req, Resp> ret = null;
+
+        for (List<LocatedService<Req, Resp>> tier : tiers) {
+            int size = tier.size();
+            int start = ThreadLocalRandom.current().nextInt(size);
+            for (int i = 0; i < size; i++) {
+                LocatedService<Req, Resp> backend = tier.get((start + i) % size);
+                if (backend.isHealthy()) {
+                    int outbound = backend.getOutboundRequests();
+                    domainLoad += outbound;
+                    domainCapacity += backend.capacity;
+                    long load = outbound + 1L;
+                    if (load * bestCapacity < bestLoad * backend.capacity) {
+                        bestLoad = load;
+                        bestCapacity = backend.capacity;
+                        ret = backend;
+                    }
+                }
+            }
+            if (ret != null && domainLoad < spilloverThreshold * domainCapacity) {
+                return ret;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,42 @@
+package com.inmobi.rpc;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Count of outstanding requests, alone on its cache line. Balancers read the counts of
+ * all backends on every call while completions update them from other cores, so counts
+ * of neighbouring backends must not share a line. The JVM may reorder fields within a
+ * class but not across a class hierarchy, hence the padding in super and sub classes.
+ */
+abstract class OutboundCounter extends OutboundCounterValue {
+
+    private static final AtomicIntegerFieldUpdater<OutboundCounterValue> OUTBOUND =
+            AtomicIntegerFieldUpdater.newUpdater(OutboundCounterValue.class, "outboundRequests");
+
+    long p10, p11, p12, p13, p14, p15, p16;
+
+    int getOutboundRequests() {
+        return outboundRequests;
+    }
+
+    void incrementOutbound() {
+        OUTBOUND.incrementAndGet(this);
+    }
+
+    /**
+     * @return count after the decrement.
+     */
+    int decrementOutbound() {
+        return OUTBOUND.decrementAndGet(this);
+    }
+}
+
+abstract class OutboundCounterValue extends OutboundCounterPadding {
+
+    volatile int outboundRequests;
+}
+
+abstract class OutboundCounterPadding {
+
+    long p00, p01, p02, p03, p04, p05, p06;
+}
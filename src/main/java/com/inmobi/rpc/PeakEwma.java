@@ -0,0 +1,138 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balances by expected completion time instead of queue depth. Each backend keeps a peak
+ * sensitive exponentially weighted moving average of its response latency: a slower
+ * response raises the average to it immediately, faster ones pull it down gradually with
+ * a time constant of decayTime. Without responses the average decays towards zero with
+ * the same time constant, so that a backend which stopped getting requests after a slow
+ * or failed response is tried again. The cost of a backend is this average multiplied by its
+ * outstanding requests plus one, and a call goes to the cheaper of two randomly sampled
+ * backends, the same way as {@link PowerOfTwoChoices}.
+ *
+ * Failed and cancelled responses are counted with at least failurePenalty as latency, so
+ * that a backend which fails fast does not look attractive as it would to
+ * {@link LeastLoaded}. Backends without any response yet have zero cost, so each of them
+ * is tried early on.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class PeakEwma<Req, Resp> implements RpcService<Req, Resp> {
+
+    private final class EwmaService extends TrackedService<Req, Resp> {
+
+        private volatile double costNanos = 0;
+
+        private volatile long stampNanos;
+
+        EwmaService(RpcService<Req, Resp> service) {
+            super(service);
+            this.stampNanos = ticker.read();
+        }
+
+        @Override
+        public ListenableFuture<Resp> apply(Req req) {
+            long start = ticker.read();
+            ListenableFuture<Resp> future = super.apply(req);
+            future.addListener(() -> observe(future, start), MoreExecutors.directExecutor());
+            return future;
+        }
+
+        private void observe(ListenableFuture<Resp> future, long start) {
+            long now = ticker.read();
+            long rtt = now - start;
+            if (!RpcFutures.isSuccess(future)) {
+                rtt = Math.max(rtt, failurePenaltyNanos);
+            }
+            synchronized (this) {
+                double elapsed = Math.max(0, now - stampNanos);
+                stampNanos = now;
+                double cost = costNanos;
+                if (rtt > cost) {
+                    costNanos = rtt;
+                } else {
+                    double w = Math.exp(-elapsed / decayNanos);
+                    costNanos = cost * w + rtt * (1 - w);
+                }
+            }
+        }
+
+        double getCost() {
+            double elapsed = Math.max(0, ticker.read() - stampNanos);
+            return costNanos * Math.exp(-elapsed / decayNanos) * (getOutboundRequests() + 1);
+        }
+    }
+
+    private final Ticker ticker;
+
+    private final double decayNanos;
+
+    private final long failurePenaltyNanos;
+
+    private final ImmutableList<EwmaService> backends;
+
+    /**
+     * Decays over 10 seconds, with one second of penalty for failures.
+     */
+    public PeakEwma(List<RpcService<Req, Resp>> backends) {
+        this(backends, 10, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, Ticker.systemTicker());
+    }
+
+    /**
+     * @param backends to balance across.
+     * @param decayTime time constant of the moving average.
+     * @param decayUnit unit of decayTime.
+     * @param failurePenalty minimum latency accounted for a failed or cancelled response.
+     * @param failurePenaltyUnit unit of failurePenalty.
+     * @param ticker to measure latencies with.
+     */
+    public PeakEwma(List<RpcService<Req, Resp>> backends,
+                    long decayTime,
+                    TimeUnit decayUnit,
+                    long failurePenalty,
+                    TimeUnit failurePenaltyUnit,
+                    Ticker ticker) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(decayTime > 0, "Decay time must be positive");
+        this.ticker = ticker;
+        this.decayNanos = decayUnit.toNanos(decayTime);
+        this.failurePenaltyNanos = failurePenaltyUnit.toNanos(failurePenalty);
+
+        ImmutableList.Builder<EwmaService> builder = ImmutableList.builder();
+        for (RpcService<Req, Resp> backend : backends) {
+            builder.add(new EwmaService(backend));
+        }
+        this.backends = builder.build();
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        EwmaService host = PowerOfTwoChoices.sample(backends, 2, EwmaService::getCost);
+        if (host != null) {
+            return host.apply(req);
+        } else {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (EwmaService backend : backends) {
+            if (backend.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Approximate least loaded balancing in constant time. Instead of scanning every backend
+ * like {@link LeastLoaded}, each call samples a few backends at random (two by default)
+ * and forwards to the one with the fewest outstanding requests. Sampling two instead of
+ * one is what keeps the maximum load close to that of full least loaded balancing,
+ * while the cost per call no longer depends on the number of backends.
+ *
+ * When there are no more backends than choices, all of them are compared. Otherwise
+ * unhealthy samples are redrawn a few times. Only if that keeps failing, which happens
+ * when most of the backends are unhealthy, a linear scan from a random position is
+ * done so that a healthy backend is still found if there is one.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class PowerOfTwoChoices<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static final int MAX_DRAWS_PER_CHOICE = 3;
+
+    private final ImmutableList<TrackedService<Req, Resp>> backends;
+
+    private final int choices;
+
+    public PowerOfTwoChoices(List<RpcService<Req, Resp>> backends) {
+        this(backends, 2);
+    }
+
+    /**
+     * @param backends to balance across.
+     * @param choices number of backends sampled per call, at least one.
+     */
+    public PowerOfTwoChoices(List<RpcService<Req, Resp>> backends, int choices) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(choices > 0, "At least one choice must be sampled");
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.choices = choices;
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        TrackedService<Req, Resp> host = select();
+        if (host != null) {
+            return host.apply(req);
+        } else {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (TrackedService<Req, Resp> backend : backends) {
+            if (backend.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TrackedService<Req, Resp> select() {
+        return sample(backends, choices, TrackedService::getOutboundRequests);
+    }
+
+    /**
+     * Samples choices healthy backends at random and returns the one of least cost, null if
+     * no backend is healthy.
+     */
+    static <T extends RpcService<?, ?>> T sample(List<T> backends, int choices, ToDoubleFunction<T> costFunction) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int size = backends.size();
+
+        T ret = null;
+        double cost = Double.MAX_VALUE;
+
+        if (choices >= size) {
+            // Sampling would see every backend anyway. Random start spreads the ties.
+            int start = random.nextInt(size);
+            for (int i = 0; i < size; i++) {
+                T candidate = backends.get((start + i) % size);
+                if (candidate.isHealthy()) {
+                    double candidateCost = costFunction.applyAsDouble(candidate);
+                    if (ret == null || candidateCost < cost) {
+                        cost = candidateCost;
+                        ret = candidate;
+                    }
+                }
+            }
+            return ret;
+        }
+
+        int first = -1;
+        int draws = choices * MAX_DRAWS_PER_CHOICE;
+        for (int sampled = 0; sampled < choices && draws > 0; draws--) {
+            // Once a healthy backend is sampled, the others are drawn among the rest, so
+            // that two choices never compare a backend with itself.
+            int index = first < 0 ? random.nextInt(size) : (first + 1 + random.nextInt(size - 1)) % size;
+            T candidate = backends.get(index);
+            if (candidate.isHealthy()) {
+                if (first < 0) {
+                    first = index;
+                }
+                sampled++;
+                double candidateCost = costFunction.applyAsDouble(candidate);
+                if (ret == null || candidateCost < cost) {
+                    cost = candidateCost;
+                    ret = candidate;
+                }
+            }
+        }
+
+        if (ret == null) {
+            int start = random.nextInt(size);
+            for (int i = 0; i < size; i++) {
+                T candidate = backends.get((start + i) % size);
+                if (candidate.isHealthy()) {
+                    return candidate;
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -3,28 +3,86 @@ package com.inmobi.rpc;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.Closeable;
 import java.util.List;
 
-public class Preferred<Req, Resp> implements RpcService<Req, Resp> {
+public class Preferred<Req, Resp> implements RpcService<Req, Resp>, Closeable {
 
     private final List<RpcService<Req, Resp>> backends;
 
+    private final HealthIndex<Req, Resp> health;
+
+    private final HealthAggregate aggregate;
+
+    /**
+     * The health of this service is kept up to date from the backends which announce
+     * theirs, see {@link RpcService#announcesHealth()}, and announced if all of them do.
+     */
     public Preferred(List<RpcService<Req, Resp>> backends) {
         this.backends = backends;
+        this.health = null;
+        this.aggregate = new HealthAggregate(backends);
+    }
+
+    /**
+     * Prefers backends in the order of the index, reading their health from it.
+     */
+    public Preferred(HealthIndex<Req, Resp> health) {
+        this.backends = null;
+        this.health = health;
+        this.aggregate = null;
     }
 
     @Override
     public boolean isHealthy() {
-        for (RpcService<Req, Resp> rpcService : backends) {
-            if (rpcService.isHealthy()) {
-                return true;
-            }
+        if (health != null) {
+            return health.members().anyHealthy();
+        }
+        return aggregate.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return aggregate != null && aggregate.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        if (aggregate != null) {
+            aggregate.addListener(listener);
+        }
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        if (aggregate != null) {
+            aggregate.removeListener(listener);
+        }
+    }
+
+    /**
+     * Unsubscribes from the health of the backends, which would otherwise keep this
+     * balancer reachable for as long as they live, and leaves it unhealthy. Over a
+     * {@link HealthIndex} there is nothing to unsubscribe from, and the index, which may
+     * be shared, is left running.
+     */
+    @Override
+    public void close() {
+        if (aggregate != null) {
+            aggregate.close();
         }
-        return false;
     }
 
     @Override
     public ListenableFuture<Resp> apply(Req req) {
+        if (health != null) {
+            HealthIndex.Members<Req, Resp> members = health.members();
+            int first = members.nextHealthy(0);
+            if (first >= 0) {
+                return members.backends.get(first).apply(req);
+            }
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
         for (RpcService<Req, Resp> rpcService : backends) {
             if (rpcService.isHealthy()) {
                 return rpcService.apply(req);
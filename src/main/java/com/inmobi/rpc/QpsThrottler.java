@@ -4,13 +4,22 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.time.Clock;
+import java.time.Instant;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed window rate limiter: at most maxQueries requests are let through per window of
+ * the given duration, aligned to the epoch. Up to twice the rate can get through around
+ * a window boundary, use {@link TokenBucketThrottler} if that matters.
+ *
+ * The whole state is one long, the window in the high half and the requests let through
+ * in it in the low half, so that taking a permit and moving to a new window are one
+ * compare and set, and no permit taken concurrently is lost to the reset. Any change of
+ * window starts a new count, also when the clock steps back.
+ */
 public class QpsThrottler<Req, Resp> implements RpcService<Req, Resp> {
 
-    private final AtomicInteger counter;
-
     private final RpcService<Req, Resp> backend;
 
     private final Clock clock;
@@ -19,7 +28,7 @@ public class QpsThrottler<Req, Resp> implements RpcService<Req, Resp> {
 
     private final long durationNanos;
 
-    private final AtomicInteger prevSlot = new AtomicInteger();
+    private final AtomicLong state;
 
     public QpsThrottler(RpcService<Req, Resp> backend,
                         int maxQueries,
@@ -27,10 +36,10 @@ public class QpsThrottler<Req, Resp> implements RpcService<Req, Resp> {
                         TimeUnit unit,
                         Clock clock) {
         this.backend = backend;
-        this.counter = new AtomicInteger(0);
         this.clock = clock;
         this.durationNanos = unit.toNanos(duration);
         this.maxQueries = maxQueries;
+        this.state = new AtomicLong((long) window() << 32);
     }
 
     @Override
@@ -51,33 +60,36 @@ public class QpsThrottler<Req, Resp> implements RpcService<Req, Resp> {
         }
     }
 
-    private AtomicInteger slot() {
-        long instant = clock.instant().getNano();
-        int bucket = (int) ((instant / durationNanos));
+    /**
+     * @return low 32 bits of the number of the current window since the epoch.
+     */
+    private int window() {
+        Instant instant = clock.instant();
+        long nanos = TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+        return (int) (nanos / durationNanos);
+    }
 
-        int prevSlotId = prevSlot.get();
-        if (prevSlotId < bucket) {
-            counter.set(0);
-        }
-        return this.counter;
+    private static int queries(long state, int window) {
+        return (int) (state >>> 32) == window ? (int) state : 0;
     }
 
     private boolean hasPermit() {
-        return slot().get() < maxQueries;
+        long current = state.get();
+        return queries(current, window()) < maxQueries;
     }
 
     private boolean tryAcquire() {
-        AtomicInteger slot = slot();
         do {
-            int queries = slot.get();
-            if (queries < maxQueries) {
-                if (slot.compareAndSet(queries, queries + 1)) {
-                    return true;
-                }
-            } else {
+            // State first, so that the window read after it is never older than the stored one.
+            long current = state.get();
+            int window = window();
+            int queries = queries(current, window);
+            if (queries >= maxQueries) {
                 return false;
             }
+            if (state.compareAndSet(current, ((long) window << 32) | (queries + 1))) {
+                return true;
+            }
         } while (true);
     }
-
 }
@@ -0,0 +1,69 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket which limits extra requests (hedges, retries) to a fraction of the
+ * regular traffic. Every deposit adds ratio tokens, every extra request withdraws one
+ * whole token. Hedged deposits for every request, Retrying for every successful one.
+ * The balance is capped so that a long quiet period does not allow an unbounded burst
+ * of extra requests later.
+ */
+class RequestBudget {
+
+    private static final long UNIT = 1_000_000;
+
+    private final AtomicLong balance;
+
+    private final long deposit;
+
+    private final long cap;
+
+    /**
+     * @param ratio extra requests allowed per regular request, for example 0.05.
+     * @param maxTokens most extra requests which can be sent in a burst.
+     */
+    RequestBudget(double ratio, int maxTokens) {
+        Preconditions.checkArgument(ratio >= 0, "Ratio must not be negative");
+        Preconditions.checkArgument(maxTokens >= 0, "Max tokens must not be negative");
+        this.deposit = (long) (ratio * UNIT);
+        this.cap = maxTokens * UNIT;
+        this.balance = new AtomicLong(cap);
+    }
+
+    void deposit() {
+        if (deposit == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= cap) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(cap, current + deposit)));
+    }
+
+    boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < UNIT) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - UNIT));
+        return true;
+    }
+
+    /**
+     * Returns a token withdrawn for an extra request which could not be sent after all.
+     */
+    void refund() {
+        long current;
+        do {
+            current = balance.get();
+        } while (!balance.compareAndSet(current, Math.min(cap, current + UNIT)));
+    }
+}
@@ -0,0 +1,238 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Least loaded balancer which retries failed requests, each time on a backend which has
+ * not been tried for that request yet. Like hedging this has to be done at the balancer
+ * level, a retry above a balancer may land on the same bad backend.
+ *
+ * Retries are limited by a budget: every successful response earns maxRetryRatio of a
+ * retry, so that during a partial outage retries add at most that fraction of load
+ * instead of multiplying it. Before each retry there is a random backoff between zero
+ * and initialBackoff doubled for every retry so far, capped at maxBackoff. Whether a
+ * failure is worth retrying is decided by a predicate on its cause, cancellations by the
+ * backend (for example throttler rejections) are passed as CancellationException. A
+ * {@link Deadline} present when the request is made is respected by the retries.
+ *
+ * If no retry is made, the failure of the last attempt is returned.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class Retrying<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static final int MAX_BUDGET_BURST = 10;
+
+    private final ImmutableList<TrackedService<Req, Resp>> backends;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final int maxAttempts;
+
+    private final RequestBudget budget;
+
+    private final long initialBackoffNanos;
+
+    private final long maxBackoffNanos;
+
+    private final Predicate<Throwable> retryable;
+
+    /**
+     * Retries any failure, with at most 10% extra load, and backoff from 10ms up to 1s.
+     */
+    public Retrying(List<RpcService<Req, Resp>> backends,
+                    ScheduledExecutorService scheduler,
+                    int maxAttempts) {
+        this(backends, scheduler, maxAttempts, 0.1, 10, 1000, TimeUnit.MILLISECONDS, e -> true);
+    }
+
+    /**
+     * @param backends to balance across.
+     * @param scheduler to send retries from after the backoff.
+     * @param maxAttempts including the first one, at most the number of backends are made.
+     * @param maxRetryRatio retries allowed per successful response.
+     * @param initialBackoff upper bound of the random delay before the first retry.
+     * @param maxBackoff upper bound of the random delay before any retry.
+     * @param unit of initialBackoff and maxBackoff.
+     * @param retryable whether a failure with the given cause should be retried.
+     */
+    public Retrying(List<RpcService<Req, Resp>> backends,
+                    ScheduledExecutorService scheduler,
+                    int maxAttempts,
+                    double maxRetryRatio,
+                    long initialBackoff,
+                    long maxBackoff,
+                    TimeUnit unit,
+                    Predicate<Throwable> retryable) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(maxAttempts > 0, "At least one attempt must be made");
+        Preconditions.checkArgument(initialBackoff >= 0 && maxBackoff >= initialBackoff,
+                "Backoff must satisfy 0 <= initialBackoff <= maxBackoff");
+        this.backends = ImmutableList.copyOf(Lists.transform(backends, TrackedService<Req, Resp>::new));
+        this.scheduler = scheduler;
+        this.maxAttempts = maxAttempts;
+        this.budget = new RequestBudget(maxRetryRatio, MAX_BUDGET_BURST);
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+        this.retryable = retryable;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (TrackedService<Req, Resp> backend : backends) {
+            if (backend.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        TrackedService<Req, Resp> first = TrackedService.leastLoaded(backends, ImmutableList.of());
+        if (first == null) {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+        return new RetryingCall(req, Deadline.current()).start(first);
+    }
+
+    private class RetryingCall {
+
+        private final Req req;
+
+        private final Deadline deadline;
+
+        private final SettableFuture<Resp> result = SettableFuture.create();
+
+        private final List<TrackedService<Req, Resp>> tried = new ArrayList<>();
+
+        private volatile ListenableFuture<Resp> current;
+
+        private volatile ScheduledFuture<?> backoff;
+
+        RetryingCall(Req req, Deadline deadline) {
+            this.req = req;
+            this.deadline = deadline;
+        }
+
+        ListenableFuture<Resp> start(TrackedService<Req, Resp> first) {
+            result.addListener(() -> {
+                if (result.isCancelled()) {
+                    cancelAll();
+                }
+            }, MoreExecutors.directExecutor());
+            attempt(first);
+            return result;
+        }
+
+        private void attempt(TrackedService<Req, Resp> backend) {
+            tried.add(backend);
+            ListenableFuture<Resp> future;
+            if (deadline == null) {
+                future = backend.apply(req);
+            } else {
+                future = Deadline.runWith(deadline, () -> backend.apply(req));
+            }
+            current = future;
+            future.addListener(() -> onComplete(future), MoreExecutors.directExecutor());
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        }
+
+        private void onComplete(ListenableFuture<Resp> future) {
+            if (result.isDone()) {
+                return;
+            }
+            Throwable cause = failure(future);
+            if (cause == null) {
+                budget.deposit();
+                result.setFuture(future);
+                return;
+            }
+            TrackedService<Req, Resp> next = tried.size() < maxAttempts && retryable.test(cause)
+                    ? TrackedService.leastLoaded(backends, tried)
+                    : null;
+            long delay = backoffNanos(tried.size());
+            if (next == null
+                    || (deadline != null && deadline.remaining(TimeUnit.NANOSECONDS) <= delay)
+                    || !budget.tryWithdraw()) {
+                result.setFuture(future);
+                return;
+            }
+            if (delay == 0) {
+                attempt(next);
+            } else {
+                try {
+                    backoff = scheduler.schedule(() -> attempt(next), delay, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Scheduler shut down, the retry cannot be made after all.
+                    budget.refund();
+                    result.setFuture(future);
+                    return;
+                }
+                if (result.isCancelled()) {
+                    backoff.cancel(false);
+                }
+            }
+        }
+
+        private void cancelAll() {
+            ScheduledFuture<?> backoff = this.backoff;
+            if (backoff != null) {
+                backoff.cancel(false);
+            }
+            ListenableFuture<Resp> current = this.current;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return null if the future succeeded, else the cause of its failure.
+     */
+    private static Throwable failure(ListenableFuture<?> future) {
+        if (future.isCancelled()) {
+            return new CancellationException();
+        }
+        try {
+            Futures.getDone(future);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    /**
+     * Full jitter: uniform between zero and the exponential backoff for this retry.
+     */
+    private long backoffNanos(int retry) {
+        if (initialBackoffNanos == 0) {
+            return 0;
+        }
+        long bound = initialBackoffNanos << Math.min(retry - 1, 30);
+        if (bound <= 0 || bound > maxBackoffNanos) {
+            bound = maxBackoffNanos;
+        }
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
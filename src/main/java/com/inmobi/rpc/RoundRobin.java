@@ -5,42 +5,137 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.Closeable;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Round robin load balancer. Technically under conditions when backend responds faster
- * than inter-arrival time of requests there may be a failure in strict round robin
- * semantics.
+ * Round robin load balancer. Every call takes a ticket from an atomic counter, and goes
+ * to the backend at that position, or the next healthy one after it. Concurrent callers
+ * therefore never pick the same position, and the counter is advanced past unhealthy
+ * backends so that the one after them does not receive their share.
+ *
+ * On hosts with many cores a single counter becomes a point of contention. With more
+ * than one stripe, callers are spread over independent counters by thread, each on its
+ * own cache line and each starting at a different position. The rotation is then only
+ * round robin per stripe, but the load over all backends stays even.
+ *
+ * Backends can be added and removed at any time, calls read the current backend list
+ * without locking. No count of requests in flight is kept, so that the request path
+ * stays free of bookkeeping, and the future returned on removal is already done instead
+ * of waiting for the removed backend to drain.
+ *
+ * Constructed over a {@link HealthIndex}, health is read from its bitmap instead of each
+ * backend, and membership changes go to the index. Otherwise the health of this balancer
+ * is kept up to date from the backends which announce theirs, see
+ * {@link RpcService#announcesHealth()}, and it announces its own if all of them do.
  */
-public class RoundRobin<Req, Resp> implements RpcService<Req, Resp> {
+public class RoundRobin<Req, Resp> implements RpcService<Req, Resp>, Closeable {
 
-    private final ImmutableList<RpcService<Req, Resp>> backends;
+    /**
+     * Distance between two stripes in the counter array, 64 bytes.
+     */
+    private static final int STRIDE = 16;
 
-    private final AtomicInteger rotation;
+    private volatile ImmutableList<RpcService<Req, Resp>> backends;
+
+    private final HealthIndex<Req, Resp> health;
+
+    private final HealthAggregate aggregate;
+
+    private final AtomicIntegerArray rotations;
+
+    private final int stripeMask;
 
     public RoundRobin(ImmutableList<RpcService<Req, Resp>> backends,
                       int startingPoint) {
-        Preconditions.checkArgument(!backends.isEmpty(), "Backends should not be empty.");
-        Preconditions.checkElementIndex(startingPoint, backends.size());;
-        this.backends = backends;
-        this.rotation = new AtomicInteger(startingPoint);
+        this(backends, startingPoint, 1);
     }
 
     public RoundRobin(ImmutableList<RpcService<Req, Resp>> backends) {
+        this(backends, ThreadLocalRandom.current().nextInt(Math.max(1, backends.size())), 1);
+    }
+
+    /**
+     * @param backends to rotate over.
+     * @param startingPoint position of the first backend selected.
+     * @param stripes number of independent rotations, rounded up to a power of two. 1 for
+     *                strict round robin, around the number of cores for many concurrent
+     *                callers.
+     */
+    public RoundRobin(ImmutableList<RpcService<Req, Resp>> backends,
+                      int startingPoint,
+                      int stripes) {
+        this(backends, null, startingPoint, stripes);
+    }
+
+    /**
+     * @param health index of the backends to rotate over.
+     * @param stripes number of independent rotations, see above.
+     */
+    public RoundRobin(HealthIndex<Req, Resp> health, int stripes) {
+        this(health.getBackends(), health,
+                ThreadLocalRandom.current().nextInt(Math.max(1, health.getBackends().size())), stripes);
+    }
+
+    private RoundRobin(ImmutableList<RpcService<Req, Resp>> backends,
+                       HealthIndex<Req, Resp> health,
+                       int startingPoint,
+                       int stripes) {
         Preconditions.checkArgument(!backends.isEmpty(), "Backends should not be empty.");
-        this.backends = backends;
-        this.rotation = new AtomicInteger(ThreadLocalRandom.current().nextInt(backends.size()));
+        Preconditions.checkElementIndex(startingPoint, backends.size());
+        Preconditions.checkArgument(stripes > 0 && stripes <= 1 << 16, "Stripes out of range");
+        int stripeCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.backends = health == null ? backends : null;
+        this.health = health;
+        this.aggregate = health == null ? new HealthAggregate(backends) : null;
+        this.stripeMask = stripeCount - 1;
+        this.rotations = new AtomicIntegerArray(stripeCount * STRIDE);
+        for (int i = 0; i < stripeCount; i++) {
+            int offset = (int) ((long) i * backends.size() / stripeCount);
+            rotations.set(i * STRIDE, (startingPoint + offset) % backends.size());
+        }
     }
 
     @Override
     public boolean isHealthy() {
-        for (RpcService<Req, Resp> backend : backends) {
-            if (backend.isHealthy()) {
-                return true;
-            }
+        if (health != null) {
+            return health.members().anyHealthy();
+        }
+        return aggregate.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return aggregate != null && aggregate.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        if (aggregate != null) {
+            aggregate.addListener(listener);
+        }
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        if (aggregate != null) {
+            aggregate.removeListener(listener);
+        }
+    }
+
+    /**
+     * Unsubscribes from the health of the backends, which would otherwise keep this
+     * balancer reachable for as long as they live, and leaves it unhealthy. Over a
+     * {@link HealthIndex} there is nothing to unsubscribe from, and the index, which may
+     * be shared, is left running.
+     */
+    @Override
+    public void close() {
+        if (aggregate != null) {
+            aggregate.close();
         }
-        return false;
     }
 
     @Override
@@ -54,17 +149,107 @@ public class RoundRobin<Req, Resp> implements RpcService<Req, Resp> {
     }
 
     private RpcService<Req, Resp> select() {
+        int index = ((int) Thread.currentThread().getId() & stripeMask) * STRIDE;
+        if (health != null) {
+            return selectIndexed(index);
+        }
+        List<RpcService<Req, Resp>> backends = this.backends;
         int size = backends.size();
-        int start = this.rotation.get();
+        if (size == 0) {
+            return null;
+        }
+        int start = Integer.remainderUnsigned(rotations.getAndIncrement(index), size);
         for (int i = 0; i < size; i++) {
-            int pos = (start + i) % size;
+            int pos = start + i < size ? start + i : start + i - size;
             RpcService<Req, Resp> host = backends.get(pos);
             if (host.isHealthy()) {
-                this.rotation.set((pos + 1) % size);
+                if (i != 0) {
+                    rotations.getAndAdd(index, i);
+                }
                 return host;
             }
         }
         return null;
     }
 
+    private RpcService<Req, Resp> selectIndexed(int index) {
+        HealthIndex.Members<Req, Resp> members = health.members();
+        int size = members.backends.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = Integer.remainderUnsigned(rotations.getAndIncrement(index), size);
+        int pos = members.nextHealthy(start);
+        if (pos < 0) {
+            return null;
+        }
+        if (pos != start) {
+            rotations.getAndAdd(index, pos > start ? pos - start : pos + size - start);
+        }
+        return members.backends.get(pos);
+    }
+
+    /**
+     * Starts sending requests to backend as well.
+     */
+    public synchronized void addBackend(RpcService<Req, Resp> backend) {
+        if (health != null) {
+            health.addBackend(backend);
+            return;
+        }
+        backends = ImmutableList.<RpcService<Req, Resp>>builder()
+                .addAll(backends)
+                .add(backend)
+                .build();
+        aggregate.setBackends(backends);
+    }
+
+    /**
+     * Stops sending new requests to backend.
+     *
+     * @return a future which is already done, see above.
+     * @throws IllegalArgumentException if backend is not part of this balancer.
+     */
+    public synchronized ListenableFuture<Void> removeBackend(RpcService<Req, Resp> backend) {
+        if (health != null) {
+            health.removeBackend(backend);
+            return Futures.immediateVoidFuture();
+        }
+        ImmutableList.Builder<RpcService<Req, Resp>> builder = ImmutableList.builder();
+        boolean removed = false;
+        for (RpcService<Req, Resp> current : backends) {
+            if (!removed && current == backend) {
+                removed = true;
+            } else {
+                builder.add(current);
+            }
+        }
+        Preconditions.checkArgument(removed, "Unknown backend");
+        backends = builder.build();
+        aggregate.setBackends(backends);
+        return Futures.immediateVoidFuture();
+    }
+
+    /**
+     * Replaces the set of backends in one step.
+     *
+     * @return a future which is already done, see above.
+     */
+    public synchronized ListenableFuture<Void> replaceBackends(List<RpcService<Req, Resp>> newBackends) {
+        Preconditions.checkArgument(!newBackends.isEmpty(), "Backends should not be empty.");
+        if (health != null) {
+            health.replaceBackends(newBackends);
+        } else {
+            backends = ImmutableList.copyOf(newBackends);
+            aggregate.setBackends(backends);
+        }
+        return Futures.immediateVoidFuture();
+    }
+
+    /**
+     * @return the backends currently requests are sent to.
+     */
+    public ImmutableList<RpcService<Req, Resp>> getBackends() {
+        return health != null ? health.getBackends() : backends;
+    }
 }
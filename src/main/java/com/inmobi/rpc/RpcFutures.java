@@ -0,0 +1,30 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.Futures;
+
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for inspecting backend futures.
+ */
+final class RpcFutures {
+
+    private RpcFutures() {
+    }
+
+    /**
+     * @return true if the future is done and completed normally, false if it failed or was
+     * cancelled.
+     */
+    static boolean isSuccess(Future<?> future) {
+        if (future.isCancelled()) {
+            return false;
+        }
+        try {
+            Futures.getDone(future);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
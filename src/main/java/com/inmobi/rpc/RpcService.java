@@ -18,9 +18,30 @@ public interface RpcService<Req, Resp> extends Function<Req, ListenableFuture<Re
     /**
      * Returns the health of the system, by default none of the balancers will cache
      * this result. So it will be responsibility of the final implementation to cache
-     * if needed. It can also be wrapped around a HealthCached RpcService if you
-     * would like.
+     * if needed. It can also be wrapped around a {@link HealthCached} RpcService if you
+     * would like, or a pool of them indexed by a {@link HealthIndex}.
      * @return true if healthy, false otherwise.
      */
     boolean isHealthy();
+
+    /**
+     * Whether this service calls its health listeners whenever {@link #isHealthy()}
+     * changes. Composite services which do, such as {@link LeastLoaded}, keep their own
+     * health up to date from the announcements of their backends, and poll only the
+     * backends which do not announce. By default health is not announced.
+     * @return true if health changes are announced, false if health has to be polled.
+     */
+    default boolean announcesHealth() {
+        return false;
+    }
+
+    /**
+     * Registers listener to be called after {@link #isHealthy()} or
+     * {@link #announcesHealth()} changes. Does nothing by default.
+     */
+    default void addHealthListener(HealthListener listener) {
+    }
+
+    default void removeHealthListener(HealthListener listener) {
+    }
 }
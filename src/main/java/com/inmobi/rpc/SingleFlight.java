@@ -0,0 +1,127 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Deduplicates identical requests in flight. Requests are keyed by keyFunction; while a
+ * request for a key is outstanding, further requests for the same key do not go to the
+ * backend but wait for the response of the first one. Once it completes the next request
+ * for the key is sent again, nothing is cached.
+ *
+ * Every caller gets its own future. Cancelling it detaches only that caller, the backend
+ * request is cancelled once every caller waiting on it has cancelled.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class SingleFlight<Req, Resp> implements RpcService<Req, Resp> {
+
+    private class Flight {
+
+        final Object key;
+
+        final SettableFuture<Resp> shared = SettableFuture.create();
+
+        /**
+         * Callers which have not cancelled. Once zero, the flight is abandoned and can not
+         * be joined anymore.
+         */
+        final AtomicInteger callers = new AtomicInteger(1);
+
+        Flight(Object key) {
+            this.key = key;
+        }
+
+        boolean join() {
+            return callers.getAndUpdate(c -> c == 0 ? 0 : c + 1) != 0;
+        }
+
+        ListenableFuture<Resp> subscribe() {
+            ListenableFuture<Resp> caller = Futures.nonCancellationPropagating(shared);
+            caller.addListener(() -> {
+                if (caller.isCancelled() && callers.decrementAndGet() == 0) {
+                    inFlight.remove(key, this);
+                    shared.cancel(true);
+                }
+            }, MoreExecutors.directExecutor());
+            return caller;
+        }
+    }
+
+    private final RpcService<Req, Resp> backend;
+
+    private final Function<? super Req, ?> keyFunction;
+
+    private final ConcurrentMap<Object, Flight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param backend to send deduplicated requests to.
+     * @param keyFunction requests with equal keys are considered identical.
+     */
+    public SingleFlight(RpcService<Req, Resp> backend, Function<? super Req, ?> keyFunction) {
+        this.backend = backend;
+        this.keyFunction = keyFunction;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return backend.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return backend.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        backend.addHealthListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        backend.removeHealthListener(listener);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        Object key = keyFunction.apply(req);
+        while (true) {
+            Flight existing = inFlight.get(key);
+            if (existing != null) {
+                if (existing.join()) {
+                    return existing.subscribe();
+                }
+                // Abandoned by all its callers, make way for a new one.
+                inFlight.remove(key, existing);
+                continue;
+            }
+            Flight flight = new Flight(key);
+            if (inFlight.putIfAbsent(key, flight) == null) {
+                ListenableFuture<Resp> caller = flight.subscribe();
+                flight.shared.addListener(() -> inFlight.remove(key, flight), MoreExecutors.directExecutor());
+                try {
+                    flight.shared.setFuture(backend.apply(req));
+                } catch (Exception e) {
+                    flight.shared.setException(e);
+                }
+                return caller;
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct requests currently in flight.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,106 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails requests which do not complete within a timeout with a
+ * {@link DeadlineExceededException}, and cancels the backend future, so that permits and
+ * outstanding request counts held by the services below are released even when a backend
+ * hangs. Timeouts run on a shared {@link TimerWheel}.
+ *
+ * The deadline is carried to nested services called on the same thread, see
+ * {@link Deadline}. A nested TimeLimited uses the earlier of its own timeout and the
+ * inherited deadline, and fails requests right away if the deadline has already passed
+ * instead of sending them. Wrapping both the balancer and each backend therefore bounds
+ * the whole call, and drops requests which can no longer complete in time.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class TimeLimited<Req, Resp> implements RpcService<Req, Resp> {
+
+    private final RpcService<Req, Resp> backend;
+
+    private final TimerWheel timer;
+
+    private final long timeoutNanos;
+
+    /**
+     * @param backend to forward requests to.
+     * @param timer to run the timeouts on, may be shared.
+     * @param timeout after which a request is failed.
+     * @param unit of timeout.
+     */
+    public TimeLimited(RpcService<Req, Resp> backend, TimerWheel timer, long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+        this.backend = backend;
+        this.timer = timer;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return backend.isHealthy();
+    }
+
+    @Override
+    public boolean announcesHealth() {
+        return backend.announcesHealth();
+    }
+
+    @Override
+    public void addHealthListener(HealthListener listener) {
+        backend.addHealthListener(listener);
+    }
+
+    @Override
+    public void removeHealthListener(HealthListener listener) {
+        backend.removeHealthListener(listener);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        Deadline deadline = Deadline.after(timeoutNanos, TimeUnit.NANOSECONDS, timer.ticker());
+        Deadline inherited = Deadline.current();
+        if (inherited != null) {
+            deadline = deadline.min(inherited);
+        }
+        long remaining = deadline.remaining(TimeUnit.NANOSECONDS);
+        if (remaining <= 0) {
+            return Futures.immediateFailedFuture(new DeadlineExceededException("Deadline exceeded before sending"));
+        }
+
+        ListenableFuture<Resp> backendFuture;
+        try {
+            backendFuture = Deadline.runWith(deadline, () -> backend.apply(req));
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        if (backendFuture.isDone()) {
+            return backendFuture;
+        }
+
+        SettableFuture<Resp> result = SettableFuture.create();
+        TimerWheel.Timeout timeout = timer.schedule(() -> {
+            if (result.setException(new DeadlineExceededException("Deadline exceeded"))) {
+                backendFuture.cancel(true);
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        backendFuture.addListener(() -> {
+            timeout.cancel();
+            result.setFuture(backendFuture);
+        }, MoreExecutors.directExecutor());
+        result.addListener(() -> {
+            if (result.isCancelled()) {
+                backendFuture.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+}
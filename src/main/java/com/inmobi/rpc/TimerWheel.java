@@ -0,0 +1,260 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel timer, for running a large number of timeouts most of which are cancelled
+ * before they expire. Scheduling and cancelling are a queue insertion each, and a single
+ * task on the scheduler advances the wheel once per tick, so there is no ScheduledFuture
+ * per timeout. Timeouts fire up to one tick late, never early.
+ *
+ * Tasks run on the scheduler thread and must be short, for example completing a future.
+ * One wheel can be shared by any number of {@link TimeLimited} instances. Call
+ * {@link #close()} to stop it, pending timeouts are then never run.
+ */
+public class TimerWheel implements Closeable {
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private final TimerWheel wheel;
+
+        // Only accessed by the wheel while holding its lock.
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the task was cancelled, false if it has already run or was
+         * cancelled before.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                wheel.cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final Ticker ticker;
+
+    private final long tickNanos;
+
+    private final long start;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final boolean ownScheduler;
+
+    private final ScheduledFuture<?> ticking;
+
+    // Number of ticks processed so far, guarded by this.
+    private long tick;
+
+    /**
+     * 512 buckets, ticking on a thread of its own.
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit) {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("timer-wheel-%d")
+                .setDaemon(true)
+                .build()), true, tickDuration, unit, 512, Ticker.systemTicker());
+    }
+
+    /**
+     * @param scheduler to advance the wheel on, may be shared.
+     * @param tickDuration resolution of the timer.
+     * @param unit of tickDuration.
+     * @param wheelSize number of buckets, rounded up to a power of two. Timeouts longer than
+     *                  wheelSize ticks go around the wheel more than once.
+     * @param ticker time source.
+     */
+    public TimerWheel(ScheduledExecutorService scheduler,
+                      long tickDuration,
+                      TimeUnit unit,
+                      int wheelSize,
+                      Ticker ticker) {
+        this(scheduler, false, tickDuration, unit, wheelSize, ticker);
+    }
+
+    private TimerWheel(ScheduledExecutorService scheduler,
+                       boolean ownScheduler,
+                       long tickDuration,
+                       TimeUnit unit,
+                       int wheelSize,
+                       Ticker ticker) {
+        Preconditions.checkArgument(tickDuration > 0, "Tick duration must be positive");
+        Preconditions.checkArgument(wheelSize > 0 && wheelSize <= 1 << 30, "Wheel size out of range");
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        if (wheelSize == 1) {
+            size = 1;
+        }
+        this.ticker = ticker;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.start = ticker.read();
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.ticking = scheduler.scheduleAtFixedRate(this::advance, tickDuration, tickDuration, unit);
+    }
+
+    /**
+     * Runs task once delay has passed, unless cancelled before.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, ticker.read() + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    Ticker ticker() {
+        return ticker;
+    }
+
+    /**
+     * Runs every timeout which has expired by now. Called once per tick by the scheduler.
+     */
+    synchronized void advance() {
+        long now = ticker.read();
+        transferCancelled();
+        transferScheduled();
+        while (start + (tick + 1) * tickNanos - now <= 0) {
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != Timeout.PENDING) {
+                continue;
+            }
+            long expiryTick = Math.max((timeout.deadline - start) / tickNanos, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void transferCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // Not yet transferred if there is no bucket, the transfer skips it then.
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException ignored) {
+                        // One misbehaving task must not stop the others.
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    @Override
+    public void close() {
+        ticking.cancel(false);
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+}
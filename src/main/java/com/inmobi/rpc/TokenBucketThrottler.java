@@ -0,0 +1,106 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter in front of a backend. Tokens are refilled continuously at
+ * maxQueries per duration, so there is no window boundary at which twice the rate can get
+ * through, and up to burst tokens can accumulate while the backend is idle. Rejected
+ * requests get a cancelled future, same as the other throttlers.
+ *
+ * The whole state is one long: the time at which the bucket would be full again if no
+ * more requests arrived, which is the timestamp and the token count in one. Tokens
+ * available at time t are (t + burst * interval - fullAt) / interval. Taking a token is a
+ * single compare and set which pushes fullAt one interval further, so there are no locks
+ * and no separate refill step.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class TokenBucketThrottler<Req, Resp> implements RpcService<Req, Resp> {
+
+    private final RpcService<Req, Resp> backend;
+
+    private final Ticker ticker;
+
+    private final long intervalNanos;
+
+    private final long burstNanos;
+
+    private final AtomicLong fullAt;
+
+    public TokenBucketThrottler(RpcService<Req, Resp> backend,
+                                int maxQueries,
+                                long duration,
+                                TimeUnit unit,
+                                int burst) {
+        this(backend, maxQueries, duration, unit, burst, Ticker.systemTicker());
+    }
+
+    /**
+     * @param backend to throttle.
+     * @param maxQueries tokens refilled per duration.
+     * @param duration refill period, may be shorter than a second.
+     * @param unit of duration.
+     * @param burst capacity of the bucket, at least one.
+     * @param ticker time source.
+     */
+    public TokenBucketThrottler(RpcService<Req, Resp> backend,
+                                int maxQueries,
+                                long duration,
+                                TimeUnit unit,
+                                int burst,
+                                Ticker ticker) {
+        Preconditions.checkArgument(maxQueries > 0, "Max queries must be positive");
+        Preconditions.checkArgument(burst > 0, "Burst must be positive");
+        this.backend = backend;
+        this.ticker = ticker;
+        this.intervalNanos = unit.toNanos(duration) / maxQueries;
+        Preconditions.checkArgument(intervalNanos > 0, "Rate must be less than one query per nanosecond");
+        this.burstNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(ticker.read());
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return hasPermit() && backend.isHealthy();
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        if (tryAcquire()) {
+            try {
+                return backend.apply(req);
+            } catch (Exception e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        } else {
+            return Futures.immediateCancelledFuture();
+        }
+    }
+
+    private boolean hasPermit() {
+        long now = ticker.read();
+        return Math.max(fullAt.get(), now) + intervalNanos - now <= burstNanos;
+    }
+
+    private boolean tryAcquire() {
+        long now = ticker.read();
+        do {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        } while (true);
+    }
+}
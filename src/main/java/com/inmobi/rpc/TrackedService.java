@@ -0,0 +1,154 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wraps a backend and keeps count of the requests which are sent to it but not yet
+ * completed. The count is what the load aware balancers compare.
+ *
+ * No per-request lambda is allocated for the bookkeeping: the wrapper is itself the
+ * completion listener, and futures which are already done are not listened to at all.
+ *
+ * Balancers built on it return the future of {@link #drain()} when a backend is removed,
+ * so that callers know when the backend can be shut down without failing requests.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+class TrackedService<Req, Resp> extends OutboundCounter implements RpcService<Req, Resp>, Runnable {
+
+    final RpcService<Req, Resp> service;
+
+    private volatile SettableFuture<Void> drained;
+
+    TrackedService(RpcService<Req, Resp> service) {
+        this.service = service;
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        incrementOutbound();
+        ListenableFuture<Resp> serverFuture;
+        try {
+            serverFuture = service.apply(req);
+        } catch (Exception e) {
+            release();
+            return Futures.immediateFailedFuture(e);
+        }
+        if (serverFuture.isDone()) {
+            release();
+        } else {
+            serverFuture.addListener(this, MoreExecutors.directExecutor());
+        }
+
+        return serverFuture;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return service.isHealthy();
+    }
+
+    /**
+     * For a backend which is no longer selected by its balancer.
+     *
+     * @return future which completes once no requests are outstanding.
+     */
+    ListenableFuture<Void> drain() {
+        SettableFuture<Void> future = SettableFuture.create();
+        drained = future;
+        if (getOutboundRequests() == 0) {
+            future.set(null);
+        }
+        return future;
+    }
+
+    /**
+     * Wraps backends, reusing the wrapper of each backend already in current, by identity,
+     * so that it keeps its count.
+     *
+     * @param removed receives the wrappers of current whose backend is no longer present.
+     */
+    static <Req, Resp> ImmutableList<TrackedService<Req, Resp>> carryOver(
+            List<TrackedService<Req, Resp>> current,
+            List<RpcService<Req, Resp>> backends,
+            Collection<TrackedService<Req, Resp>> removed) {
+        Map<RpcService<Req, Resp>, TrackedService<Req, Resp>> previous = new IdentityHashMap<>();
+        for (TrackedService<Req, Resp> tracked : current) {
+            previous.putIfAbsent(tracked.service, tracked);
+        }
+        ImmutableList.Builder<TrackedService<Req, Resp>> builder = ImmutableList.builder();
+        for (RpcService<Req, Resp> backend : backends) {
+            TrackedService<Req, Resp> tracked = previous.remove(backend);
+            builder.add(tracked != null ? tracked : new TrackedService<>(backend));
+        }
+        removed.addAll(previous.values());
+        return builder.build();
+    }
+
+    /**
+     * @return future which completes once none of the removed backends has requests
+     * outstanding.
+     */
+    static ListenableFuture<Void> drainAll(Collection<? extends TrackedService<?, ?>> removed) {
+        List<ListenableFuture<Void>> drains = new ArrayList<>(removed.size());
+        for (TrackedService<?, ?> tracked : removed) {
+            drains.add(tracked.drain());
+        }
+        return Futures.whenAllComplete(drains).call(() -> null, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Least loaded healthy backend which is not one of excluded, starting the scan at a
+     * random backend so that ties are spread.
+     *
+     * @return null if every backend is unhealthy or excluded.
+     */
+    static <Req, Resp> TrackedService<Req, Resp> leastLoaded(List<TrackedService<Req, Resp>> backends,
+                                                             Collection<?> excluded) {
+        int cost = Integer.MAX_VALUE;
+        TrackedService<Req, Resp> ret = null;
+        int size = backends.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+
+        for (int i = 0; i < size; i++) {
+            TrackedService<Req, Resp> backend = backends.get((start + i) % size);
+            if (backend.isHealthy() && !excluded.contains(backend)) {
+                int backendCost = backend.getOutboundRequests();
+                if (backendCost < cost) {
+                    cost = backendCost;
+                    ret = backend;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Completion of a request.
+     */
+    @Override
+    public void run() {
+        release();
+    }
+
+    private void release() {
+        if (decrementOutbound() == 0) {
+            SettableFuture<Void> future = drained;
+            if (future != null) {
+                future.set(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Least loaded balancing for backends of different capacity, for example machines with
+ * different number of CPUs. Each backend has a weight proportional to its capacity, and
+ * a call is forwarded to the backend with the smallest (outboundRequests + 1) / weight,
+ * i.e. the one which would be least loaded relative to its capacity after taking this
+ * request. Counting the request being placed makes an idle big backend preferred over
+ * an idle small one. Backends with weight zero are never selected.
+ *
+ * Weights can be changed at runtime with {@link #setWeight}, the in-flight counts are
+ * retained.
+ *
+ * @param <Req> Request object type.
+ * @param <Resp> Response object type.
+ */
+public class WeightedLeastLoaded<Req, Resp> implements RpcService<Req, Resp> {
+
+    private static class WeightedService<Req, Resp> extends TrackedService<Req, Resp> {
+
+        volatile int weight;
+
+        WeightedService(RpcService<Req, Resp> service, int weight) {
+            super(service);
+            this.weight = weight;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return weight != 0 && service.isHealthy();
+        }
+    }
+
+    private final AtomicInteger loopCounter;
+
+    private final ImmutableList<WeightedService<Req, Resp>> backends;
+
+    public WeightedLeastLoaded(List<RpcService<Req, Resp>> backends, List<Integer> weights) {
+        this(backends, weights, ThreadLocalRandom.current().nextInt(Math.max(1, backends.size())));
+    }
+
+    public WeightedLeastLoaded(List<RpcService<Req, Resp>> backends,
+                               List<Integer> weights,
+                               int startingPoint) {
+        Preconditions.checkArgument(!backends.isEmpty(), "At least one backend must be present");
+        Preconditions.checkArgument(weights.size() == backends.size(), "Weights must match backend count");
+        Preconditions.checkElementIndex(startingPoint, backends.size());
+
+        ImmutableList.Builder<WeightedService<Req, Resp>> builder = ImmutableList.builder();
+        for (int i = 0; i < backends.size(); i++) {
+            int weight = weights.get(i);
+            Preconditions.checkArgument(weight >= 0, "Weights must not be negative");
+            builder.add(new WeightedService<>(backends.get(i), weight));
+        }
+        this.backends = builder.build();
+        this.loopCounter = new AtomicInteger(startingPoint);
+    }
+
+    /**
+     * Changes the weight of a backend, takes effect from the next request.
+     *
+     * @param backend one of the backends this balancer was created with.
+     * @param weight new weight, zero stops traffic to the backend.
+     */
+    public void setWeight(RpcService<Req, Resp> backend, int weight) {
+        Preconditions.checkArgument(weight >= 0, "Weights must not be negative");
+        find(backend).weight = weight;
+    }
+
+    public int getWeight(RpcService<Req, Resp> backend) {
+        return find(backend).weight;
+    }
+
+    private WeightedService<Req, Resp> find(RpcService<Req, Resp> backend) {
+        for (WeightedService<Req, Resp> wrapper : backends) {
+            if (wrapper.service == backend) {
+                return wrapper;
+            }
+        }
+        throw new IllegalArgumentException("Unknown backend " + backend);
+    }
+
+    @Override
+    public ListenableFuture<Resp> apply(Req req) {
+        WeightedService<Req, Resp> host = select();
+        if (host != null) {
+            return host.apply(req);
+        } else {
+            return Futures.immediateFailedFuture(new RpcException("No healthy servers"));
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (WeightedService<Req, Resp> wrapper : backends) {
+            if (wrapper.isHealthy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private WeightedService<Req, Resp> select() {
+
+        // Cost of the best so far is bestLoad / bestWeight, compared by cross multiplication.
+        long bestLoad = 1;
+        long bestWeight = 0;
+        WeightedService<Req, Resp> ret = null;
+        int size = backends.size();
+
+        int start = loopCounter.get();
+        int nextLoopCounter = start;
+
+        for (int i = 0; i < size; i++) {
+            int j = (start + i) % size;
+            WeightedService<Req, Resp> wrapper = backends.get(j);
+            int weight = wrapper.weight;
+            if (weight != 0 && wrapper.service.isHealthy()) {
+                long load = wrapper.getOutboundRequests() + 1L;
+                if (load * bestWeight < bestLoad * weight) {
+                    bestLoad = load;
+                    bestWeight = weight;
+                    ret = wrapper;
+                    nextLoopCounter = j + 1;
+                }
+            }
+        }
+
+        loopCounter.set(nextLoopCounter);
+
+        return ret;
+    }
+}
@@ -2,17 +2,41 @@ package com.inmobi.rpc;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.math.IntMath;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Round robin in proportion to weights. The order of backends is computed once from the
+ * weights, interleaved so that each backend is picked at evenly spaced intervals rather
+ * than in runs, and every call takes the next position in that schedule with a single
+ * atomic increment. If the backend there is unhealthy the first following position of a
+ * healthy backend is taken, and the rotation skips past the positions in between, so that
+ * unhealthy backends' share is spread over the others. That position is found from the
+ * positions of each backend, at a cost bounded by the number of backends rather than the
+ * length of the schedule. Backends with weight zero are never selected.
+ *
+ * The schedule has sum(weights) / gcd(weights) positions. Larger sums than
+ * {@value #MAX_SCHEDULE} are scaled down, which keeps every non zero weight at least 1.
+ *
+ * Backends can be added, removed and reweighted at any time, which rebuilds the schedule.
+ * Calls read the current schedule without locking. Only attempts are counted, not
+ * completions, so the future returned on removal is already done.
+ *
  * @param <Req>
  * @param <Resp>
  */
 public class WeightedRoundRobin <Req, Resp> implements RpcService<Req, Resp> {
 
+    private static final int MAX_SCHEDULE = 1 << 16;
 
     private class RpcWrapper implements RpcService<Req,Resp> {
 
@@ -20,7 +44,7 @@ public class WeightedRoundRobin <Req, Resp> implements RpcService<Req, Resp> {
 
         private final int weight;
 
-        private final AtomicLong requestsAttempted = new AtomicLong(0);
+        private final LongAdder requestsAttempted = new LongAdder();
 
         public RpcWrapper(RpcService<Req, Resp> service, int weight) {
             this.service = service;
@@ -34,30 +58,73 @@ public class WeightedRoundRobin <Req, Resp> implements RpcService<Req, Resp> {
 
         @Override
         public ListenableFuture<Resp> apply(Req req) {
+            requestsAttempted.increment();
             return service.apply(req);
         }
+    }
+
+    /**
+     * Backends, the index of the backend at each position of the rotation, and the
+     * positions of each backend in ascending order.
+     */
+    private class Schedule {
+
+        final ImmutableList<RpcWrapper> backends;
+
+        final int[] slots;
+
+        final int[][] positions;
 
-        public double getCost() {
-            return weight == 0 ? Double.MAX_VALUE : ((double) requestsAttempted.get()) / weight;
+        Schedule(ImmutableList<RpcWrapper> backends) {
+            this.backends = backends;
+            int[] weights = new int[backends.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = backends.get(i).weight;
+            }
+            this.slots = interleave(weights);
+            int[] counts = new int[weights.length];
+            for (int backend : slots) {
+                counts[backend]++;
+            }
+            this.positions = new int[weights.length][];
+            for (int i = 0; i < weights.length; i++) {
+                positions[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+            for (int pos = 0; pos < slots.length; pos++) {
+                int backend = slots[pos];
+                positions[backend][counts[backend]++] = pos;
+            }
         }
 
-        public void updateCost(double minHealthyCost) {
-            if (service.isHealthy()) {
-                return;
+        /**
+         * @return distance from start to the first position after it whose backend is
+         * healthy, -1 if there is none. Looks up the next position of every backend instead
+         * of walking the positions, so the cost does not depend on the length.
+         */
+        int distanceToHealthy(int start) {
+            int best = -1;
+            for (int i = 0; i < positions.length; i++) {
+                int[] own = positions[i];
+                if (own.length == 0 || !backends.get(i).service.isHealthy()) {
+                    continue;
+                }
+                int found = Arrays.binarySearch(own, start);
+                int index = found >= 0 ? found : -found - 1;
+                int distance = index < own.length ? own[index] - start : own[0] + slots.length - start;
+                if (best < 0 || distance < best) {
+                    best = distance;
+                }
             }
-            // For unhealthy servers to catch up on number of requests.
-            long healthyLimit = (long) Math.floor(minHealthyCost * weight);
-            requestsAttempted.set(healthyLimit);
+            return best;
         }
     }
 
-    private final ImmutableList<RpcWrapper> backends;
+    private final AtomicInteger rotation = new AtomicInteger(0);
+
+    private volatile Schedule schedule;
 
     /**
-     * If sum(weights) is too large, it will take that many requests before
-     * renormalization starts. So make sure the sum is in the order of requests
-     * received in some tolerable time.
-     *
      * @param backends
      * @param weights
      */
@@ -70,15 +137,72 @@ public class WeightedRoundRobin <Req, Resp> implements RpcService<Req, Resp> {
         for (int i = 0; i < backends.size(); i++) {
             RpcService<Req, Resp> service = backends.get(i);
             int weight = weights.get(i);
+            Preconditions.checkArgument(weight >= 0, "Weights must not be negative");
             RpcWrapper wrapper = new RpcWrapper(service, weight);
             builder.add(wrapper);
         }
-        this.backends = builder.build();
+        this.schedule = new Schedule(builder.build());
+    }
+
+    /**
+     * Each backend gets weight positions, the k-th one at time (k + 1/2) / weight, and
+     * positions are ordered by time. This spreads the positions of every backend evenly.
+     */
+    static int[] interleave(int[] weights) {
+        int[] scaled = weights.clone();
+        long total = 0;
+        int nonZero = 0;
+        for (int weight : weights) {
+            total += weight;
+            nonZero += weight == 0 ? 0 : 1;
+        }
+        if (total > MAX_SCHEDULE) {
+            // Rounding down, with room left for weights raised to 1.
+            long target = MAX_SCHEDULE - nonZero;
+            for (int i = 0; i < scaled.length; i++) {
+                if (scaled[i] != 0) {
+                    scaled[i] = (int) Math.max(1, scaled[i] * target / total);
+                }
+            }
+        }
+        int gcd = 0;
+        for (int weight : scaled) {
+            gcd = weight == 0 ? gcd : IntMath.gcd(gcd, weight);
+        }
+        int length = 0;
+        for (int i = 0; i < scaled.length; i++) {
+            if (scaled[i] != 0) {
+                scaled[i] /= gcd;
+                length += scaled[i];
+            }
+        }
+
+        int[] taken = new int[scaled.length];
+        // Compares (2 * taken + 1) / weight by cross multiplication, ties by index.
+        PriorityQueue<Integer> next = new PriorityQueue<>((a, b) -> {
+            int byTime = Long.compare((2L * taken[a] + 1) * scaled[b], (2L * taken[b] + 1) * scaled[a]);
+            return byTime != 0 ? byTime : Integer.compare(a, b);
+        });
+        for (int i = 0; i < scaled.length; i++) {
+            if (scaled[i] != 0) {
+                next.add(i);
+            }
+        }
+        int[] slots = new int[length];
+        for (int i = 0; i < length; i++) {
+            int backend = next.poll();
+            slots[i] = backend;
+            taken[backend]++;
+            if (taken[backend] < scaled[backend]) {
+                next.add(backend);
+            }
+        }
+        return slots;
     }
 
     @Override
     public boolean isHealthy() {
-        for (RpcWrapper wrapper : backends) {
+        for (RpcWrapper wrapper : this.schedule.backends) {
             if (wrapper.isHealthy()) {
                 return true;
             }
@@ -96,24 +220,94 @@ public class WeightedRoundRobin <Req, Resp> implements RpcService<Req, Resp> {
     }
 
     private RpcWrapper select() {
+        Schedule schedule = this.schedule;
+        int[] slots = schedule.slots;
+        int length = slots.length;
+        if (length == 0) {
+            return null;
+        }
+        int start = Integer.remainderUnsigned(rotation.getAndIncrement(), length);
+        RpcWrapper wrapper = schedule.backends.get(slots[start]);
+        if (wrapper.service.isHealthy()) {
+            return wrapper;
+        }
+        int distance = schedule.distanceToHealthy(start);
+        if (distance < 0) {
+            return null;
+        }
+        rotation.getAndAdd(distance);
+        int pos = start + distance;
+        return schedule.backends.get(slots[pos < length ? pos : pos - length]);
+    }
 
-        RpcWrapper retHealthy = null;
-
-        double minHealthyCost = Double.MAX_VALUE;
+    /**
+     * Starts sending requests to backend as well.
+     */
+    public synchronized void addBackend(RpcService<Req, Resp> backend, int weight) {
+        Preconditions.checkArgument(weight >= 0, "Weights must not be negative");
+        schedule = new Schedule(ImmutableList.<RpcWrapper>builder()
+                .addAll(schedule.backends)
+                .add(new RpcWrapper(backend, weight))
+                .build());
+    }
 
-        for (RpcWrapper server : backends) {
-            double cost = server.getCost();
-            if (cost < minHealthyCost && server.isHealthy()) {
-                minHealthyCost = cost;
-                retHealthy = server;
+    /**
+     * Stops sending new requests to backend.
+     *
+     * @return a future which is already done, see above.
+     * @throws IllegalArgumentException if backend is not part of this balancer.
+     */
+    public synchronized ListenableFuture<Void> removeBackend(RpcService<Req, Resp> backend) {
+        ImmutableList.Builder<RpcWrapper> builder = ImmutableList.builder();
+        boolean removed = false;
+        for (RpcWrapper wrapper : schedule.backends) {
+            if (!removed && wrapper.service == backend) {
+                removed = true;
+            } else {
+                builder.add(wrapper);
             }
         }
-        for (RpcWrapper candidate : backends) {
-            candidate.updateCost(minHealthyCost);
+        Preconditions.checkArgument(removed, "Unknown backend");
+        schedule = new Schedule(builder.build());
+        return Futures.immediateVoidFuture();
+    }
+
+    /**
+     * Replaces the set of backends in one step. Backends present before and after, by
+     * identity, with the same weight keep their request counts.
+     *
+     * @return a future which is already done, see above.
+     */
+    public synchronized ListenableFuture<Void> replaceBackends(List<RpcService<Req, Resp>> newBackends,
+                                                               List<Integer> weights) {
+        Preconditions.checkArgument(!newBackends.isEmpty(), "At least one backend must be there");
+        Preconditions.checkArgument(weights.size() == newBackends.size(), "Weights must match backend count");
+        Map<RpcService<Req, Resp>, RpcWrapper> current = new IdentityHashMap<>();
+        for (RpcWrapper wrapper : schedule.backends) {
+            current.putIfAbsent(wrapper.service, wrapper);
         }
-        if (retHealthy != null) {
-            retHealthy.requestsAttempted.incrementAndGet();
+        ImmutableList.Builder<RpcWrapper> builder = ImmutableList.builder();
+        for (int i = 0; i < newBackends.size(); i++) {
+            RpcService<Req, Resp> service = newBackends.get(i);
+            int weight = weights.get(i);
+            Preconditions.checkArgument(weight >= 0, "Weights must not be negative");
+            RpcWrapper wrapper = current.remove(service);
+            builder.add(wrapper != null && wrapper.weight == weight ? wrapper : new RpcWrapper(service, weight));
+        }
+        schedule = new Schedule(builder.build());
+        return Futures.immediateVoidFuture();
+    }
+
+    /**
+     * @return requests sent to backend since it was added with its current weight.
+     * @throws IllegalArgumentException if backend is not part of this balancer.
+     */
+    public long getRequestsAttempted(RpcService<Req, Resp> backend) {
+        for (RpcWrapper wrapper : schedule.backends) {
+            if (wrapper.service == backend) {
+                return wrapper.requestsAttempted.sum();
+            }
         }
-        return retHealthy;
+        throw new IllegalArgumentException("Unknown backend " + backend);
     }
 }
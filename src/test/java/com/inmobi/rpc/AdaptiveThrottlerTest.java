@@ -0,0 +1,134 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveThrottlerTest {
+
+    @Test
+    public void testRejectsAboveLimit() {
+        SettableFuture<Object> pending = SettableFuture.create();
+        AdaptiveThrottler<Object, Object> throttler = new AdaptiveThrottler<>(RpcTestUtils.custom(pending),
+                AdaptiveThrottler.aimd(2, 1, 10, 0.5, 1, TimeUnit.SECONDS));
+
+        assertFalse(throttler.apply(new Object()).isCancelled());
+        assertFalse(throttler.apply(new Object()).isCancelled());
+        assertFalse(throttler.isHealthy(), "Limit reached");
+        assertTrue(throttler.apply(new Object()).isCancelled(), "Third request must be rejected");
+        assertEquals(throttler.getInFlight(), 2);
+
+        pending.set(new Object());
+        assertEquals(throttler.getInFlight(), 0);
+        assertTrue(throttler.isHealthy());
+    }
+
+    @Test
+    public void testAimdGrowsOnSuccessAndBacksOffOnFailure() {
+        FakeTicker ticker = new FakeTicker();
+        List<SettableFuture<Object>> futures = new ArrayList<>();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> {
+            SettableFuture<Object> future = SettableFuture.create();
+            futures.add(future);
+            return future;
+        }, () -> true);
+
+        AdaptiveThrottler<Object, Object> throttler = new AdaptiveThrottler<>(backend,
+                AdaptiveThrottler.aimd(4, 1, 100, 0.5, 100, TimeUnit.MILLISECONDS), ticker);
+
+        for (int round = 0; round < 10; round++) {
+            int limit = throttler.getLimit();
+            for (int i = 0; i < limit; i++) {
+                throttler.apply(new Object());
+            }
+            ticker.advance(10, TimeUnit.MILLISECONDS);
+            for (SettableFuture<Object> future : futures) {
+                future.set(new Object());
+            }
+            futures.clear();
+        }
+        int grown = throttler.getLimit();
+        assertTrue(grown > 20, "Limit must grow while fully used and fast, got " + grown);
+
+        throttler.apply(new Object());
+        futures.get(0).setException(new RpcException("Test"));
+        assertEquals(throttler.getLimit(), grown / 2, "Failure must halve the limit");
+
+        futures.clear();
+        throttler.apply(new Object());
+        ticker.advance(1, TimeUnit.SECONDS);
+        futures.get(0).set(new Object());
+        assertEquals(throttler.getLimit(), grown / 4, "Slow response must halve the limit");
+
+        futures.clear();
+        throttler.apply(new Object()).cancel(true);
+        assertEquals(throttler.getLimit(), grown / 4, "Cancellation must leave the limit alone");
+        assertEquals(throttler.getInFlight(), 0);
+    }
+
+    @Test
+    public void testBackendExceptionReleasesPermit() {
+        AdaptiveThrottler<Object, Object> throttler = new AdaptiveThrottler<>(
+                new FunctionalRpcService<>(req -> {
+                    throw new IllegalStateException("Test");
+                }, () -> true),
+                AdaptiveThrottler.aimd(1, 1, 1, 0.5, 1, TimeUnit.SECONDS));
+
+        ListenableFuture<Object> future = throttler.apply(new Object());
+        assertTrue(future.isDone() && !future.isCancelled());
+        assertEquals(throttler.getInFlight(), 0);
+        assertTrue(throttler.isHealthy());
+    }
+
+    private static Simulator.Result overload(AdaptiveThrottler.LimitAlgorithm algorithm, int[] finalLimit) {
+        Simulator simulator = new Simulator(17);
+        // Backend handles 4 requests at a time, 10ms each: 400 qps, offered 600 qps.
+        SimulatedBackend backend = new SimulatedBackend(simulator, ServiceTime.exponential(10), 4);
+        AdaptiveThrottler<Object, Object> throttler = new AdaptiveThrottler<>(backend, algorithm,
+                simulator.ticker());
+        Simulator.Result result = simulator.drive(throttler, ArrivalProcess.poisson(600), 12000);
+        finalLimit[0] = throttler.getLimit();
+        return result;
+    }
+
+    @Test
+    public void testAimdAvoidsQueueCollapse() {
+        int[] limit = new int[1];
+        Simulator.Result result = overload(
+                AdaptiveThrottler.aimd(10, 1, 1000, 0.9, 40, TimeUnit.MILLISECONDS), limit);
+
+        System.err.println("AdaptiveThrottler AIMD: (" + result + ") limit=" + limit[0]);
+        assertTrue(limit[0] < 100, "Limit must stay near the backend's capacity");
+        assertTrue(result.getLatencyMillis(99) < 200, "Queueing must stay bounded");
+        assertTrue(result.getFailures() < 12000 / 2, "Most of the capacity must be used");
+    }
+
+    @Test
+    public void testGradientAvoidsQueueCollapse() {
+        int[] limit = new int[1];
+        Simulator.Result result = overload(AdaptiveThrottler.gradient(10, 1, 1000), limit);
+
+        System.err.println("AdaptiveThrottler gradient: (" + result + ") limit=" + limit[0]);
+        assertTrue(limit[0] < 100, "Limit must stay near the backend's capacity");
+        assertTrue(result.getLatencyMillis(99) < 500, "Queueing must stay bounded");
+    }
+
+    @Test
+    public void testUnlimitedAmountOfFastSuccessesIsAllowed() {
+        AdaptiveThrottler<Object, Object> throttler = new AdaptiveThrottler<>(immediateSuccess(new Object()),
+                AdaptiveThrottler.gradient(1, 1, 10));
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(throttler.apply(new Object()).isCancelled());
+        }
+        assertTrue(throttler.isHealthy());
+    }
+}
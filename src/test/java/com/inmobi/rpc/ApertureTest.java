@@ -0,0 +1,212 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ApertureTest {
+
+    private static ImmutableList<RpcService<Object, Object>> backends(int count) {
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            builder.add(immediateSuccess(new Object()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of clients using each backend.
+     */
+    private static Map<RpcService<Object, Object>, Integer> clientsPerBackend(
+            ImmutableList<RpcService<Object, Object>> backends, int clientCount, int minAperture) {
+        Map<RpcService<Object, Object>, Integer> clients = new IdentityHashMap<>();
+        for (RpcService<Object, Object> backend : backends) {
+            clients.put(backend, 0);
+        }
+        for (int clientId = 0; clientId < clientCount; clientId++) {
+            Aperture<Object, Object> aperture = new Aperture<>(backends, clientId, clientCount, minAperture, 0.5, 2);
+            for (RpcService<Object, Object> backend : aperture.getSubset()) {
+                clients.merge(backend, 1, Integer::sum);
+            }
+        }
+        return clients;
+    }
+
+    @Test
+    public void testSubsetsCoverBackendsEvenly() {
+        ImmutableList<RpcService<Object, Object>> backends = backends(100);
+
+        Map<RpcService<Object, Object>, Integer> clients = clientsPerBackend(backends, 10, 1);
+        for (int count : clients.values()) {
+            assertEquals(count, 1, "10 clients of 10 backends each must partition 100 backends");
+        }
+    }
+
+    @Test
+    public void testTrafficSpreadsEvenly() {
+        // 3 clients of 10 backends overlap at backends 3 and 6, which must still get only
+        // their share.
+        int[] calls = new int[10];
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < calls.length; i++) {
+            int index = i;
+            builder.add(new FunctionalRpcService<>(req -> {
+                calls[index]++;
+                return Futures.immediateFuture(req);
+            }, () -> true));
+        }
+        ImmutableList<RpcService<Object, Object>> backends = builder.build();
+        for (int clientId = 0; clientId < 3; clientId++) {
+            Aperture<Object, Object> aperture = new Aperture<>(backends, clientId, 3);
+            for (int i = 0; i < 30000; i++) {
+                aperture.apply(new Object());
+            }
+        }
+        for (int count : calls) {
+            assertTrue(Math.abs(count - 9000) < 450, "Uneven traffic: " + Arrays.toString(calls));
+        }
+    }
+
+    @Test
+    public void testRequestsStayInSubset() throws ExecutionException, InterruptedException {
+        ImmutableList<RpcService<Object, Object>> backends = backends(900);
+        Aperture<Object, Object> aperture = new Aperture<>(backends, 5, 300);
+        assertEquals(aperture.getAperture(), 3);
+        assertEquals(aperture.getSubset(), backends.subList(15, 18));
+
+        List<Object> allowed = new ArrayList<>();
+        for (RpcService<Object, Object> backend : aperture.getSubset()) {
+            allowed.add(backend.apply(null).get());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(allowed.contains(aperture.apply(new Object()).get()));
+        }
+    }
+
+    private static Aperture<Object, Object> pending(List<SettableFuture<Object>> pending, FakeTicker ticker) {
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < 20; i++) {
+            builder.add(new FunctionalRpcService<>(req -> {
+                SettableFuture<Object> future = SettableFuture.create();
+                pending.add(future);
+                return future;
+            }, () -> true));
+        }
+        return new Aperture<>(builder.build(), 0, 10, 2, 0.5, 2, 1, TimeUnit.SECONDS, ticker);
+    }
+
+    @Test
+    public void testApertureFollowsLoad() {
+        List<SettableFuture<Object>> pending = new ArrayList<>();
+        FakeTicker ticker = new FakeTicker();
+        Aperture<Object, Object> aperture = pending(pending, ticker);
+        assertEquals(aperture.getAperture(), 2);
+
+        for (int i = 0; i < 100; i++) {
+            ticker.advance(100, TimeUnit.MILLISECONDS);
+            aperture.apply(new Object());
+        }
+        assertEquals(aperture.getAperture(), 20, "Must grow to every backend under sustained load");
+
+        for (SettableFuture<Object> future : pending) {
+            future.set(new Object());
+        }
+        pending.clear();
+        for (int i = 0; i < 100; i++) {
+            ticker.advance(100, TimeUnit.MILLISECONDS);
+            aperture.apply(new Object()).cancel(true);
+        }
+        assertEquals(aperture.getAperture(), 2, "Must shrink back once idle");
+    }
+
+    @Test
+    public void testBurstDoesNotResize() {
+        List<SettableFuture<Object>> pending = new ArrayList<>();
+        FakeTicker ticker = new FakeTicker();
+        Aperture<Object, Object> aperture = pending(pending, ticker);
+
+        for (int i = 0; i < 100; i++) {
+            aperture.apply(new Object());
+        }
+        assertEquals(aperture.getAperture(), 2, "A burst must not resize the window");
+
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        aperture.apply(new Object());
+        assertEquals(aperture.getAperture(), 2, "A short burst must not resize the window");
+    }
+
+    @Test
+    public void testUnhealthySubsetFallsBack() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+        RpcService<Object, Object> unhealthy = new FunctionalRpcService<>(
+                req -> Futures.immediateCancelledFuture(), () -> false);
+        Aperture<Object, Object> aperture = new Aperture<>(
+                ImmutableList.of(unhealthy, unhealthy, unhealthy, immediateSuccess(resp)), 0, 2, 1, 0.5, 2);
+
+        assertEquals(aperture.getAperture(), 2);
+        assertTrue(aperture.isHealthy());
+        assertEquals(aperture.apply(new Object()).get(), resp);
+    }
+
+    @Test
+    public void testNoHealthyBackends() {
+        Aperture<Object, Object> aperture = new Aperture<>(ImmutableList.of(
+                new FunctionalRpcService<>(req -> Futures.immediateFuture(req), () -> false)), 0, 1);
+        assertFalse(aperture.isHealthy());
+        assertTrue(aperture.apply(new Object()).isDone());
+    }
+
+    @Test
+    public void testFleetChangesMoveWindow() {
+        ImmutableList<RpcService<Object, Object>> backends = backends(100);
+        Aperture<Object, Object> aperture = new Aperture<>(backends.subList(0, 50), 3, 10, 1, 0.5, 2);
+        assertEquals(aperture.getSubset(), backends.subList(15, 20));
+
+        aperture.replaceBackends(backends);
+        assertEquals(aperture.getSubset(), backends.subList(30, 40));
+
+        aperture.setClient(3, 20);
+        assertEquals(aperture.getSubset(), backends.subList(15, 20));
+    }
+
+    @Test
+    public void testAddAndRemoveBackend() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending = SettableFuture.create();
+        RpcService<Object, Object> slow = RpcTestUtils.custom(pending);
+        Object resp = new Object();
+        RpcService<Object, Object> fast = immediateSuccess(resp);
+        Aperture<Object, Object> aperture = new Aperture<>(ImmutableList.of(slow), 0, 1);
+        aperture.apply(new Object());
+
+        aperture.addBackend(fast);
+        assertEquals(aperture.getSubset(), ImmutableList.of(slow, fast));
+        ListenableFuture<Void> drained = aperture.removeBackend(slow);
+        assertEquals(aperture.getSubset(), ImmutableList.of(fast));
+        assertEquals(aperture.apply(new Object()).get(), resp);
+        assertFalse(drained.isDone(), "A request is still outstanding");
+
+        pending.set(resp);
+        assertTrue(drained.isDone());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRemoveOnlyBackend() {
+        RpcService<Object, Object> backend = immediateSuccess(new Object());
+        new Aperture<>(ImmutableList.of(backend), 0, 1).removeBackend(backend);
+    }
+}
@@ -0,0 +1,28 @@
+package com.inmobi.rpc;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time between two consecutive requests in a {@link Simulator} run.
+ */
+public interface ArrivalProcess {
+
+    long nextGapNanos(Random random);
+
+    /**
+     * Poisson process, exponentially distributed gaps.
+     */
+    static ArrivalProcess poisson(double ratePerSecond) {
+        double meanGap = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        return random -> (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+    }
+
+    /**
+     * Evenly spaced requests.
+     */
+    static ArrivalProcess constant(double ratePerSecond) {
+        long gap = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        return random -> gap;
+    }
+}
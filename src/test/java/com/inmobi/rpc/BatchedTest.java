@@ -0,0 +1,225 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class BatchedTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Doubles every number, remembers the batches it was sent.
+     */
+    private static class Doubler implements RpcService<List<Integer>, List<Integer>> {
+
+        final List<List<Integer>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized ListenableFuture<List<Integer>> apply(List<Integer> req) {
+            batches.add(req);
+            return Futures.immediateFuture(req.stream().map(i -> i * 2).collect(Collectors.toList()));
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        synchronized int batchCount() {
+            return batches.size();
+        }
+    }
+
+    @Test
+    public void testFullBatchIsSentImmediately() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 3, 1, TimeUnit.HOURS, scheduler);
+
+        ListenableFuture<Integer> first = batched.apply(1);
+        ListenableFuture<Integer> second = batched.apply(2);
+        assertFalse(first.isDone(), "Batch is not full yet");
+        ListenableFuture<Integer> third = batched.apply(3);
+
+        assertEquals(first.get(), Integer.valueOf(2));
+        assertEquals(second.get(), Integer.valueOf(4));
+        assertEquals(third.get(), Integer.valueOf(6));
+        assertEquals(doubler.batches, ImmutableList.of(ImmutableList.of(1, 2, 3)));
+    }
+
+    @Test
+    public void testPartialBatchIsSentAfterDelay() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 100, 5, TimeUnit.MILLISECONDS, scheduler);
+
+        ListenableFuture<Integer> first = batched.apply(1);
+        ListenableFuture<Integer> second = batched.apply(2);
+
+        assertEquals(first.get(), Integer.valueOf(2));
+        assertEquals(second.get(), Integer.valueOf(4));
+        assertEquals(doubler.batchCount(), 1);
+    }
+
+    @Test
+    public void testSentRightAwayOnceSchedulerShutDown() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 100, 1, TimeUnit.HOURS, scheduler);
+
+        scheduler.shutdown();
+        ListenableFuture<Integer> first = batched.apply(1);
+        ListenableFuture<Integer> second = batched.apply(2);
+
+        assertEquals(first.get(), Integer.valueOf(2));
+        assertEquals(second.get(), Integer.valueOf(4));
+        assertEquals(doubler.batches, ImmutableList.of(ImmutableList.of(1), ImmutableList.of(2)));
+    }
+
+    @Test
+    public void testManyRequestsFewBatches() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        // Every batch fills up, the delay only has to be long enough not to fire first.
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 50, 10, TimeUnit.SECONDS, scheduler);
+
+        List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(batched.apply(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(futures.get(i).get(), Integer.valueOf(2 * i));
+        }
+        assertEquals(doubler.batchCount(), 20);
+    }
+
+    @Test
+    public void testBatchFailureFailsEveryRequest() throws InterruptedException {
+        RpcService<List<Integer>, List<Integer>> broken = new FunctionalRpcService<>(
+                req -> Futures.immediateFailedFuture(new RpcException("Test")), () -> true);
+        Batched<Integer, Integer> batched = new Batched<>(broken, 2, 1, TimeUnit.HOURS, scheduler);
+
+        ListenableFuture<Integer> first = batched.apply(1);
+        ListenableFuture<Integer> second = batched.apply(2);
+        for (ListenableFuture<Integer> future : ImmutableList.of(first, second)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RpcException);
+            }
+        }
+    }
+
+    @Test
+    public void testPerItemFailure() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 2, 1, TimeUnit.HOURS, scheduler,
+                resp -> resp < 0 ? new RpcException("Negative") : null);
+
+        ListenableFuture<Integer> good = batched.apply(1);
+        ListenableFuture<Integer> bad = batched.apply(-1);
+
+        assertEquals(good.get(), Integer.valueOf(2));
+        try {
+            bad.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getMessage(), "Negative");
+        }
+    }
+
+    @Test
+    public void testResponseCountMismatch() throws InterruptedException {
+        RpcService<List<Integer>, List<Integer>> truncating = new FunctionalRpcService<>(
+                req -> Futures.immediateFuture(ImmutableList.of(1)), () -> true);
+        Batched<Integer, Integer> batched = new Batched<>(truncating, 2, 1, TimeUnit.HOURS, scheduler);
+
+        batched.apply(1);
+        try {
+            batched.apply(2).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testCancelledRequestsAreLeftOut() throws ExecutionException, InterruptedException {
+        Doubler doubler = new Doubler();
+        Batched<Integer, Integer> batched = new Batched<>(doubler, 3, 1, TimeUnit.HOURS, scheduler);
+
+        batched.apply(1).cancel(true);
+        ListenableFuture<Integer> second = batched.apply(2);
+        ListenableFuture<Integer> third = batched.apply(3);
+
+        assertEquals(second.get(), Integer.valueOf(4));
+        assertEquals(third.get(), Integer.valueOf(6));
+        assertEquals(doubler.batches, ImmutableList.of(ImmutableList.of(2, 3)));
+    }
+
+    @Test
+    public void testBatchKeepsLatestDeadline() throws ExecutionException, InterruptedException {
+        AtomicReference<Deadline> seen = new AtomicReference<>();
+        RpcService<List<Integer>, List<Integer>> backend = new FunctionalRpcService<>(req -> {
+            seen.set(Deadline.current());
+            return Futures.immediateFuture(req);
+        }, () -> true);
+        Batched<Integer, Integer> batched = new Batched<>(backend, 100, 5, TimeUnit.MILLISECONDS, scheduler);
+
+        FakeTicker ticker = new FakeTicker();
+        Deadline early = Deadline.after(1, TimeUnit.SECONDS, ticker);
+        Deadline late = Deadline.after(2, TimeUnit.SECONDS, ticker);
+        ListenableFuture<Integer> first = Deadline.runWith(early, () -> batched.apply(1));
+        ListenableFuture<Integer> second = Deadline.runWith(late, () -> batched.apply(2));
+        first.get();
+        second.get();
+        assertSame(seen.get(), late, "Batch sent from the scheduler must carry the latest deadline");
+
+        batched.apply(3).get();
+        assertNull(seen.get(), "Request without deadline must not be bounded");
+    }
+
+    @Test
+    public void testBelowBalancer() throws ExecutionException, InterruptedException {
+        SettableFuture<List<Integer>> hold = SettableFuture.create();
+        RpcService<List<Integer>, List<Integer>> held = new FunctionalRpcService<>(req -> hold, () -> true);
+        Doubler doubler = new Doubler();
+
+        LeastLoaded<Integer, Integer> leastLoaded = new LeastLoaded<>(ImmutableList.of(
+                new Batched<>(held, 1, 1, TimeUnit.HOURS, scheduler),
+                new Batched<>(doubler, 1, 1, TimeUnit.HOURS, scheduler)), 0);
+
+        ListenableFuture<Integer> first = leastLoaded.apply(1);
+        assertEquals(leastLoaded.apply(2).get(), Integer.valueOf(4), "Second request must avoid the busy host");
+        hold.set(ImmutableList.of(7));
+        assertEquals(first.get(), Integer.valueOf(7));
+    }
+}
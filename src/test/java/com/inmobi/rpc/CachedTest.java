@@ -0,0 +1,179 @@
+package com.inmobi.rpc;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.inmobi.rpc.RpcTestUtils.counting;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CachedTest {
+
+    @Test
+    public void testHitsAndMisses() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> backend = counting(calls, req -> req + "-" + calls.get());
+        Cached<String, String> cached = new Cached<>(backend, 100, 1, TimeUnit.MINUTES);
+
+        assertEquals(cached.apply("a").get(), "a-1");
+        assertEquals(cached.apply("a").get(), "a-1");
+        assertEquals(cached.apply("b").get(), "b-2");
+        assertEquals(calls.get(), 2);
+
+        CacheStats stats = cached.stats();
+        assertEquals(stats.hitCount(), 1);
+        assertEquals(stats.missCount(), 2);
+    }
+
+    @Test
+    public void testExpiry() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        FakeTicker ticker = new FakeTicker();
+        RpcService<String, String> backend = counting(calls, req -> req + "-" + calls.get());
+        Cached<String, String> cached = new Cached<>(backend, 100, 10, 0, TimeUnit.SECONDS, ticker);
+
+        assertEquals(cached.apply("a").get(), "a-1");
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertEquals(cached.apply("a").get(), "a-1");
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertEquals(cached.apply("a").get(), "a-2", "Expired entry must be reloaded");
+    }
+
+    @Test
+    public void testMaximumSize() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> backend = counting(calls, req -> req + "-" + calls.get());
+        Cached<String, String> cached = new Cached<>(backend, 10, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 100; i++) {
+            cached.apply("key" + i).get();
+        }
+        assertTrue(cached.size() <= 10);
+        assertTrue(cached.stats().evictionCount() >= 90);
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws ExecutionException, InterruptedException {
+        List<SettableFuture<String>> pending = new ArrayList<>();
+        RpcService<String, String> backend = new FunctionalRpcService<>(req -> {
+            SettableFuture<String> future = SettableFuture.create();
+            pending.add(future);
+            return future;
+        }, () -> true);
+        FakeTicker ticker = new FakeTicker();
+        Cached<String, String> cached = new Cached<>(backend, 100, 10, 5, TimeUnit.SECONDS, ticker);
+
+        ListenableFuture<String> first = cached.apply("a");
+        pending.get(0).set("old");
+        assertEquals(first.get(), "old");
+
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertEquals(cached.apply("a").get(), "old", "Stale response served while reloading");
+        assertEquals(pending.size(), 2, "Reload sent to the backend");
+        assertEquals(cached.apply("a").get(), "old");
+        assertEquals(pending.size(), 2, "Only one reload at a time");
+
+        pending.get(1).set("new");
+        assertEquals(cached.apply("a").get(), "new");
+    }
+
+    @Test
+    public void testFailedReloadKeepsStaleResponse() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> backend = new FunctionalRpcService<>(req -> calls.incrementAndGet() == 1
+                ? Futures.immediateFuture("old")
+                : Futures.immediateFailedFuture(new RpcException("Test")), () -> true);
+        FakeTicker ticker = new FakeTicker();
+        Cached<String, String> cached = new Cached<>(backend, 100, 10, 5, TimeUnit.SECONDS, ticker);
+
+        assertEquals(cached.apply("a").get(), "old");
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertEquals(cached.apply("a").get(), "old");
+        assertEquals(calls.get(), 2);
+        assertEquals(cached.failureCount(), 1);
+
+        ticker.advance(4, TimeUnit.SECONDS);
+        try {
+            cached.apply("a").get();
+            fail("Stale response must not outlive expiry");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        SettableFuture<String> inFlight = SettableFuture.create();
+        RpcService<String, String> backend = new FunctionalRpcService<>(req -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                return Futures.immediateFailedFuture(new RpcException("Test"));
+            } else if (call == 2) {
+                return inFlight;
+            }
+            return Futures.immediateFuture("value");
+        }, () -> true);
+        Cached<String, String> cached = new Cached<>(backend, 100, 1, TimeUnit.MINUTES);
+
+        assertTrue(isFailed(cached.apply("a")));
+        ListenableFuture<String> second = cached.apply("a");
+        inFlight.setException(new RpcException("Test"));
+        assertTrue(isFailed(second));
+        assertEquals(cached.apply("a").get(), "value");
+        assertEquals(calls.get(), 3);
+        assertEquals(cached.failureCount(), 2);
+    }
+
+    @Test
+    public void testCancellingDoesNotCancelSharedLoad() throws ExecutionException, InterruptedException {
+        SettableFuture<String> inFlight = SettableFuture.create();
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> backend = new FunctionalRpcService<>(req -> {
+            calls.incrementAndGet();
+            return inFlight;
+        }, () -> true);
+        Cached<String, String> cached = new Cached<>(backend, 100, 1, TimeUnit.MINUTES);
+
+        ListenableFuture<String> first = cached.apply("a");
+        ListenableFuture<String> second = cached.apply("a");
+        first.cancel(true);
+        assertFalse(inFlight.isCancelled());
+
+        inFlight.set("value");
+        assertEquals(second.get(), "value");
+        assertEquals(cached.apply("a").get(), "value");
+        assertEquals(calls.get(), 1);
+    }
+
+    @Test
+    public void testInvalidate() throws ExecutionException, InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> backend = counting(calls, req -> req + "-" + calls.get());
+        Cached<String, String> cached = new Cached<>(backend, 100, 1, TimeUnit.MINUTES);
+
+        assertEquals(cached.apply("a").get(), "a-1");
+        cached.invalidate("a");
+        assertEquals(cached.apply("a").get(), "a-2");
+    }
+
+    private static boolean isFailed(ListenableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static RpcService<Object, Object> switchable(AtomicBoolean failing, Object resp) {
+        return new FunctionalRpcService<>(req -> failing.get()
+                ? Futures.immediateFailedFuture(new RpcException("Test"))
+                : Futures.immediateFuture(resp), () -> true);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        FakeTicker ticker = new FakeTicker();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(switchable(failing, new Object()),
+                3, 1.0, 3, 1, TimeUnit.SECONDS, 1, ticker);
+
+        breaker.apply(new Object());
+        breaker.apply(new Object());
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertTrue(breaker.isHealthy());
+
+        breaker.apply(new Object());
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        assertFalse(breaker.isHealthy());
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(switchable(failing, new Object()),
+                3, 1, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 10; i++) {
+            failing.set(true);
+            breaker.apply(new Object());
+            breaker.apply(new Object());
+            failing.set(false);
+            breaker.apply(new Object());
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        FakeTicker ticker = new FakeTicker();
+        AtomicBoolean failing = new AtomicBoolean(false);
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(switchable(failing, new Object()),
+                100, 0.5, 10, 1, TimeUnit.SECONDS, 1, ticker);
+
+        for (int i = 0; i < 9; i++) {
+            failing.set(i % 2 == 0);
+            breaker.apply(new Object());
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED, "Window not yet full");
+        failing.set(false);
+        breaker.apply(new Object());
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN, "Half of the window failed");
+    }
+
+    @Test
+    public void testOpenFailsFastThenProbes() throws ExecutionException, InterruptedException {
+        FakeTicker ticker = new FakeTicker();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        AtomicInteger calls = new AtomicInteger();
+        Object resp = new Object();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> {
+            calls.incrementAndGet();
+            return failing.get()
+                    ? Futures.immediateFailedFuture(new RpcException("Test"))
+                    : Futures.immediateFuture(resp);
+        }, () -> true);
+
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(backend,
+                1, 1.0, 1, 1, TimeUnit.SECONDS, 2, ticker);
+
+        breaker.apply(new Object());
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        try {
+            breaker.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+        assertEquals(calls.get(), 1, "Backend must not be called while open");
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertTrue(breaker.isHealthy(), "Must accept probes after the open duration");
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+
+        breaker.apply(new Object());
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN, "Failed probe must open again");
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        failing.set(false);
+        assertEquals(breaker.apply(new Object()).get(), resp);
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN, "Needs two successful probes");
+        assertEquals(breaker.apply(new Object()).get(), resp);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testHalfOpenLimitsProbes() {
+        FakeTicker ticker = new FakeTicker();
+        SettableFuture<Object> pending = SettableFuture.create();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> failing.get()
+                ? Futures.immediateFailedFuture(new RpcException("Test"))
+                : pending, () -> true);
+
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(backend,
+                1, 1.0, 1, 1, TimeUnit.SECONDS, 1, ticker);
+        breaker.apply(new Object());
+        ticker.advance(1, TimeUnit.SECONDS);
+        failing.set(false);
+
+        ListenableFuture<Object> probe = breaker.apply(new Object());
+        assertFalse(probe.isDone());
+        assertFalse(breaker.isHealthy(), "Probe in flight, no more requests allowed");
+        assertTrue(breaker.apply(new Object()).isDone(), "Second request must fail fast");
+
+        pending.cancel(true);
+        assertTrue(breaker.isHealthy(), "Cancelled probe must be given back");
+    }
+
+    @Test
+    public void testCancellationIsNotAFailure() {
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(
+                new FunctionalRpcService<>(req -> Futures.immediateCancelledFuture(), () -> true),
+                1, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            breaker.apply(new Object());
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testFastFailingBackendLeavesLeastLoaded() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+        AtomicInteger failingCalls = new AtomicInteger();
+        RpcService<Object, Object> failing = new FunctionalRpcService<>(req -> {
+            failingCalls.incrementAndGet();
+            return Futures.immediateFailedFuture(new RpcException("Test"));
+        }, () -> true);
+        RpcService<Object, Object> slow = new FunctionalRpcService<>(req -> SettableFuture.create(), () -> true);
+        RpcService<Object, Object> good = RpcTestUtils.immediateSuccess(resp);
+
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(
+                new CircuitBreaker<>(failing, 3, 1, TimeUnit.MINUTES),
+                new CircuitBreaker<>(slow, 3, 1, TimeUnit.MINUTES),
+                new CircuitBreaker<>(good, 3, 1, TimeUnit.MINUTES)), 0);
+
+        for (int i = 0; i < 100; i++) {
+            leastLoaded.apply(new Object());
+        }
+        assertEquals(failingCalls.get(), 3, "Breaker must stop traffic after three failures");
+
+        Preferred<Object, Object> preferred = new Preferred<>(ImmutableList.of(
+                new CircuitBreaker<>(failing, 1, 1, TimeUnit.MINUTES),
+                good));
+        preferred.apply(new Object());
+        assertEquals(preferred.apply(new Object()).get(), resp, "Preferred must fall through to the next");
+    }
+
+    @Test
+    public void testLockingBreakerDoesNotStallResponses() throws InterruptedException {
+        SettableFuture<Object> response = SettableFuture.create();
+        CircuitBreaker<Object, Object> breaker = new CircuitBreaker<>(
+                new FunctionalRpcService<>(req -> response, () -> true), 1, 1, TimeUnit.SECONDS);
+        breaker.apply(new Object());
+
+        Thread responder = new Thread(() -> response.setException(new RpcException("Test")));
+        synchronized (breaker) {
+            responder.start();
+            responder.join(10000);
+            assertFalse(responder.isAlive(), "Response must be recorded while the breaker is locked");
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    }
+}
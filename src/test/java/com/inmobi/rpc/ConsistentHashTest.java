@@ -0,0 +1,239 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ConsistentHashTest {
+
+    /**
+     * Responds with its own index. Requests stay outstanding while hold is set.
+     */
+    private static class IndexedBackend implements RpcService<String, Integer> {
+
+        final int index;
+
+        final AtomicBoolean healthy = new AtomicBoolean(true);
+
+        final List<SettableFuture<Integer>> held = new ArrayList<>();
+
+        boolean hold;
+
+        IndexedBackend(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public ListenableFuture<Integer> apply(String req) {
+            if (hold) {
+                SettableFuture<Integer> future = SettableFuture.create();
+                held.add(future);
+                return future;
+            }
+            return Futures.immediateFuture(index);
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return healthy.get();
+        }
+    }
+
+    private static List<IndexedBackend> backends(int count) {
+        List<IndexedBackend> backends = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            backends.add(new IndexedBackend(i));
+        }
+        return backends;
+    }
+
+    private static List<String> names(List<IndexedBackend> backends) {
+        List<String> names = new ArrayList<>();
+        for (IndexedBackend backend : backends) {
+            names.add("host" + backend.index);
+        }
+        return names;
+    }
+
+    private static Map<String, Integer> route(ConsistentHash<String, Integer> hash, int keys)
+            throws ExecutionException, InterruptedException {
+        Map<String, Integer> placement = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            String key = "key" + i;
+            placement.put(key, hash.apply(key).get());
+        }
+        return placement;
+    }
+
+    @Test
+    public void testSameKeySameBackend() throws ExecutionException, InterruptedException {
+        List<IndexedBackend> backends = backends(10);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity());
+
+        Map<String, Integer> first = route(hash, 1000);
+        assertEquals(route(hash, 1000), first, "Keys must stick to their backend");
+
+        ConsistentHash<String, Integer> other = new ConsistentHash<>(
+                ImmutableList.copyOf(backends(10)), names(backends(10)), Function.identity());
+        assertEquals(route(other, 1000), first, "Clients with the same backends must agree");
+    }
+
+    @Test
+    public void testKeysSpreadEvenly() throws ExecutionException, InterruptedException {
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends(10)), names(backends(10)), Function.identity());
+
+        int[] counts = new int[10];
+        for (int backend : route(hash, 10000).values()) {
+            counts[backend]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 700 && count < 1300, "Uneven spread: " + count);
+        }
+    }
+
+    @Test
+    public void testUnhealthyBackendMovesOnlyItsKeys() throws ExecutionException, InterruptedException {
+        List<IndexedBackend> backends = backends(10);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity());
+
+        Map<String, Integer> before = route(hash, 1000);
+        backends.get(3).healthy.set(false);
+        Map<String, Integer> after = route(hash, 1000);
+
+        for (Map.Entry<String, Integer> entry : before.entrySet()) {
+            if (entry.getValue() == 3) {
+                assertNotEquals(after.get(entry.getKey()), Integer.valueOf(3));
+            } else {
+                assertEquals(after.get(entry.getKey()), entry.getValue(), "Key must not move");
+            }
+        }
+    }
+
+    @Test
+    public void testHotKeySpillsOver() throws ExecutionException, InterruptedException {
+        List<IndexedBackend> backends = backends(4);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity(), 100, 0.25);
+        for (IndexedBackend backend : backends) {
+            backend.hold = true;
+        }
+
+        for (int i = 0; i < 100; i++) {
+            hash.apply("hot");
+        }
+        for (IndexedBackend backend : backends) {
+            assertTrue(backend.held.size() <= Math.ceil(1.25 * 100 / 4),
+                    "Backend over bound: " + backend.held.size());
+        }
+
+        for (IndexedBackend backend : backends) {
+            backend.hold = false;
+            backend.held.forEach(future -> future.set(backend.index));
+        }
+        ConsistentHash<String, Integer> idle = new ConsistentHash<>(
+                ImmutableList.copyOf(backends(4)), names(backends(4)), Function.identity(), 100, 0.25);
+        assertEquals(hash.apply("hot").get(), idle.apply("hot").get(), "Affinity must return once load drops");
+    }
+
+    @Test
+    public void testRemovedBackendMovesOnlyItsKeys() throws ExecutionException, InterruptedException {
+        List<IndexedBackend> backends = backends(10);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity());
+        Map<String, Integer> before = route(hash, 1000);
+
+        List<IndexedBackend> remaining = new ArrayList<>(backends);
+        remaining.remove(3);
+        ConsistentHash<String, Integer> after = new ConsistentHash<>(
+                ImmutableList.copyOf(remaining), names(remaining), Function.identity());
+        Map<String, Integer> placement = route(after, 1000);
+        for (Map.Entry<String, Integer> entry : before.entrySet()) {
+            if (entry.getValue() != 3) {
+                assertEquals(placement.get(entry.getKey()), entry.getValue(), "Key must not move");
+            }
+        }
+    }
+
+    @Test
+    public void testBoundDuringPartialOutage() {
+        List<IndexedBackend> backends = backends(4);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity(), 100, 0.25);
+        for (IndexedBackend backend : backends) {
+            backend.hold = true;
+        }
+        backends.get(0).healthy.set(false);
+        backends.get(1).healthy.set(false);
+
+        for (int i = 0; i < 100; i++) {
+            hash.apply("hot");
+        }
+        for (IndexedBackend backend : backends.subList(2, 4)) {
+            assertTrue(backend.held.size() <= Math.ceil(1.25 * 100 / 2),
+                    "Backend over bound: " + backend.held.size());
+        }
+    }
+
+    @Test
+    public void testNoHealthyBackends() throws InterruptedException {
+        List<IndexedBackend> backends = backends(3);
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity());
+        for (IndexedBackend backend : backends) {
+            backend.healthy.set(false);
+        }
+        assertFalse(hash.isHealthy());
+        try {
+            hash.apply("key").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testOnlyPassedBackendsAreChecked() throws ExecutionException, InterruptedException {
+        AtomicInteger polls = new AtomicInteger();
+        List<IndexedBackend> backends = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            backends.add(new IndexedBackend(i) {
+                @Override
+                public boolean isHealthy() {
+                    polls.incrementAndGet();
+                    return super.isHealthy();
+                }
+
+                @Override
+                public boolean announcesHealth() {
+                    return true;
+                }
+            });
+        }
+        ConsistentHash<String, Integer> hash = new ConsistentHash<>(
+                ImmutableList.copyOf(backends), names(backends), Function.identity());
+
+        polls.set(0);
+        route(hash, 100);
+        assertEquals(polls.get(), 100, "Only the backend a key lands on must be checked");
+    }
+}
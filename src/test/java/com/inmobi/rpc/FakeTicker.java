@@ -0,0 +1,33 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Ticker;
+
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ticker which only moves when told to, for tests of time based components.
+ */
+public class FakeTicker extends Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+        return nanos.get();
+    }
+
+    public FakeTicker advance(long time, TimeUnit unit) {
+        nanos.addAndGet(unit.toNanos(time));
+        return this;
+    }
+
+    /**
+     * The same time as a Clock, starting at the epoch.
+     */
+    public Clock asClock() {
+        return new TickerClock(this, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,203 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class HealthAggregateTest {
+
+    /**
+     * Backend which announces its health, and counts how often it is polled.
+     */
+    private static class Announcing implements RpcService<Object, Object> {
+
+        private final List<HealthListener> listeners = new CopyOnWriteArrayList<>();
+
+        private final AtomicInteger polls = new AtomicInteger();
+
+        private volatile boolean healthy = true;
+
+        void setHealthy(boolean healthy) {
+            this.healthy = healthy;
+            for (HealthListener listener : listeners) {
+                listener.healthChanged();
+            }
+        }
+
+        @Override
+        public ListenableFuture<Object> apply(Object req) {
+            return Futures.immediateFuture(req);
+        }
+
+        @Override
+        public boolean isHealthy() {
+            polls.incrementAndGet();
+            return healthy;
+        }
+
+        @Override
+        public boolean announcesHealth() {
+            return true;
+        }
+
+        @Override
+        public void addHealthListener(HealthListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeHealthListener(HealthListener listener) {
+            listeners.remove(listener);
+        }
+    }
+
+    @Test
+    public void testTreeIsNotWalked() {
+        Announcing backend1 = new Announcing();
+        Announcing backend2 = new Announcing();
+        Announcing backend3 = new Announcing();
+        LeastLoaded<Object, Object> primary = new LeastLoaded<>(ImmutableList.of(backend1, backend2));
+        RoundRobin<Object, Object> secondary = new RoundRobin<>(ImmutableList.of(backend3));
+        Preferred<Object, Object> root = new Preferred<>(ImmutableList.of(primary, secondary));
+        AtomicInteger changes = new AtomicInteger();
+        root.addHealthListener(changes::incrementAndGet);
+
+        assertTrue(root.announcesHealth());
+        int polls = backend1.polls.get() + backend2.polls.get() + backend3.polls.get();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(root.isHealthy());
+        }
+        assertEquals(backend1.polls.get() + backend2.polls.get() + backend3.polls.get(), polls,
+                "Announcing backends must not be polled for the health of the tree");
+
+        backend1.setHealthy(false);
+        backend2.setHealthy(false);
+        assertFalse(primary.isHealthy());
+        assertTrue(root.isHealthy());
+        assertEquals(changes.get(), 0, "Root stayed healthy");
+
+        backend3.setHealthy(false);
+        assertFalse(root.isHealthy());
+        assertEquals(changes.get(), 1);
+
+        backend2.setHealthy(true);
+        assertTrue(root.isHealthy());
+        assertEquals(changes.get(), 2);
+    }
+
+    @Test
+    public void testPolledBackendFallback() {
+        Announcing announcing = new Announcing();
+        AtomicBoolean health = new AtomicBoolean(false);
+        RpcService<Object, Object> polled = new FunctionalRpcService<>(Futures::immediateFuture, health::get);
+        announcing.setHealthy(false);
+
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(announcing, polled));
+        AtomicInteger changes = new AtomicInteger();
+        roundRobin.addHealthListener(changes::incrementAndGet);
+
+        assertFalse(roundRobin.announcesHealth(), "Must not announce while a backend is polled");
+        assertFalse(roundRobin.isHealthy());
+        health.set(true);
+        assertTrue(roundRobin.isHealthy(), "Polled backend must be read on every call");
+
+        roundRobin.removeBackend(polled);
+        assertTrue(roundRobin.announcesHealth());
+        assertFalse(roundRobin.isHealthy());
+        assertEquals(changes.get(), 1, "Listeners must learn that health is announced again");
+    }
+
+    @Test
+    public void testRemovedBackendIsUnsubscribed() {
+        Announcing backend1 = new Announcing();
+        Announcing backend2 = new Announcing();
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend1, backend2));
+        AtomicInteger changes = new AtomicInteger();
+        leastLoaded.addHealthListener(changes::incrementAndGet);
+
+        leastLoaded.replaceBackends(ImmutableList.of(backend2));
+        assertTrue(backend1.listeners.isEmpty());
+        backend1.setHealthy(false);
+        backend2.setHealthy(false);
+        assertFalse(leastLoaded.isHealthy());
+        assertEquals(changes.get(), 1);
+    }
+
+    @Test
+    public void testCloseUnsubscribes() {
+        Announcing backend = new Announcing();
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend));
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(backend));
+        Preferred<Object, Object> preferred = new Preferred<>(ImmutableList.of(backend));
+        Aperture<Object, Object> aperture = new Aperture<>(ImmutableList.of(backend), 0, 1);
+        assertEquals(backend.listeners.size(), 4);
+
+        leastLoaded.close();
+        roundRobin.close();
+        preferred.close();
+        aperture.close();
+        assertTrue(backend.listeners.isEmpty(), "Closed balancers must not stay reachable from the backend");
+        assertFalse(leastLoaded.isHealthy());
+    }
+
+    @Test
+    public void testDecoratorsForwardAnnouncements() {
+        Announcing backend = new Announcing();
+        Instrumented<Object, Object> instrumented = new Instrumented<>(backend);
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(instrumented));
+
+        assertTrue(leastLoaded.announcesHealth());
+        backend.setHealthy(false);
+        assertFalse(leastLoaded.isHealthy());
+    }
+
+    @Test(timeOut = 10000)
+    public void testBackendCallingBackWhileAdded() throws Exception {
+        Object lock = new Object();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        Announcing backend = new Announcing() {
+            @Override
+            public boolean isHealthy() {
+                synchronized (lock) {
+                    return super.isHealthy();
+                }
+            }
+
+            @Override
+            public void addHealthListener(HealthListener listener) {
+                super.addHealthListener(listener);
+                subscribed.countDown();
+            }
+        };
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(new Announcing()));
+        Thread announcer = new Thread(() -> {
+            synchronized (lock) {
+                held.countDown();
+                try {
+                    subscribed.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backend.setHealthy(false);
+            }
+        });
+        announcer.start();
+        held.await();
+
+        leastLoaded.replaceBackends(ImmutableList.of(backend));
+        announcer.join();
+        assertFalse(leastLoaded.isHealthy());
+    }
+}
@@ -0,0 +1,137 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class HealthCachedTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testHealthIsNotEvaluatedPerCall() throws ExecutionException, InterruptedException {
+        AtomicInteger checks = new AtomicInteger();
+        Object resp = new Object();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                req -> Futures.immediateFuture(resp), () -> checks.incrementAndGet() > 0);
+
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, scheduler, 1, TimeUnit.HOURS, false);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cached.isHealthy());
+        }
+        assertEquals(cached.apply(new Object()).get(), resp);
+        assertEquals(checks.get(), 1, "Only the initial check must have been made");
+        cached.close();
+    }
+
+    @Test
+    public void testManualRefresh() {
+        AtomicBoolean health = new AtomicBoolean(true);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                req -> SettableFuture.create(), health::get);
+
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, scheduler, 1, TimeUnit.HOURS, false);
+
+        health.set(false);
+        assertTrue(cached.isHealthy(), "Cached value must not change before a refresh");
+        cached.refresh();
+        assertFalse(cached.isHealthy());
+        cached.close();
+    }
+
+    @Test
+    public void testPeriodicRefresh() throws InterruptedException {
+        AtomicBoolean health = new AtomicBoolean(true);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                req -> SettableFuture.create(), health::get);
+
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, 10, TimeUnit.MILLISECONDS);
+
+        health.set(false);
+        while (cached.isHealthy()) {
+            Thread.sleep(1);
+        }
+        health.set(true);
+        while (!cached.isHealthy()) {
+            Thread.sleep(1);
+        }
+        cached.close();
+    }
+
+    @Test
+    public void testRefreshOnFailure() throws InterruptedException {
+        AtomicBoolean health = new AtomicBoolean(true);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                req -> Futures.immediateFailedFuture(new RpcException("Test")), health::get);
+
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, scheduler, 1, TimeUnit.HOURS, true);
+
+        health.set(false);
+        cached.apply(new Object());
+        while (cached.isHealthy()) {
+            Thread.sleep(1);
+        }
+        cached.close();
+    }
+
+    @Test
+    public void testThrowingHealthCheckIsUnhealthy() {
+        AtomicBoolean fail = new AtomicBoolean(false);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> SettableFuture.create(), () -> {
+            if (fail.get()) {
+                throw new IllegalStateException("Test");
+            }
+            return true;
+        });
+
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, scheduler, 1, TimeUnit.HOURS, false);
+        assertTrue(cached.isHealthy());
+
+        fail.set(true);
+        cached.refresh();
+        assertFalse(cached.isHealthy());
+        cached.close();
+    }
+
+    @Test
+    public void testRefreshAnnouncesChanges() {
+        AtomicBoolean health = new AtomicBoolean(true);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                req -> SettableFuture.create(), health::get);
+        HealthCached<Object, Object> cached = new HealthCached<>(backend, scheduler, 1, TimeUnit.HOURS, false);
+        AtomicInteger changes = new AtomicInteger();
+        cached.addHealthListener(changes::incrementAndGet);
+
+        assertTrue(cached.announcesHealth());
+        cached.refresh();
+        assertEquals(changes.get(), 0, "Unchanged health must not be announced");
+        health.set(false);
+        cached.refresh();
+        assertEquals(changes.get(), 1);
+        cached.close();
+    }
+}
@@ -0,0 +1,161 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+
+public class HealthIndexTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static ImmutableList<RpcService<Object, Object>> backends(AtomicBoolean[] health) {
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (AtomicBoolean healthy : health) {
+            builder.add(new FunctionalRpcService<>(Futures::immediateFuture, healthy::get));
+        }
+        return builder.build();
+    }
+
+    private static AtomicBoolean[] health(int size, boolean healthy) {
+        AtomicBoolean[] health = new AtomicBoolean[size];
+        for (int i = 0; i < size; i++) {
+            health[i] = new AtomicBoolean(healthy);
+        }
+        return health;
+    }
+
+    @Test
+    public void testNextHealthyAcrossWords() {
+        AtomicBoolean[] health = health(200, false);
+        health[3].set(true);
+        health[70].set(true);
+        health[199].set(true);
+        HealthIndex<Object, Object> index = new HealthIndex<>(backends(health), scheduler, 1, TimeUnit.HOURS);
+        HealthIndex.Members<Object, Object> members = index.members();
+
+        assertEquals(index.getHealthyCount(), 3);
+        assertEquals(members.nextHealthy(0), 3);
+        assertEquals(members.nextHealthy(3), 3);
+        assertEquals(members.nextHealthy(4), 70);
+        assertEquals(members.nextHealthy(71), 199);
+        assertEquals(members.nextHealthy(199), 199);
+
+        health[199].set(false);
+        index.refresh();
+        assertEquals(members.nextHealthy(71), 3, "Must wrap around to the start");
+        health[3].set(false);
+        index.refresh();
+        assertEquals(members.nextHealthy(5), 70, "Must wrap around within the first word");
+        health[70].set(false);
+        index.refresh();
+        assertEquals(members.nextHealthy(5), -1);
+        index.close();
+    }
+
+    @Test
+    public void testHealthIsNotEvaluatedPerCall() {
+        AtomicInteger checks = new AtomicInteger();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(
+                Futures::immediateFuture, () -> checks.incrementAndGet() > 0);
+        HealthIndex<Object, Object> index = new HealthIndex<>(
+                ImmutableList.of(backend, backend), scheduler, 1, TimeUnit.HOURS);
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(index, 1);
+
+        for (int i = 0; i < 100; i++) {
+            roundRobin.apply(new Object());
+        }
+        assertEquals(checks.get(), 2, "Only the initial checks must have been made");
+        index.close();
+    }
+
+    @Test
+    public void testPeriodicRefresh() throws InterruptedException {
+        AtomicBoolean[] health = health(2, true);
+        HealthIndex<Object, Object> index = new HealthIndex<>(backends(health), 10, TimeUnit.MILLISECONDS);
+
+        health[1].set(false);
+        while (index.getHealthyCount() != 1) {
+            Thread.sleep(1);
+        }
+        health[1].set(true);
+        while (index.getHealthyCount() != 2) {
+            Thread.sleep(1);
+        }
+        index.close();
+    }
+
+    @Test
+    public void testThrowingHealthCheckIsUnhealthy() {
+        RpcService<Object, Object> throwing = new FunctionalRpcService<>(Futures::immediateFuture, () -> {
+            throw new IllegalStateException("Test");
+        });
+        HealthIndex<Object, Object> index = new HealthIndex<>(
+                ImmutableList.of(throwing), scheduler, 1, TimeUnit.HOURS);
+        assertEquals(index.getHealthyCount(), 0);
+        index.close();
+    }
+
+    @Test
+    public void testMembershipIsCheckedBeforePublishing() {
+        AtomicBoolean[] health = health(3, true);
+        ImmutableList<RpcService<Object, Object>> backends = backends(health);
+        health[2].set(false);
+        HealthIndex<Object, Object> index = new HealthIndex<>(backends.subList(0, 1), scheduler, 1, TimeUnit.HOURS);
+
+        index.addBackend(backends.get(1));
+        assertEquals(index.getHealthyCount(), 2);
+        index.addBackend(backends.get(2));
+        assertEquals(index.getHealthyCount(), 2);
+        index.removeBackend(backends.get(0));
+        assertEquals(index.getBackends(), backends.subList(1, 3));
+        assertEquals(index.members().nextHealthy(1), 0);
+
+        index.replaceBackends(backends.subList(2, 3));
+        assertEquals(index.getHealthyCount(), 0);
+        index.close();
+    }
+
+    @Test
+    public void testMembershipChangesCheckOnlyNewBackends() {
+        AtomicInteger checks = new AtomicInteger();
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < 100; i++) {
+            boolean healthy = i % 2 == 0;
+            builder.add(new FunctionalRpcService<>(Futures::immediateFuture, () -> {
+                checks.incrementAndGet();
+                return healthy;
+            }));
+        }
+        ImmutableList<RpcService<Object, Object>> backends = builder.build();
+        HealthIndex<Object, Object> index = new HealthIndex<>(backends.subList(0, 90), scheduler, 1, TimeUnit.HOURS);
+        assertEquals(checks.get(), 90);
+
+        index.addBackend(backends.get(90));
+        assertEquals(checks.get(), 91, "Only the added backend must be checked");
+        index.removeBackend(backends.get(0));
+        index.replaceBackends(backends.subList(50, 100));
+        assertEquals(checks.get(), 100, "Only the backends not indexed before must be checked");
+        assertEquals(index.getHealthyCount(), 25, "Health of surviving backends must be kept");
+        index.close();
+    }
+}
@@ -0,0 +1,252 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.inmobi.rpc.RpcTestUtils.PendingBackend;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class HedgedTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Waits for an attempt to be cancelled. A backup attempt sent while the result
+     * completes is cancelled by the hedging thread once its backend returns.
+     */
+    private static void awaitCancelled(ListenableFuture<Object> attempt) throws InterruptedException {
+        Semaphore done = new Semaphore(0);
+        attempt.addListener(done::release, MoreExecutors.directExecutor());
+        done.acquire();
+        assertTrue(attempt.isCancelled(), "Losing attempt must be cancelled");
+    }
+
+    @Test
+    public void testFastResponseIsNotHedged() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> {
+            calls.incrementAndGet();
+            return Futures.immediateFuture(resp);
+        }, () -> true);
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend, backend),
+                scheduler, 10, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(hedged.apply(new Object()).get(), resp);
+        }
+        assertEquals(calls.get(), 10, "No backup requests must be sent");
+    }
+
+    @Test
+    public void testSlowResponseIsHedgedToOtherBackend() throws ExecutionException, InterruptedException {
+        PendingBackend<Object, Object> slow = new PendingBackend<>();
+        Object resp = new Object();
+        RpcService<Object, Object> fast = immediateSuccess(resp);
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(slow, fast),
+                scheduler, 95, 100, 1.0, 10, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        // Occupy the fast backend's turn, so the first attempt goes to the slow one.
+        ListenableFuture<Object> future;
+        do {
+            future = hedged.apply(new Object());
+        } while (slow.calls() == 0);
+
+        assertEquals(future.get(), resp, "Backup response must win");
+
+        awaitCancelled(slow.futures.get(0));
+    }
+
+    @Test
+    public void testFirstResponseWins() throws ExecutionException, InterruptedException {
+        PendingBackend<Object, Object> backend1 = new PendingBackend<>();
+        PendingBackend<Object, Object> backend2 = new PendingBackend<>();
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend1, backend2),
+                scheduler, 95, 100, 1.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        ListenableFuture<Object> future = hedged.apply(new Object());
+        backend1.awaitCalls(1);
+        backend2.awaitCalls(1);
+        assertEquals(backend1.calls(), 1, "Each backend must see exactly one attempt");
+        assertEquals(backend2.calls(), 1, "Each backend must see exactly one attempt");
+
+        Object resp = new Object();
+        backend2.futures.get(0).set(resp);
+        assertEquals(future.get(), resp);
+        awaitCancelled(backend1.futures.get(0));
+    }
+
+    @Test
+    public void testFailureWaitsForBackup() throws ExecutionException, InterruptedException {
+        PendingBackend<Object, Object> backend1 = new PendingBackend<>();
+        PendingBackend<Object, Object> backend2 = new PendingBackend<>();
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend1, backend2),
+                scheduler, 95, 100, 1.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        ListenableFuture<Object> future = hedged.apply(new Object());
+        backend1.awaitCalls(1);
+        backend2.awaitCalls(1);
+        backend1.futures.get(0).setException(new RpcException("Test"));
+        assertFalse(future.isDone(), "Backup is still in flight");
+
+        backend2.futures.get(0).setException(new RpcException("Test"));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testClientCancelCancelsAllAttempts() throws InterruptedException {
+        PendingBackend<Object, Object> backend1 = new PendingBackend<>();
+        PendingBackend<Object, Object> backend2 = new PendingBackend<>();
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend1, backend2),
+                scheduler, 95, 100, 1.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        ListenableFuture<Object> future = hedged.apply(new Object());
+        backend1.awaitCalls(1);
+        backend2.awaitCalls(1);
+        future.cancel(true);
+        awaitCancelled(backend1.futures.get(0));
+        awaitCancelled(backend2.futures.get(0));
+    }
+
+    @Test
+    public void testBackupKeepsDeadline() throws InterruptedException {
+        List<Deadline> seen = new CopyOnWriteArrayList<>();
+        Semaphore sent = new Semaphore(0);
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> {
+            seen.add(Deadline.current());
+            sent.release();
+            return SettableFuture.create();
+        }, () -> true);
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend, backend),
+                scheduler, 95, 100, 1.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+        TimerWheel wheel = new TimerWheel(scheduler, 10, TimeUnit.MILLISECONDS, 64, new FakeTicker());
+        TimeLimited<Object, Object> limited = new TimeLimited<>(hedged, wheel, 1, TimeUnit.SECONDS);
+
+        limited.apply(new Object());
+        sent.acquire(2);
+        wheel.close();
+        assertNotNull(seen.get(0), "Primary must see the deadline");
+        assertSame(seen.get(1), seen.get(0), "Backup must see the deadline of the request");
+    }
+
+    @Test
+    public void testBudgetLimitsHedges() throws ExecutionException, InterruptedException {
+        PendingBackend<Object, Object> backend1 = new PendingBackend<>();
+        PendingBackend<Object, Object> backend2 = new PendingBackend<>();
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend1, backend2),
+                scheduler, 95, 100, 0.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        int requests = 30;
+        for (int i = 0; i < requests; i++) {
+            hedged.apply(new Object());
+        }
+        // The single scheduler thread runs tasks due at the same time in the order they
+        // were scheduled, so once this one has run every hedge timer has fired.
+        scheduler.schedule(() -> null, 1, TimeUnit.MILLISECONDS).get();
+        assertEquals(backend1.calls() + backend2.calls(), requests + 10,
+                "Only the initial burst of the budget may be hedged");
+    }
+
+    @Test
+    public void testSchedulerShutDown() throws ExecutionException, InterruptedException {
+        PendingBackend<Object, Object> backend1 = new PendingBackend<>();
+        PendingBackend<Object, Object> backend2 = new PendingBackend<>();
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend1, backend2),
+                scheduler, 95, 100, 1.0, 1, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+
+        scheduler.shutdown();
+        ListenableFuture<Object> future = hedged.apply(new Object());
+        assertEquals(backend1.calls() + backend2.calls(), 1, "No hedge can be scheduled");
+
+        Object resp = new Object();
+        (backend1.calls() == 1 ? backend1 : backend2).futures.get(0).set(resp);
+        assertEquals(future.get(), resp, "Primary alone must settle the result");
+    }
+
+    @Test
+    public void testHedgeDelayTracksPercentile() throws ExecutionException, InterruptedException {
+        AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        AtomicReference<SettableFuture<Object>> next = new AtomicReference<>();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> next.get(), () -> true);
+
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(backend),
+                scheduler, 90, 100, 0.0, 1, TimeUnit.MILLISECONDS, ticker);
+
+        assertEquals(hedged.getHedgeDelay(TimeUnit.MILLISECONDS), 1, "Minimum applies before samples");
+        for (int i = 1; i <= 100; i++) {
+            next.set(SettableFuture.create());
+            ListenableFuture<Object> future = hedged.apply(new Object());
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(i));
+            next.get().set(new Object());
+            future.get();
+        }
+        assertEquals(hedged.getHedgeDelay(TimeUnit.MILLISECONDS), 90);
+    }
+
+    @Test
+    public void testNoHealthyBackends() throws InterruptedException {
+        Hedged<Object, Object> hedged = new Hedged<>(ImmutableList.of(
+                new FunctionalRpcService<>(req -> SettableFuture.create(), () -> false)),
+                scheduler, 10, TimeUnit.MILLISECONDS);
+
+        assertFalse(hedged.isHealthy());
+        try {
+            hedged.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+}
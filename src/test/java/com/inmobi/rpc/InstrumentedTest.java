@@ -0,0 +1,85 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.inmobi.rpc.RpcTestUtils.custom;
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+
+public class InstrumentedTest {
+
+    @Test
+    public void testOutcomes() {
+        FakeTicker ticker = new FakeTicker();
+        SettableFuture<Object> slow = SettableFuture.create();
+        SettableFuture<Object> failing = SettableFuture.create();
+        SettableFuture<Object> cancelled = SettableFuture.create();
+        Instrumented<Object, Object> success = new Instrumented<>(custom(slow), ticker);
+
+        success.apply(new Object());
+        assertEquals(success.snapshot().getInFlight(), 1);
+        ticker.advance(20, TimeUnit.MILLISECONDS);
+        slow.set(new Object());
+
+        Instrumented.Snapshot snapshot = success.snapshot();
+        assertEquals(snapshot.getRequests(), 1);
+        assertEquals(snapshot.getInFlight(), 0);
+        assertEquals(snapshot.getSuccesses(), 1);
+        assertEquals(snapshot.getLatencies().getCount(), 1);
+        assertEquals(snapshot.getLatencies().getPercentile(50, TimeUnit.MILLISECONDS), 20, 20 * 0.125);
+
+        Instrumented<Object, Object> failure = new Instrumented<>(custom(failing), ticker);
+        failure.apply(new Object());
+        failing.setException(new RpcException("Test"));
+        assertEquals(failure.snapshot().getFailures(), 1);
+        assertEquals(failure.snapshot().getLatencies().getCount(), 0, "Only successes are timed");
+
+        Instrumented<Object, Object> cancel = new Instrumented<>(custom(cancelled), ticker);
+        cancel.apply(new Object()).cancel(true);
+        assertEquals(cancel.snapshot().getCancellations(), 1);
+        assertEquals(cancel.snapshot().getRejections(), 0);
+    }
+
+    @Test
+    public void testThrottlerRejections() {
+        Instrumented<Object, Object> throttled = new Instrumented<>(
+                new SemaphoreThrottler<>(custom(SettableFuture.create()), 2));
+        for (int i = 0; i < 5; i++) {
+            throttled.apply(new Object());
+        }
+        Instrumented.Snapshot snapshot = throttled.snapshot();
+        assertEquals(snapshot.getRequests(), 5);
+        assertEquals(snapshot.getInFlight(), 2);
+        assertEquals(snapshot.getRejections(), 3);
+        assertEquals(snapshot.getCancellations(), 0);
+    }
+
+    @Test
+    public void testThrowingBackend() {
+        Instrumented<Object, Object> throwing = new Instrumented<>(new FunctionalRpcService<>(req -> {
+            throw new IllegalStateException("Test");
+        }, () -> true));
+        throwing.apply(new Object());
+        assertEquals(throwing.snapshot().getFailures(), 1);
+        assertEquals(throwing.snapshot().getInFlight(), 0);
+    }
+
+    @Test
+    public void testPerBackendSelections() {
+        Instrumented<Object, Object> backend1 = new Instrumented<>(immediateSuccess(new Object()));
+        Instrumented<Object, Object> backend2 = new Instrumented<>(
+                new FunctionalRpcService<>(req -> Futures.immediateFuture(req), () -> false));
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(backend1, backend2));
+
+        for (int i = 0; i < 10; i++) {
+            roundRobin.apply(new Object());
+        }
+        assertEquals(backend1.snapshot().getRequests(), 10);
+        assertEquals(backend2.snapshot().getRequests(), 0, "Unhealthy backend must not be selected");
+    }
+}
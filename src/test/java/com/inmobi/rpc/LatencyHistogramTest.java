@@ -0,0 +1,71 @@
+package com.inmobi.rpc;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverValues() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            if (value > TimeUnit.MINUTES.toNanos(60)) {
+                continue;
+            }
+            int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index), "Value above its bucket: " + value);
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1), "Value below its bucket: " + value);
+            assertTrue(LatencyHistogram.upperBound(index) <= value * 1.125 + 1, "Bucket too wide for: " + value);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 1000);
+        assertEquals(snapshot.getPercentile(50, TimeUnit.MILLISECONDS), 500, 500 * 0.125);
+        assertEquals(snapshot.getPercentile(99, TimeUnit.MILLISECONDS), 990, 990 * 0.125);
+        assertEquals(snapshot.getPercentile(100, TimeUnit.MILLISECONDS), 1000, 1000 * 0.125);
+    }
+
+    @Test
+    public void testEmptyAndOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.snapshot().getPercentile(99, TimeUnit.NANOSECONDS), 0);
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 2);
+        assertEquals(snapshot.getPercentile(1, TimeUnit.NANOSECONDS), 0);
+        assertTrue(snapshot.getPercentile(100, TimeUnit.MINUTES) >= 60);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(histogram.snapshot().getCount(), threads * 100000);
+    }
+}
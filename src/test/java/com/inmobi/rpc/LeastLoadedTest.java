@@ -1,6 +1,5 @@
 package com.inmobi.rpc;
 
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -8,7 +7,6 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import org.testng.annotations.Test;
 
-import java.util.Arrays;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -199,48 +197,22 @@ public class LeastLoadedTest {
     }
 
     @Test
-    public void testLeastLoadedBehaviourForPoissonProcess() throws ExecutionException, InterruptedException {
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    public void testLeastLoadedBehaviourForPoissonProcess() {
+        Simulator simulator = new Simulator(1);
 
-        long delay1 = 10;
-        long delay2 = 20;
-        long delay3 = 30;
-
-        FakeBackend backend1 = new FakeBackend(scheduler, delay1);
-        FakeBackend backend2 = new FakeBackend(scheduler, delay2);
-        FakeBackend backend3 = new FakeBackend(scheduler, delay3);
+        SimulatedBackend backend1 = new SimulatedBackend(simulator, ServiceTime.constant(10));
+        SimulatedBackend backend2 = new SimulatedBackend(simulator, ServiceTime.constant(20));
+        SimulatedBackend backend3 = new SimulatedBackend(simulator, ServiceTime.constant(30));
 
         LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(
-                ImmutableList.<RpcService<Object, Object>>of(backend1, backend2, backend3)
-        );
+                ImmutableList.<RpcService<Object, Object>>of(backend1, backend2, backend3), 0);
 
         assertTrue(leastLoaded.isHealthy());
 
-        double duration = TimeUnit.SECONDS.toMillis(1);
-        double rate = (duration / delay1) + (duration / delay2) + (duration / delay3);
-        int numRequests = (int) Math.floor(rate);
-
-        long[] arrivalRates = new long[numRequests];
-        ThreadLocalRandom current = ThreadLocalRandom.current();
-
-        for (int i = 0; i < numRequests; i++) {
-            arrivalRates[i] = current.nextLong(TimeUnit.SECONDS.toNanos(1));
-        }
-
-        CountDownLatch countDownLatch = new CountDownLatch(numRequests);
-
-        Arrays.sort(arrivalRates);
+        double rate = 1000.0 / 10 + 1000.0 / 20 + 1000.0 / 30;
+        Simulator.Result result = simulator.drive(leastLoaded, ArrivalProcess.poisson(rate), 10 * (int) rate);
 
-        Stopwatch watch = Stopwatch.createStarted();
-        for (int i = 0; i < numRequests; i++) {
-            scheduler.schedule(() -> leastLoaded.apply(new Object())
-                    .addListener(countDownLatch::countDown, MoreExecutors.directExecutor()),
-                    arrivalRates[i], TimeUnit.NANOSECONDS);
-        }
-        countDownLatch.await();
-
-        double achievedRate = numRequests * 1e9 / watch.elapsed(TimeUnit.NANOSECONDS);
-        System.err.println("LeastLoadedRR: Throughput (Maximum = " + rate + ") (Actual = " + achievedRate + ")" );
+        System.err.println("LeastLoaded: Throughput (Maximum = " + rate + ") (" + result + ")");
         System.err.println("Backend (1: " + backend1.getNumRequests() + ")" +
                 " (2: " + backend2.getNumRequests() + ")" +
                 " (3: " + backend3.getNumRequests() + ")");
@@ -249,7 +221,6 @@ public class LeastLoadedTest {
                 "Backend 1 must process more requests than backend 2");
         assertTrue(backend2.getNumRequests() > backend3.getNumRequests(),
                 "Backend 2 must process more requests than backend 3");
-        scheduler.shutdown();
    }
 
     @Test(expectedExceptions = ExecutionException.class)
@@ -296,4 +267,131 @@ public class LeastLoadedTest {
             }
         }
     }
+
+    @Test
+    public void testAddBackendKeepsInFlightCounts() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending = SettableFuture.create();
+        AtomicInteger calls1 = new AtomicInteger();
+        RpcService<Object, Object> backend1 = new FunctionalRpcService<>(req -> {
+            calls1.incrementAndGet();
+            return pending;
+        }, () -> true);
+        Object resp = new Object();
+        RpcService<Object, Object> backend2 = immediateSuccess(resp);
+
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend1));
+        leastLoaded.apply(new Object());
+        leastLoaded.addBackend(backend2);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(leastLoaded.apply(new Object()).get(), resp, "Loaded backend must be avoided");
+        }
+        assertEquals(calls1.get(), 1);
+        assertEquals(leastLoaded.getBackends(), ImmutableList.of(backend1, backend2));
+    }
+
+    @Test
+    public void testRemoveBackendDrains() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending = SettableFuture.create();
+        RpcService<Object, Object> backend1 = custom(pending);
+        Object resp = new Object();
+        RpcService<Object, Object> backend2 = immediateSuccess(resp);
+
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend1, backend2), 0);
+        ListenableFuture<Object> inFlight = leastLoaded.apply(new Object());
+
+        assertEquals(leastLoaded.getOutboundRequests(backend1), 1);
+        assertEquals(leastLoaded.getOutboundRequests(backend2), 0);
+        ListenableFuture<Void> drained = leastLoaded.removeBackend(backend1);
+        assertFalse(drained.isDone(), "A request is still outstanding");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(leastLoaded.apply(new Object()).get(), resp);
+        }
+
+        pending.set(resp);
+        assertEquals(inFlight.get(), resp, "Outstanding request must complete normally");
+        assertTrue(drained.isDone());
+    }
+
+    @Test
+    public void testRemoveLastBackend() throws InterruptedException {
+        RpcService<Object, Object> backend = immediateSuccess(new Object());
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend));
+
+        assertTrue(leastLoaded.removeBackend(backend).isDone(), "Idle backend is drained right away");
+        assertFalse(leastLoaded.isHealthy());
+        try {
+            leastLoaded.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRemoveUnknownBackend() {
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(
+                ImmutableList.of(immediateSuccess(new Object())));
+        leastLoaded.removeBackend(immediateSuccess(new Object()));
+    }
+
+    @Test
+    public void testReplaceBackends() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending1 = SettableFuture.create();
+        SettableFuture<Object> pending2 = SettableFuture.create();
+        RpcService<Object, Object> backend1 = custom(pending1);
+        RpcService<Object, Object> backend2 = custom(pending2);
+        Object resp = new Object();
+        RpcService<Object, Object> backend3 = immediateSuccess(resp);
+
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(backend1, backend2), 0);
+        leastLoaded.apply(new Object());
+        leastLoaded.apply(new Object());
+
+        ListenableFuture<Void> drained = leastLoaded.replaceBackends(ImmutableList.of(backend2, backend3));
+        assertEquals(leastLoaded.apply(new Object()).get(), resp, "Kept backend must keep its in-flight count");
+        assertFalse(drained.isDone());
+
+        pending2.set(resp);
+        assertFalse(drained.isDone(), "Kept backend is not drained");
+        pending1.set(resp);
+        assertTrue(drained.isDone());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testReplaceWithNoBackends() {
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(
+                ImmutableList.of(immediateSuccess(new Object())));
+        leastLoaded.replaceBackends(ImmutableList.of());
+    }
+
+    @Test
+    public void testConcurrentMembershipChanges() throws InterruptedException {
+        Object resp = new Object();
+        RpcService<Object, Object> stable = immediateSuccess(resp);
+        LeastLoaded<Object, Object> leastLoaded = new LeastLoaded<>(ImmutableList.of(stable));
+
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    try {
+                        leastLoaded.apply(new Object()).get();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int i = 0; i < 1000; i++) {
+            RpcService<Object, Object> added = immediateSuccess(resp);
+            leastLoaded.addBackend(added);
+            leastLoaded.removeBackend(added);
+        }
+        done.await();
+        assertEquals(failures.get(), 0);
+        assertEquals(leastLoaded.getBackends(), ImmutableList.of(stable));
+    }
 }
@@ -0,0 +1,158 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LocalityAwareTest {
+
+    /**
+     * Keeps every request outstanding until released.
+     */
+    private static class HeldBackend implements RpcService<Object, Object> {
+
+        final List<SettableFuture<Object>> held = new ArrayList<>();
+
+        boolean healthy = true;
+
+        @Override
+        public ListenableFuture<Object> apply(Object req) {
+            SettableFuture<Object> future = SettableFuture.create();
+            held.add(future);
+            return future;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        void release() {
+            held.forEach(future -> future.set(this));
+            held.clear();
+        }
+    }
+
+    private HeldBackend sameRack1;
+    private HeldBackend sameRack2;
+    private HeldBackend sameZone;
+    private HeldBackend otherZoneSmall;
+    private HeldBackend otherZoneLarge;
+
+    @BeforeMethod
+    public void setUp() {
+        sameRack1 = new HeldBackend();
+        sameRack2 = new HeldBackend();
+        sameZone = new HeldBackend();
+        otherZoneSmall = new HeldBackend();
+        otherZoneLarge = new HeldBackend();
+    }
+
+    private LocalityAware<Object, Object> balancer() {
+        return new LocalityAware<>(
+                ImmutableList.of(otherZoneSmall, sameRack1, otherZoneLarge, sameZone, sameRack2),
+                ImmutableList.of(
+                        ImmutableList.of("zone-b", "rack-1"),
+                        ImmutableList.of("zone-a", "rack-1"),
+                        ImmutableList.of("zone-b", "rack-2"),
+                        ImmutableList.of("zone-a", "rack-2"),
+                        ImmutableList.of("zone-a", "rack-1")),
+                ImmutableList.of(10, 10, 30, 20, 10),
+                ImmutableList.of("zone-a", "rack-1"),
+                0.8);
+    }
+
+    private static void send(RpcService<Object, Object> balancer, int count) {
+        for (int i = 0; i < count; i++) {
+            balancer.apply(new Object());
+        }
+    }
+
+    @Test
+    public void testLocalFirst() {
+        LocalityAware<Object, Object> balancer = balancer();
+        send(balancer, 15);
+
+        assertEquals(sameRack1.held.size() + sameRack2.held.size(), 15, "Below threshold stays in rack");
+        assertTrue(Math.abs(sameRack1.held.size() - sameRack2.held.size()) <= 1);
+        assertEquals(sameZone.held.size(), 0);
+        assertEquals(otherZoneSmall.held.size() + otherZoneLarge.held.size(), 0);
+    }
+
+    @Test
+    public void testSpillsOverToZoneThenRegion() {
+        LocalityAware<Object, Object> balancer = balancer();
+
+        // Rack capacity 20 spills at 16, rack and zone together (40) at 32.
+        send(balancer, 30);
+        assertTrue(sameZone.held.size() > 0, "Must spill over to the zone");
+        assertEquals(otherZoneSmall.held.size() + otherZoneLarge.held.size(), 0, "Zone is not full yet");
+
+        send(balancer, 50);
+        assertTrue(otherZoneSmall.held.size() + otherZoneLarge.held.size() > 0, "Must spill over to the region");
+    }
+
+    @Test
+    public void testSpilloverProportionalToCapacity() {
+        LocalityAware<Object, Object> balancer = balancer();
+        send(balancer, 800);
+
+        // Far beyond every threshold, load is shared in proportion to capacity.
+        assertEquals(sameRack1.held.size(), 100, 1);
+        assertEquals(sameRack2.held.size(), 100, 1);
+        assertEquals(sameZone.held.size(), 200, 1);
+        assertEquals(otherZoneSmall.held.size(), 100, 1);
+        assertEquals(otherZoneLarge.held.size(), 300, 1);
+    }
+
+    @Test
+    public void testReturnsLocalWhenLoadDrops() {
+        LocalityAware<Object, Object> balancer = balancer();
+        send(balancer, 100);
+        for (HeldBackend backend : ImmutableList.of(sameRack1, sameRack2, sameZone, otherZoneSmall, otherZoneLarge)) {
+            backend.release();
+        }
+
+        send(balancer, 10);
+        assertEquals(sameRack1.held.size() + sameRack2.held.size(), 10);
+    }
+
+    @Test
+    public void testUnhealthyLocalBackends() {
+        LocalityAware<Object, Object> balancer = balancer();
+        sameRack1.healthy = false;
+        send(balancer, 7);
+        assertEquals(sameRack1.held.size(), 0);
+        assertEquals(sameRack2.held.size(), 7, "Remaining local capacity is 10, threshold 8");
+
+        sameRack2.healthy = false;
+        send(balancer, 10);
+        assertEquals(sameZone.held.size(), 10, "Whole rack down, zone takes over");
+    }
+
+    @Test
+    public void testNoHealthyBackends() throws InterruptedException {
+        LocalityAware<Object, Object> balancer = balancer();
+        for (HeldBackend backend : ImmutableList.of(sameRack1, sameRack2, sameZone, otherZoneSmall, otherZoneLarge)) {
+            backend.healthy = false;
+        }
+        assertFalse(balancer.isHealthy());
+        try {
+            balancer.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+}
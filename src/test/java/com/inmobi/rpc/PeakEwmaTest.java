@@ -0,0 +1,125 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class PeakEwmaTest {
+
+    @Test
+    public void testOneBackendSuccessBlocking() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+
+        PeakEwma<Object, Object> balancer = new PeakEwma<>(ImmutableList.of(immediateSuccess(resp)));
+
+        assertTrue(balancer.isHealthy());
+        assertEquals(balancer.apply(new Object()).get(), resp, "Response must match what is sent by backend");
+    }
+
+    @Test
+    public void testNoHealthyBackends() throws InterruptedException {
+        PeakEwma<Object, Object> balancer = new PeakEwma<>(ImmutableList.of(
+                new FunctionalRpcService<>(req -> Futures.immediateFuture(new Object()), () -> false)));
+
+        assertFalse(balancer.isHealthy());
+        try {
+            balancer.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testPrefersLowLatencyBackends() {
+        Simulator simulator = new Simulator(11);
+
+        // Plenty of capacity everywhere, only the round trip time differs.
+        SimulatedBackend near = new SimulatedBackend(simulator, ServiceTime.constant(5), 100);
+        SimulatedBackend middle = new SimulatedBackend(simulator, ServiceTime.constant(20), 100);
+        SimulatedBackend far = new SimulatedBackend(simulator, ServiceTime.constant(50), 100);
+
+        PeakEwma<Object, Object> balancer = new PeakEwma<>(
+                ImmutableList.<RpcService<Object, Object>>of(near, middle, far),
+                10, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, simulator.ticker());
+
+        Simulator.Result result = simulator.drive(balancer, ArrivalProcess.poisson(300), 6000);
+
+        System.err.println("PeakEwma: (" + result + ") Backend (near: " + near.getNumRequests() + ")" +
+                " (middle: " + middle.getNumRequests() + ") (far: " + far.getNumRequests() + ")");
+        assertTrue(near.getNumRequests() > middle.getNumRequests(), "Near backend must get the most traffic");
+        assertTrue(middle.getNumRequests() > far.getNumRequests(), "Far backend must get the least traffic");
+        assertTrue(result.getLatencyMillis(50) < 20, "Median must come from the near backend");
+    }
+
+    @Test
+    public void testFastFailingBackendIsAvoided() {
+        Simulator simulator = new Simulator(13);
+
+        AtomicInteger failed = new AtomicInteger();
+        RpcService<Object, Object> failing = new FunctionalRpcService<>(req -> {
+            failed.incrementAndGet();
+            return Futures.immediateFailedFuture(new RpcException("Broken"));
+        }, () -> true);
+        SimulatedBackend good1 = new SimulatedBackend(simulator, ServiceTime.constant(10), 100);
+        SimulatedBackend good2 = new SimulatedBackend(simulator, ServiceTime.constant(10), 100);
+
+        PeakEwma<Object, Object> balancer = new PeakEwma<>(
+                ImmutableList.of(failing, good1, good2),
+                10, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, simulator.ticker());
+
+        Simulator.Result result = simulator.drive(balancer, ArrivalProcess.poisson(200), 4000);
+
+        System.err.println("PeakEwma with fast failing backend: (" + result + ")");
+        assertTrue(result.getFailures() < 4000 / 20, "Fast failing backend must be avoided");
+        assertEquals(result.getFailures(), failed.get());
+    }
+
+    @Test
+    public void testPenalisedBackendRecovers() {
+        FakeTicker ticker = new FakeTicker();
+        AtomicInteger recovering = new AtomicInteger();
+        RpcService<Object, Object> flaky = new FunctionalRpcService<>(req -> recovering.incrementAndGet() == 1
+                ? Futures.immediateFailedFuture(new RpcException("Once"))
+                : Futures.immediateFuture(req), () -> true);
+        AtomicReference<SettableFuture<Object>> pending = new AtomicReference<>();
+        RpcService<Object, Object> steady = new FunctionalRpcService<>(req -> {
+            SettableFuture<Object> future = SettableFuture.create();
+            pending.set(future);
+            return future;
+        }, () -> true);
+
+        PeakEwma<Object, Object> balancer = new PeakEwma<>(ImmutableList.of(flaky, steady),
+                1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, ticker);
+
+        long penalisedAt = -1;
+        for (int i = 0; i < 10000 && recovering.get() < 2; i++) {
+            balancer.apply(new Object());
+            SettableFuture<Object> future = pending.getAndSet(null);
+            if (future != null) {
+                // The steady backend answers in 10ms.
+                ticker.advance(10, TimeUnit.MILLISECONDS);
+                future.set(new Object());
+            }
+            if (penalisedAt < 0 && recovering.get() == 1) {
+                penalisedAt = ticker.read();
+            }
+        }
+        assertEquals(recovering.get(), 2, "Penalised backend must get traffic again");
+        long starved = ticker.read() - penalisedAt;
+        assertTrue(starved > TimeUnit.SECONDS.toNanos(1) && starved < TimeUnit.SECONDS.toNanos(10),
+                "Starved for " + starved + "ns");
+    }
+}
@@ -0,0 +1,106 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class PowerOfTwoChoicesTest {
+
+    @Test
+    public void testOneBackendSuccessBlocking() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+
+        PowerOfTwoChoices<Object, Object> balancer = new PowerOfTwoChoices<>(
+                ImmutableList.of(immediateSuccess(resp)));
+
+        assertTrue(balancer.isHealthy());
+        assertEquals(balancer.apply(new Object()).get(), resp, "Response must match what is sent by backend");
+    }
+
+    @Test
+    public void testFindsSingleHealthyAmongMany() throws ExecutionException, InterruptedException {
+        Object resp = new Object();
+        ImmutableList.Builder<RpcService<Object, Object>> builder = ImmutableList.builder();
+        for (int i = 0; i < 900; i++) {
+            builder.add(new FunctionalRpcService<>(req -> Futures.immediateCancelledFuture(), () -> false));
+        }
+        builder.add(immediateSuccess(resp));
+
+        PowerOfTwoChoices<Object, Object> balancer = new PowerOfTwoChoices<>(builder.build());
+
+        assertTrue(balancer.isHealthy());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(balancer.apply(new Object()).get(), resp, "Only healthy backend must be found");
+        }
+    }
+
+    @Test
+    public void testNoHealthyBackends() throws InterruptedException {
+        PowerOfTwoChoices<Object, Object> balancer = new PowerOfTwoChoices<>(ImmutableList.of(
+                new FunctionalRpcService<>(req -> Futures.immediateFuture(new Object()), () -> false)));
+
+        assertFalse(balancer.isHealthy());
+        try {
+            balancer.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+
+    @Test
+    public void testCompletedRequestsAreNotCounted() {
+        SettableFuture<Object> stuck = SettableFuture.create();
+        int[] calls = new int[2];
+        RpcService<Object, Object> slow = new FunctionalRpcService<>(req -> {
+            calls[0]++;
+            return stuck;
+        }, () -> true);
+        RpcService<Object, Object> fast = new FunctionalRpcService<>(req -> {
+            calls[1]++;
+            return Futures.immediateFuture(new Object());
+        }, () -> true);
+
+        PowerOfTwoChoices<Object, Object> balancer = new PowerOfTwoChoices<>(ImmutableList.of(slow, fast));
+
+        for (int i = 0; i < 100; i++) {
+            balancer.apply(new Object());
+        }
+        assertEquals(calls[0], 1, "Once busy, the slow backend must lose every comparison");
+    }
+
+    @Test
+    public void testCloseToLeastLoaded() {
+        double rate = 1000.0 / 10 + 1000.0 / 20 + 1000.0 / 30;
+
+        Simulator simulator = new Simulator(5);
+        ImmutableList<RpcService<Object, Object>> backends = ImmutableList.of(
+                new SimulatedBackend(simulator, ServiceTime.constant(10)),
+                new SimulatedBackend(simulator, ServiceTime.constant(20)),
+                new SimulatedBackend(simulator, ServiceTime.constant(30)));
+        Simulator.Result powerOfTwo = simulator.drive(new PowerOfTwoChoices<>(backends),
+                ArrivalProcess.poisson(rate), 10 * (int) rate);
+
+        Simulator leastLoadedSimulator = new Simulator(5);
+        ImmutableList<RpcService<Object, Object>> leastLoadedBackends = ImmutableList.of(
+                new SimulatedBackend(leastLoadedSimulator, ServiceTime.constant(10)),
+                new SimulatedBackend(leastLoadedSimulator, ServiceTime.constant(20)),
+                new SimulatedBackend(leastLoadedSimulator, ServiceTime.constant(30)));
+        Simulator.Result leastLoaded = leastLoadedSimulator.drive(new LeastLoaded<>(leastLoadedBackends, 0),
+                ArrivalProcess.poisson(rate), 10 * (int) rate);
+
+        System.err.println("PowerOfTwoChoices: (" + powerOfTwo + "), LeastLoaded: (" + leastLoaded + ")");
+        assertTrue(powerOfTwo.getQps() > 0.9 * leastLoaded.getQps(), "Must keep up nearly as well");
+        assertTrue(powerOfTwo.getLatencyMillis(99) < 1.25 * leastLoaded.getLatencyMillis(99),
+                "Tail latency must stay close to least loaded");
+    }
+}
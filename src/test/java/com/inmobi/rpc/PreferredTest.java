@@ -8,7 +8,11 @@ import org.testng.annotations.Test;
 
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -123,4 +127,27 @@ public class PreferredTest {
 
         assertTrue(!future.isCancelled(), "First server marked as unhealthy, it shouldn't be called");
     }
+
+    @Test
+    public void testIndexedPrefersFirstHealthy() throws ExecutionException, InterruptedException {
+        Object resp1 = new Object();
+        Object resp2 = new Object();
+        AtomicBoolean health1 = new AtomicBoolean(true);
+        RpcService<Object, Object> backend1 = new FunctionalRpcService<>(
+                req -> Futures.immediateFuture(resp1), health1::get);
+        RpcService<Object, Object> backend2 = RpcTestUtils.immediateSuccess(resp2);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        HealthIndex<Object, Object> index = new HealthIndex<>(
+                ImmutableList.of(backend1, backend2), scheduler, 1, TimeUnit.HOURS);
+
+        Preferred<Object, Object> preferred = new Preferred<>(index);
+        assertEquals(preferred.apply(new Object()).get(), resp1);
+
+        health1.set(false);
+        assertEquals(preferred.apply(new Object()).get(), resp1, "Health must be read from the index");
+        index.refresh();
+        assertEquals(preferred.apply(new Object()).get(), resp2);
+        index.close();
+        scheduler.shutdown();
+    }
 }
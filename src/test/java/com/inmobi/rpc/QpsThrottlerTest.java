@@ -0,0 +1,76 @@
+package com.inmobi.rpc;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.inmobi.rpc.RpcTestUtils.admitted;
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class QpsThrottlerTest {
+
+    @Test
+    public void testWindowResets() {
+        FakeTicker ticker = new FakeTicker();
+        QpsThrottler<Object, Object> throttler = new QpsThrottler<>(
+                immediateSuccess(new Object()), 10, 1, TimeUnit.SECONDS, ticker.asClock());
+
+        assertEquals(admitted(throttler, 20), 10);
+        assertFalse(throttler.isHealthy());
+
+        ticker.advance(999, TimeUnit.MILLISECONDS);
+        assertEquals(admitted(throttler, 20), 0, "Still in the same window");
+
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(throttler.isHealthy());
+        assertEquals(admitted(throttler, 20), 10, "New window must allow maxQueries again");
+    }
+
+    @Test
+    public void testWindowsLongerThanASecond() {
+        FakeTicker ticker = new FakeTicker();
+        QpsThrottler<Object, Object> throttler = new QpsThrottler<>(
+                immediateSuccess(new Object()), 10, 5, TimeUnit.SECONDS, ticker.asClock());
+
+        assertEquals(admitted(throttler, 20), 10);
+        ticker.advance(3, TimeUnit.SECONDS);
+        assertEquals(admitted(throttler, 20), 0, "Window spans whole seconds");
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertEquals(admitted(throttler, 20), 10);
+    }
+
+    @Test
+    public void testConcurrentWindowChanges() throws InterruptedException {
+        FakeTicker ticker = new FakeTicker();
+        QpsThrottler<Object, Object> throttler = new QpsThrottler<>(
+                immediateSuccess(new Object()), 5, 1, TimeUnit.SECONDS, ticker.asClock());
+        AtomicInteger windows = new AtomicInteger(1);
+        AtomicInteger admitted = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            boolean advancing = t == 0;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    if (advancing && i % 50 == 0) {
+                        ticker.advance(1, TimeUnit.SECONDS);
+                        windows.incrementAndGet();
+                    }
+                    admitted.addAndGet(admitted(throttler, 1));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(admitted.get() <= 5 * windows.get(),
+                "Admitted " + admitted.get() + " in " + windows.get() + " windows");
+    }
+}
@@ -0,0 +1,190 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RetryingTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Counts calls, and fails them with the given exception unless it is null.
+     */
+    private static class CountingBackend implements RpcService<Object, Object> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final Exception failure;
+
+        CountingBackend(Exception failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public ListenableFuture<Object> apply(Object req) {
+            calls.incrementAndGet();
+            return failure == null ? Futures.immediateFuture(this) : Futures.immediateFailedFuture(failure);
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+    }
+
+    private Retrying<Object, Object> retrying(List<? extends RpcService<Object, Object>> backends,
+                                              int maxAttempts,
+                                              double ratio) {
+        return new Retrying<>(ImmutableList.copyOf(backends), scheduler, maxAttempts, ratio,
+                0, 0, TimeUnit.MILLISECONDS, e -> e instanceof RpcException);
+    }
+
+    @Test
+    public void testRetriesOnDifferentBackend() throws ExecutionException, InterruptedException {
+        List<CountingBackend> backends = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            backends.add(new CountingBackend(new RpcException("Test")));
+        }
+        CountingBackend good = new CountingBackend(null);
+        backends.add(good);
+        Retrying<Object, Object> retrying = retrying(backends, 5, 0.1);
+
+        assertEquals(retrying.apply(new Object()).get(), good);
+        for (CountingBackend backend : backends) {
+            assertTrue(backend.calls.get() <= 1, "A backend must not be tried twice for a request");
+        }
+    }
+
+    @Test
+    public void testMaxAttempts() throws InterruptedException {
+        List<CountingBackend> backends = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            backends.add(new CountingBackend(new RpcException("Test")));
+        }
+        Retrying<Object, Object> retrying = retrying(backends, 3, 0.1);
+
+        assertFailed(retrying.apply(new Object()));
+        assertEquals(backends.stream().mapToInt(b -> b.calls.get()).sum(), 3);
+    }
+
+    @Test
+    public void testRetryBudget() throws InterruptedException {
+        CountingBackend bad1 = new CountingBackend(new RpcException("Test"));
+        CountingBackend bad2 = new CountingBackend(new RpcException("Test"));
+        Retrying<Object, Object> retrying = retrying(ImmutableList.of(bad1, bad2), 2, 0.1);
+
+        for (int i = 0; i < 100; i++) {
+            assertFailed(retrying.apply(new Object()));
+        }
+        assertEquals(bad1.calls.get() + bad2.calls.get(), 110, "Only the initial burst of retries without successes");
+    }
+
+    @Test
+    public void testBudgetRefilledBySuccesses() throws InterruptedException, ExecutionException {
+        CountingBackend bad = new CountingBackend(new RpcException("Test"));
+        CountingBackend good = new CountingBackend(null);
+        Retrying<Object, Object> retrying = retrying(ImmutableList.of(bad, good), 2, 1.0);
+
+        // Every request succeeds, on the first or second attempt, and its success pays for
+        // the retry if there was one.
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(retrying.apply(new Object()).get(), good);
+        }
+    }
+
+    @Test
+    public void testNonRetryableFailure() throws InterruptedException {
+        CountingBackend bad1 = new CountingBackend(new IllegalStateException("Test"));
+        CountingBackend bad2 = new CountingBackend(new IllegalStateException("Test"));
+        Retrying<Object, Object> retrying = retrying(ImmutableList.of(bad1, bad2), 2, 0.1);
+
+        assertFailed(retrying.apply(new Object()));
+        assertEquals(bad1.calls.get() + bad2.calls.get(), 1);
+    }
+
+    @Test
+    public void testBackoff() throws ExecutionException, InterruptedException, TimeoutException {
+        CountingBackend bad = new CountingBackend(new RpcException("Test"));
+        CountingBackend good = new CountingBackend(null);
+        Retrying<Object, Object> retrying = new Retrying<>(ImmutableList.of(bad, good), scheduler, 2);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(retrying.apply(new Object()).get(5, TimeUnit.SECONDS), good);
+        }
+    }
+
+    @Test
+    public void testCancellation() {
+        SettableFuture<Object> pending = SettableFuture.create();
+        Retrying<Object, Object> retrying = retrying(ImmutableList.of(RpcTestUtils.custom(pending)), 3, 0.1);
+
+        retrying.apply(new Object()).cancel(true);
+        assertTrue(pending.isCancelled());
+    }
+
+    @Test
+    public void testNoRetryPastDeadline() throws InterruptedException {
+        CountingBackend bad1 = new CountingBackend(new RpcException("Test"));
+        CountingBackend bad2 = new CountingBackend(new RpcException("Test"));
+        Retrying<Object, Object> retrying = new Retrying<>(ImmutableList.of(bad1, bad2), scheduler, 2,
+                0.1, 10, 10, TimeUnit.SECONDS, e -> true);
+
+        FakeTicker ticker = new FakeTicker();
+        Deadline deadline = Deadline.after(5, TimeUnit.SECONDS, ticker);
+        ticker.advance(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            assertFailed(Deadline.runWith(deadline, () -> retrying.apply(new Object())));
+        }
+        assertEquals(bad1.calls.get() + bad2.calls.get(), 10, "Retries must not be scheduled past the deadline");
+    }
+
+    @Test(timeOut = 5000)
+    public void testSchedulerShutDown() throws InterruptedException {
+        CountingBackend bad1 = new CountingBackend(new RpcException("Test"));
+        CountingBackend bad2 = new CountingBackend(new RpcException("Test"));
+        Retrying<Object, Object> retrying = new Retrying<>(ImmutableList.of(bad1, bad2), scheduler, 2,
+                0, 1, 1, TimeUnit.SECONDS, e -> true);
+
+        scheduler.shutdown();
+        for (int i = 0; i < 20; i++) {
+            assertFailed(retrying.apply(new Object()));
+        }
+        assertEquals(bad1.calls.get() + bad2.calls.get(), 20, "No retry can be scheduled");
+    }
+
+    private static void assertFailed(ListenableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ignored) {
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.inmobi.rpc;
 
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -8,14 +7,12 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import org.testng.annotations.Test;
 
-import java.util.Arrays;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -208,48 +205,22 @@ public class RoundRobinTest {
     }
 
     @Test
-    public void testRoundRobinBehaviourForPoissonProcess() throws ExecutionException, InterruptedException {
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    public void testRoundRobinBehaviourForPoissonProcess() {
+        Simulator simulator = new Simulator(1);
 
-        long delay1 = 10;
-        long delay2 = 20;
-        long delay3 = 30;
-
-        FakeBackend backend1 = new FakeBackend(scheduler, delay1);
-        FakeBackend backend2 = new FakeBackend(scheduler, delay2);
-        FakeBackend backend3 = new FakeBackend(scheduler, delay3);
+        SimulatedBackend backend1 = new SimulatedBackend(simulator, ServiceTime.constant(10));
+        SimulatedBackend backend2 = new SimulatedBackend(simulator, ServiceTime.constant(20));
+        SimulatedBackend backend3 = new SimulatedBackend(simulator, ServiceTime.constant(30));
 
         RoundRobin<Object, Object> RoundRobin = new RoundRobin<>(
-                ImmutableList.<RpcService<Object, Object>>of(backend1, backend2, backend3));
+                ImmutableList.<RpcService<Object, Object>>of(backend1, backend2, backend3), 0);
 
         assertTrue(RoundRobin.isHealthy());
 
-        double duration = TimeUnit.SECONDS.toMillis(1);
-        double rate = (duration / delay1) + (duration / delay2) + (duration / delay3);
-        int numRequests = (int) Math.floor(rate);
-
-        long[] arrivalRates = new long[numRequests];
-        ThreadLocalRandom current = ThreadLocalRandom.current();
-
-        for (int i = 0; i < numRequests; i++) {
-            arrivalRates[i] = current.nextLong(TimeUnit.SECONDS.toNanos(1));
-        }
-
-        CountDownLatch countDownLatch = new CountDownLatch(numRequests);
-
-        Arrays.sort(arrivalRates);
+        double rate = 1000.0 / 10 + 1000.0 / 20 + 1000.0 / 30;
+        Simulator.Result result = simulator.drive(RoundRobin, ArrivalProcess.poisson(rate), 10 * (int) rate);
 
-        Stopwatch watch = Stopwatch.createStarted();
-        for (int i = 0; i < numRequests; i++) {
-            scheduler.schedule(() -> RoundRobin.apply(new Object())
-                            .addListener(countDownLatch::countDown, MoreExecutors.directExecutor()),
-                    arrivalRates[i], TimeUnit.NANOSECONDS);
-        }
-        countDownLatch.await();
-
-        double achievedRate = numRequests * 1e9 / watch.elapsed(TimeUnit.NANOSECONDS);
-        System.err.println("RoundRobin: Throughput (Maximum = " + rate +")" +
-                " (Actual = " + achievedRate + ")" );
+        System.err.println("RoundRobin: Throughput (Maximum = " + rate + ") (" + result + ")");
         System.err.println("Backend (1: " + backend1.getNumRequests() + ")" +
                 " (2: " + backend2.getNumRequests() + ")" +
                 " (3: " + backend3.getNumRequests() + ")");
@@ -259,7 +230,6 @@ public class RoundRobinTest {
                 "Backend 2 and Backend 3 must process similar amount of requests");
         assertTrue(Math.abs(backend1.getNumRequests() - backend3.getNumRequests()) < 3,
                 "Backend 1 and Backend 3 must process similar amount of requests");
-        scheduler.shutdown();
     }
 
     @Test(expectedExceptions = ExecutionException.class)
@@ -307,4 +277,146 @@ public class RoundRobinTest {
         }
     }
 
+    @Test
+    public void testAddAndRemoveBackend() throws ExecutionException, InterruptedException {
+        Object resp1 = new Object();
+        Object resp2 = new Object();
+        RpcService<Object, Object> backend1 = immediateSuccess(resp1);
+        RpcService<Object, Object> backend2 = immediateSuccess(resp2);
+
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(backend1), 0);
+        roundRobin.addBackend(backend2);
+        assertEquals(roundRobin.getBackends(), ImmutableList.of(backend1, backend2));
+
+        assertEquals(roundRobin.apply(new Object()).get(), resp1);
+        assertEquals(roundRobin.apply(new Object()).get(), resp2);
+        assertEquals(roundRobin.apply(new Object()).get(), resp1);
+
+        roundRobin.removeBackend(backend1);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(roundRobin.apply(new Object()).get(), resp2);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRemoveUnknownBackend() {
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(immediateSuccess(new Object())));
+        roundRobin.removeBackend(immediateSuccess(new Object()));
+    }
+
+    @Test
+    public void testReplaceBackends() throws ExecutionException, InterruptedException {
+        Object resp1 = new Object();
+        Object resp2 = new Object();
+        RpcService<Object, Object> backend1 = immediateSuccess(resp1);
+        RpcService<Object, Object> backend2 = immediateSuccess(resp2);
+
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(backend1, backend1, backend1), 2);
+        roundRobin.replaceBackends(ImmutableList.of(backend2));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(roundRobin.apply(new Object()).get(), resp2);
+        }
+    }
+
+    @Test
+    public void testRemovalDoesNotWait() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending = SettableFuture.create();
+        RpcService<Object, Object> backend1 = custom(pending);
+        Object resp = new Object();
+        RpcService<Object, Object> backend2 = immediateSuccess(resp);
+
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(backend1, backend2), 0);
+        ListenableFuture<Object> inFlight = roundRobin.apply(new Object());
+        assertTrue(roundRobin.replaceBackends(ImmutableList.of(backend2)).isDone(), "Requests are not tracked");
+        assertEquals(roundRobin.apply(new Object()).get(), resp);
+
+        pending.set(resp);
+        assertEquals(inFlight.get(), resp, "Outstanding request must complete normally");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testReplaceWithNoBackends() {
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(ImmutableList.of(immediateSuccess(new Object())));
+        roundRobin.replaceBackends(ImmutableList.of());
+    }
+
+    @Test
+    public void testEvenAroundUnhealthyBackend() throws ExecutionException, InterruptedException {
+        Object resp1 = new Object();
+        Object resp3 = new Object();
+        RpcService<Object, Object> unhealthy = new FunctionalRpcService<>(
+                req -> Futures.immediateFuture(new Object()), () -> false);
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(
+                ImmutableList.of(immediateSuccess(resp1), unhealthy, immediateSuccess(resp3)), 0);
+
+        int first = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (roundRobin.apply(new Object()).get() == resp1) {
+                first++;
+            }
+        }
+        assertEquals(first, 500, "Backend after the unhealthy one must not get its share");
+    }
+
+    @Test
+    public void testIndexedSkipsUnhealthyStretches() {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        AtomicInteger[] counts = new AtomicInteger[300];
+        ImmutableList.Builder<RpcService<Object, Object>> backends = ImmutableList.builder();
+        for (int i = 0; i < counts.length; i++) {
+            AtomicInteger count = new AtomicInteger();
+            counts[i] = count;
+            // Only every hundredth backend is healthy.
+            boolean healthy = i % 100 == 0;
+            backends.add(new FunctionalRpcService<>(req -> {
+                count.incrementAndGet();
+                return Futures.immediateFuture(req);
+            }, () -> healthy));
+        }
+        HealthIndex<Object, Object> index = new HealthIndex<>(backends.build(), scheduler, 1, TimeUnit.HOURS);
+        RoundRobin<Object, Object> roundRobin = new RoundRobin<>(index, 1);
+
+        assertTrue(roundRobin.isHealthy());
+        for (int i = 0; i < 3000; i++) {
+            roundRobin.apply(new Object());
+        }
+        for (int i = 0; i < counts.length; i++) {
+            assertEquals(counts[i].get(), i % 100 == 0 ? 1000 : 0, "Uneven at " + i);
+        }
+        index.close();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testConcurrentFairness() throws InterruptedException {
+        for (int stripes : new int[]{1, 8}) {
+            int threads = 16;
+            AtomicInteger[] counts = new AtomicInteger[10];
+            ImmutableList.Builder<RpcService<Object, Object>> backends = ImmutableList.builder();
+            for (int i = 0; i < counts.length; i++) {
+                AtomicInteger count = new AtomicInteger();
+                counts[i] = count;
+                backends.add(new FunctionalRpcService<>(req -> {
+                    count.incrementAndGet();
+                    return Futures.immediateFuture(req);
+                }, () -> true));
+            }
+            RoundRobin<Object, Object> roundRobin = new RoundRobin<>(backends.build(), 0, stripes);
+
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                new Thread(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        roundRobin.apply(new Object());
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            // Every stripe gets a multiple of the backend count, so the rotation is exact.
+            for (AtomicInteger count : counts) {
+                assertEquals(count.get(), threads * 1000, "Uneven with " + stripes + " stripes");
+            }
+        }
+    }
 }
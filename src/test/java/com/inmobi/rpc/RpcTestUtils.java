@@ -2,9 +2,46 @@ package com.inmobi.rpc;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class RpcTestUtils {
 
+    /**
+     * Backend which returns a new pending future per call, and remembers them.
+     */
+    public static class PendingBackend<Req, Resp> implements RpcService<Req, Resp> {
+
+        public final List<SettableFuture<Resp>> futures = new ArrayList<>();
+
+        @Override
+        public synchronized ListenableFuture<Resp> apply(Req req) {
+            SettableFuture<Resp> future = SettableFuture.create();
+            futures.add(future);
+            notifyAll();
+            return future;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        public synchronized int calls() {
+            return futures.size();
+        }
+
+        public synchronized void awaitCalls(int count) throws InterruptedException {
+            while (futures.size() < count) {
+                wait();
+            }
+        }
+    }
+
     public static <Req, Resp> RpcService<Req, Resp> immediateSuccess(Resp value) {
         return new FunctionalRpcService<>(req -> Futures.immediateFuture(value), () -> true);
     }
@@ -16,4 +53,35 @@ public class RpcTestUtils {
     public static <Req, Resp> RpcService<Req, Resp> custom(ListenableFuture<Resp> future) {
         return new FunctionalRpcService<>(req -> future, () -> true);
     }
+
+    /**
+     * Responds with the request, and counts the calls.
+     */
+    public static <T> RpcService<T, T> counting(AtomicInteger calls) {
+        return counting(calls, Function.identity());
+    }
+
+    /**
+     * Counts the calls, then responds with response applied to the request.
+     */
+    public static <Req, Resp> RpcService<Req, Resp> counting(AtomicInteger calls,
+                                                             Function<? super Req, ? extends Resp> response) {
+        return new FunctionalRpcService<>(req -> {
+            calls.incrementAndGet();
+            return Futures.immediateFuture(response.apply(req));
+        }, () -> true);
+    }
+
+    /**
+     * @return how many of attempts requests to throttler were not rejected.
+     */
+    public static int admitted(RpcService<Object, Object> throttler, int attempts) {
+        int count = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (!throttler.apply(new Object()).isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
 }
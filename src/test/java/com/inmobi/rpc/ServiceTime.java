@@ -0,0 +1,31 @@
+package com.inmobi.rpc;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of the time a {@link SimulatedBackend} takes to process one request.
+ */
+public interface ServiceTime {
+
+    long nextNanos(Random random);
+
+    static ServiceTime constant(long millis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return random -> nanos;
+    }
+
+    static ServiceTime exponential(double meanMillis) {
+        double meanNanos = meanMillis * 1e6;
+        return random -> (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+    }
+
+    /**
+     * Mostly fast, but with the given probability a request takes slowMillis instead.
+     */
+    static ServiceTime bimodal(long fastMillis, long slowMillis, double slowProbability) {
+        long fast = TimeUnit.MILLISECONDS.toNanos(fastMillis);
+        long slow = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        return random -> random.nextDouble() < slowProbability ? slow : fast;
+    }
+}
@@ -0,0 +1,76 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Backend living in a {@link Simulator}. It processes at most concurrency requests at a
+ * time, the rest wait in a FIFO queue, the same way FakeBackend used to behave on wall
+ * clock time. Requests cancelled while still queued are dropped without being processed.
+ */
+public class SimulatedBackend implements RpcService<Object, Object> {
+
+    private final Simulator simulator;
+
+    private final ServiceTime serviceTime;
+
+    private final int concurrency;
+
+    private final Queue<SettableFuture<Object>> queue = new ArrayDeque<>();
+
+    private int busy = 0;
+
+    private int numRequests = 0;
+
+    private boolean healthy = true;
+
+    public SimulatedBackend(Simulator simulator, ServiceTime serviceTime) {
+        this(simulator, serviceTime, 1);
+    }
+
+    public SimulatedBackend(Simulator simulator, ServiceTime serviceTime, int concurrency) {
+        this.simulator = simulator;
+        this.serviceTime = serviceTime;
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    @Override
+    public ListenableFuture<Object> apply(Object o) {
+        numRequests++;
+        SettableFuture<Object> ret = SettableFuture.create();
+        queue.add(ret);
+        startNext();
+        return ret;
+    }
+
+    private void startNext() {
+        while (busy < concurrency && !queue.isEmpty()) {
+            SettableFuture<Object> next = queue.poll();
+            if (next.isDone()) {
+                continue;
+            }
+            busy++;
+            simulator.schedule(serviceTime.nextNanos(simulator.random()), () -> {
+                busy--;
+                next.set(new Object());
+                startNext();
+            });
+        }
+    }
+
+    public int getNumRequests() {
+        return numRequests;
+    }
+}
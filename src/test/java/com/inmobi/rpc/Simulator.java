@@ -0,0 +1,193 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete event simulator running on a virtual clock. Events are executed one after
+ * another in the order of their virtual time, so a simulation of several minutes of
+ * traffic finishes in milliseconds and is fully reproducible for a given seed.
+ *
+ * Everything runs on the calling thread, including the listeners of futures completed
+ * by {@link SimulatedBackend}, so balancers observe exactly the same ordering they would
+ * see with direct executors in production.
+ */
+public class Simulator {
+
+    private static class Event implements Comparable<Event> {
+
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int cmp = Long.compare(time, other.time);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+    private final Random random;
+
+    private long now = 0;
+
+    private long sequence = 0;
+
+    public Simulator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public Random random() {
+        return random;
+    }
+
+    public void schedule(long delayNanos, Runnable action) {
+        Preconditions.checkArgument(delayNanos >= 0, "Cannot schedule in the past");
+        events.add(new Event(now + delayNanos, sequence++, action));
+    }
+
+    /**
+     * Runs events until there are none left.
+     */
+    public void run() {
+        Event event;
+        while ((event = events.poll()) != null) {
+            now = event.time;
+            event.action.run();
+        }
+    }
+
+    /**
+     * Virtual time as a Ticker, for components measuring latency.
+     */
+    public Ticker ticker() {
+        return new Ticker() {
+            @Override
+            public long read() {
+                return now;
+            }
+        };
+    }
+
+    /**
+     * Virtual time as a Clock, starting at the epoch.
+     */
+    public Clock clock() {
+        return new TickerClock(ticker(), ZoneOffset.UTC);
+    }
+
+    /**
+     * Sends numRequests through the service, spaced by the arrival process, and runs the
+     * simulation until every response is back.
+     */
+    public Result drive(RpcService<Object, Object> service, ArrivalProcess arrivals, int numRequests) {
+        long[] latencies = new long[numRequests];
+        int[] failures = new int[1];
+        long[] lastCompletion = new long[1];
+
+        long arrival = 0;
+        for (int i = 0; i < numRequests; i++) {
+            arrival += arrivals.nextGapNanos(random);
+            final int id = i;
+            schedule(arrival - now, () -> {
+                long start = now;
+                ListenableFuture<Object> future = service.apply(new Object());
+                future.addListener(() -> {
+                    latencies[id] = now - start;
+                    lastCompletion[0] = now;
+                    if (!isSuccess(future)) {
+                        failures[0]++;
+                    }
+                }, MoreExecutors.directExecutor());
+            });
+        }
+        run();
+        return new Result(numRequests, failures[0], lastCompletion[0], latencies);
+    }
+
+    private static boolean isSuccess(ListenableFuture<?> future) {
+        if (future.isCancelled()) {
+            return false;
+        }
+        try {
+            future.get();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Outcome of {@link #drive}.
+     */
+    public static class Result {
+
+        private final int numRequests;
+
+        private final int failures;
+
+        private final long elapsedNanos;
+
+        private final long[] sortedLatencies;
+
+        Result(int numRequests, int failures, long elapsedNanos, long[] latencies) {
+            this.numRequests = numRequests;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(this.sortedLatencies);
+        }
+
+        public int getNumRequests() {
+            return numRequests;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Requests completed per second of virtual time, measured until the last response.
+         */
+        public double getQps() {
+            return numRequests * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return latency in milliseconds.
+         */
+        public double getLatencyMillis(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            index = Math.max(0, Math.min(sortedLatencies.length - 1, index));
+            return sortedLatencies[index] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("qps=%.1f p50=%.1fms p95=%.1fms p99=%.1fms p99.9=%.1fms failures=%d",
+                    getQps(), getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(99),
+                    getLatencyMillis(99.9), failures);
+        }
+    }
+}
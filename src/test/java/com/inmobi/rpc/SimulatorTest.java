@@ -0,0 +1,88 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Reproduces the strategy comparison table of the README on virtual time: three
+ * backends of 10ms, 20ms and 30ms, offered their combined capacity of 183 qps.
+ */
+public class SimulatorTest {
+
+    private static final double RATE = 1000.0 / 10 + 1000.0 / 20 + 1000.0 / 30;
+
+    private static final int NUM_REQUESTS = 10 * (int) RATE;
+
+    private static Simulator.Result simulate(
+            Function<ImmutableList<RpcService<Object, Object>>, RpcService<Object, Object>> strategy) {
+        Simulator simulator = new Simulator(7);
+        ImmutableList<RpcService<Object, Object>> backends = ImmutableList.of(
+                new SimulatedBackend(simulator, ServiceTime.constant(10)),
+                new SimulatedBackend(simulator, ServiceTime.constant(20)),
+                new SimulatedBackend(simulator, ServiceTime.constant(30)));
+        return simulator.drive(strategy.apply(backends), ArrivalProcess.poisson(RATE), NUM_REQUESTS);
+    }
+
+    @Test
+    public void testReadmeStrategyTable() {
+        Simulator.Result leastLoaded = simulate(backends -> new LeastLoaded<>(backends, 0));
+        Simulator.Result weightedRoundRobin = simulate(
+                backends -> new WeightedRoundRobin<>(backends, ImmutableList.of(6, 3, 2)));
+        Simulator.Result roundRobin = simulate(backends -> new RoundRobin<>(backends, 0));
+
+        System.err.println("Optimal              | " + RATE);
+        System.err.println("Least-Loaded         | " + leastLoaded);
+        System.err.println("Weighted-Round-Robin | " + weightedRoundRobin);
+        System.err.println("Round-Robin          | " + roundRobin);
+
+        assertTrue(leastLoaded.getQps() <= RATE * 1.05, "Cannot beat the optimal rate");
+        assertTrue(leastLoaded.getQps() > roundRobin.getQps(), "Least loaded must beat round robin");
+        assertTrue(weightedRoundRobin.getQps() > roundRobin.getQps(), "Weighted round robin must beat round robin");
+        assertTrue(leastLoaded.getLatencyMillis(99) < roundRobin.getLatencyMillis(99),
+                "Least loaded must have a better tail than round robin");
+    }
+
+    @Test
+    public void testDeterministicForSameSeed() {
+        Simulator.Result first = simulate(backends -> new LeastLoaded<>(backends, 0));
+        Simulator.Result second = simulate(backends -> new LeastLoaded<>(backends, 0));
+
+        assertEquals(first.getQps(), second.getQps());
+        assertEquals(first.getLatencyMillis(99.9), second.getLatencyMillis(99.9));
+    }
+
+    @Test
+    public void testUnloadedLatencyIsServiceTime() {
+        Simulator simulator = new Simulator(1);
+        SimulatedBackend backend = new SimulatedBackend(simulator, ServiceTime.constant(10));
+
+        Simulator.Result result = simulator.drive(backend, ArrivalProcess.constant(50), 100);
+
+        assertEquals(result.getFailures(), 0);
+        assertEquals(result.getLatencyMillis(50), 10.0);
+        assertEquals(result.getLatencyMillis(100), 10.0);
+        assertEquals(backend.getNumRequests(), 100);
+    }
+
+    @Test
+    public void testClockFollowsVirtualTime() {
+        Simulator simulator = new Simulator(1);
+        simulator.schedule(TimeUnit.SECONDS.toNanos(5), () -> { });
+        simulator.run();
+
+        Clock clock = simulator.clock();
+        assertEquals(clock.instant(), Instant.ofEpochSecond(5));
+        Clock zoned = clock.withZone(ZoneId.of("Asia/Kolkata"));
+        assertEquals(zoned.getZone(), ZoneId.of("Asia/Kolkata"));
+        assertEquals(zoned.instant(), clock.instant());
+    }
+}
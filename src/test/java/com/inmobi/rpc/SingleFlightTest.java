@@ -0,0 +1,138 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.inmobi.rpc.RpcTestUtils.PendingBackend;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testIdenticalRequestsShareOneCall() throws ExecutionException, InterruptedException {
+        PendingBackend<String, String> backend = new PendingBackend<>();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(backend, Function.identity());
+
+        List<ListenableFuture<String>> callers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            callers.add(singleFlight.apply("hot"));
+        }
+        singleFlight.apply("cold");
+        assertEquals(backend.calls(), 2, "One call per distinct key");
+
+        backend.futures.get(0).set("value");
+        for (ListenableFuture<String> caller : callers) {
+            assertEquals(caller.get(), "value");
+        }
+        assertEquals(singleFlight.getInFlight(), 1, "Completed key must be removed");
+
+        singleFlight.apply("hot");
+        assertEquals(backend.calls(), 3, "Nothing is cached after completion");
+    }
+
+    @Test
+    public void testOneCallerCancellingDoesNotAffectOthers() throws ExecutionException, InterruptedException {
+        PendingBackend<String, String> backend = new PendingBackend<>();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(backend, Function.identity());
+
+        ListenableFuture<String> first = singleFlight.apply("key");
+        ListenableFuture<String> second = singleFlight.apply("key");
+
+        first.cancel(true);
+        assertFalse(backend.futures.get(0).isCancelled(), "Backend call still has a caller");
+        assertFalse(second.isDone());
+
+        backend.futures.get(0).set("value");
+        assertEquals(second.get(), "value");
+    }
+
+    @Test
+    public void testLastCallerCancellingCancelsBackend() {
+        PendingBackend<String, String> backend = new PendingBackend<>();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(backend, Function.identity());
+
+        ListenableFuture<String> first = singleFlight.apply("key");
+        ListenableFuture<String> second = singleFlight.apply("key");
+        first.cancel(true);
+        second.cancel(true);
+
+        assertTrue(backend.futures.get(0).isCancelled(), "No callers left");
+        assertEquals(singleFlight.getInFlight(), 0);
+
+        ListenableFuture<String> third = singleFlight.apply("key");
+        assertEquals(backend.calls(), 2, "Abandoned flight must not be joined");
+        assertFalse(third.isDone());
+    }
+
+    @Test
+    public void testFailureIsSharedAndNotRetained() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<String, String> failing = new FunctionalRpcService<>(req -> {
+            calls.incrementAndGet();
+            return Futures.immediateFailedFuture(new RpcException("Test"));
+        }, () -> true);
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(failing, Function.identity());
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                singleFlight.apply("key").get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RpcException);
+            }
+        }
+        assertEquals(calls.get(), 3, "Completed failures must not be shared with later requests");
+    }
+
+    @Test
+    public void testKeyFunction() {
+        PendingBackend<String, String> backend = new PendingBackend<>();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(backend, s -> s.toLowerCase());
+
+        singleFlight.apply("Key");
+        singleFlight.apply("KEY");
+        singleFlight.apply("key");
+        assertEquals(backend.calls(), 1);
+    }
+
+    @Test
+    public void testConcurrentCallers() throws InterruptedException, ExecutionException {
+        PendingBackend<String, String> backend = new PendingBackend<>();
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(backend, Function.identity());
+
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        List<ListenableFuture<String>> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    ListenableFuture<String> caller = singleFlight.apply("key" + (i % 4));
+                    synchronized (callers) {
+                        callers.add(caller);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(backend.calls(), 4, "One backend call per key");
+        for (SettableFuture<String> future : backend.futures) {
+            future.set("value");
+        }
+        for (ListenableFuture<String> caller : callers) {
+            assertEquals(caller.get(), "value");
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.inmobi.rpc;
+
+import com.google.common.base.Ticker;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * Clock reading the time of a Ticker, taking a reading of zero as the epoch.
+ */
+public class TickerClock extends Clock {
+
+    private final Ticker ticker;
+
+    private final ZoneId zone;
+
+    public TickerClock(Ticker ticker, ZoneId zone) {
+        this.ticker = ticker;
+        this.zone = zone;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new TickerClock(ticker, zone);
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochSecond(0, ticker.read());
+    }
+}
@@ -0,0 +1,149 @@
+package com.inmobi.rpc;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.inmobi.rpc.RpcTestUtils.custom;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TimeLimitedTest {
+
+    private ScheduledExecutorService scheduler;
+
+    private FakeTicker ticker;
+
+    private TimerWheel wheel;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        ticker = new FakeTicker();
+        wheel = new TimerWheel(scheduler, 10, TimeUnit.MILLISECONDS, 64, ticker);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        wheel.close();
+        scheduler.shutdownNow();
+    }
+
+    private void elapse(long millis) {
+        ticker.advance(millis, TimeUnit.MILLISECONDS);
+        wheel.advance();
+    }
+
+    @Test
+    public void testHungBackendTimesOut() throws InterruptedException {
+        SettableFuture<Object> hung = SettableFuture.create();
+        TimeLimited<Object, Object> limited = new TimeLimited<>(custom(hung), wheel, 100, TimeUnit.MILLISECONDS);
+
+        ListenableFuture<Object> future = limited.apply(new Object());
+        elapse(90);
+        assertFalse(future.isDone());
+
+        elapse(20);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        assertTrue(hung.isCancelled(), "Backend future must be cancelled");
+    }
+
+    @Test
+    public void testTimeoutReleasesPermit() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> hung = SettableFuture.create();
+        AtomicInteger calls = new AtomicInteger();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> calls.incrementAndGet() == 1
+                ? hung
+                : Futures.immediateFuture(req), () -> true);
+        TimeLimited<Object, Object> limited = new TimeLimited<>(
+                new SemaphoreThrottler<>(backend, 1), wheel, 100, TimeUnit.MILLISECONDS);
+
+        limited.apply(new Object());
+        assertTrue(limited.apply(new Object()).isCancelled(), "Only permit is held by the hung request");
+
+        elapse(200);
+        Object req = new Object();
+        assertEquals(limited.apply(req).get(), req, "Permit must be released by the timeout");
+    }
+
+    @Test
+    public void testFastResponse() throws ExecutionException, InterruptedException {
+        SettableFuture<Object> pending = SettableFuture.create();
+        TimeLimited<Object, Object> limited = new TimeLimited<>(custom(pending), wheel, 100, TimeUnit.MILLISECONDS);
+
+        ListenableFuture<Object> future = limited.apply(new Object());
+        Object resp = new Object();
+        pending.set(resp);
+        elapse(200);
+        assertEquals(future.get(), resp);
+    }
+
+    @Test
+    public void testCallerCancellationPropagates() {
+        SettableFuture<Object> pending = SettableFuture.create();
+        TimeLimited<Object, Object> limited = new TimeLimited<>(custom(pending), wheel, 100, TimeUnit.MILLISECONDS);
+
+        limited.apply(new Object()).cancel(true);
+        assertTrue(pending.isCancelled());
+    }
+
+    @Test
+    public void testExpiredDeadlineIsNotSent() throws InterruptedException {
+        AtomicInteger sent = new AtomicInteger();
+        RpcService<Object, Object> counting = new FunctionalRpcService<>(req -> {
+            sent.incrementAndGet();
+            return Futures.immediateFuture(req);
+        }, () -> true);
+        TimeLimited<Object, Object> inner = new TimeLimited<>(counting, wheel, 1, TimeUnit.SECONDS);
+        RpcService<Object, Object> slowBalancer = new FunctionalRpcService<>(req -> {
+            // Time spent before reaching the backend, e.g. queueing.
+            ticker.advance(150, TimeUnit.MILLISECONDS);
+            return inner.apply(req);
+        }, () -> true);
+        TimeLimited<Object, Object> outer = new TimeLimited<>(slowBalancer, wheel, 100, TimeUnit.MILLISECONDS);
+
+        try {
+            outer.apply(new Object()).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        assertEquals(sent.get(), 0, "Request past its deadline must be dropped");
+    }
+
+    @Test
+    public void testDeadlinePropagation() {
+        AtomicLong remaining = new AtomicLong();
+        RpcService<Object, Object> backend = new FunctionalRpcService<>(req -> {
+            remaining.set(Deadline.current().remaining(TimeUnit.MILLISECONDS));
+            return SettableFuture.create();
+        }, () -> true);
+        TimeLimited<Object, Object> inner = new TimeLimited<>(backend, wheel, 1, TimeUnit.SECONDS);
+        TimeLimited<Object, Object> outer = new TimeLimited<>(inner, wheel, 100, TimeUnit.MILLISECONDS);
+
+        ListenableFuture<Object> future = outer.apply(new Object());
+        assertEquals(remaining.get(), 100, "Inner timeout must not extend the deadline");
+        assertNull(Deadline.current(), "Deadline must not leak out of the call");
+
+        elapse(110);
+        assertTrue(future.isDone());
+    }
+}
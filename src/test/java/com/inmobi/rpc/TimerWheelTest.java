@@ -0,0 +1,131 @@
+package com.inmobi.rpc;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private ScheduledExecutorService scheduler;
+
+    private FakeTicker ticker;
+
+    private TimerWheel wheel;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        ticker = new FakeTicker();
+        wheel = new TimerWheel(scheduler, 10, TimeUnit.MILLISECONDS, 8, ticker);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        wheel.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testFiresAfterDelay() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 25, TimeUnit.MILLISECONDS);
+
+        ticker.advance(25, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 0, "Must wait for the end of the tick");
+
+        ticker.advance(5, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 1);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel(), "Expired timeout can not be cancelled");
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 1, "Must fire once");
+    }
+
+    @Test
+    public void testCancel() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout before = wheel.schedule(fired::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        TimerWheel.Timeout after = wheel.schedule(fired::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(before.cancel(), "Cancelled before reaching the wheel");
+        wheel.advance();
+        assertTrue(after.cancel(), "Cancelled while on the wheel");
+        assertTrue(after.isCancelled());
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 0);
+    }
+
+    @Test
+    public void testTimeoutsLongerThanWheel() {
+        // 8 buckets of 10ms, so 1 second goes around the wheel many times.
+        AtomicInteger fired = new AtomicInteger();
+        wheel.schedule(fired::incrementAndGet, 1, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 99; i++) {
+            ticker.advance(10, TimeUnit.MILLISECONDS);
+            wheel.advance();
+        }
+        assertEquals(fired.get(), 0, "Must not fire early");
+        ticker.advance(20, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 1);
+    }
+
+    @Test
+    public void testManyTimeouts() {
+        AtomicInteger fired = new AtomicInteger();
+        List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            timeouts.add(wheel.schedule(fired::incrementAndGet, i % 500, TimeUnit.MILLISECONDS));
+        }
+        wheel.advance();
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            timeouts.get(i).cancel();
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 50000);
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopOthers() {
+        AtomicInteger fired = new AtomicInteger();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("Test");
+        }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(fired::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+
+        ticker.advance(20, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(fired.get(), 1);
+    }
+
+    @Test
+    public void testRealTime() throws InterruptedException {
+        try (TimerWheel realWheel = new TimerWheel(1, TimeUnit.MILLISECONDS)) {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            realWheel.schedule(fired::countDown, 20, TimeUnit.MILLISECONDS);
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20), "Must not fire early");
+        }
+    }
+}
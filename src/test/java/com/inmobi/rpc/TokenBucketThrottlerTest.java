@@ -0,0 +1,106 @@
+package com.inmobi.rpc;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.inmobi.rpc.RpcTestUtils.admitted;
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TokenBucketThrottlerTest {
+
+    @Test
+    public void testBurstThenRate() {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucketThrottler<Object, Object> throttler = new TokenBucketThrottler<>(
+                immediateSuccess(new Object()), 100, 1, TimeUnit.SECONDS, 10, ticker);
+
+        assertTrue(throttler.isHealthy());
+        assertEquals(admitted(throttler, 50), 10, "Full bucket allows the burst only");
+        assertFalse(throttler.isHealthy(), "Empty bucket must report unhealthy");
+
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(admitted(throttler, 50), 1, "One token per 10ms");
+
+        ticker.advance(55, TimeUnit.MILLISECONDS);
+        assertEquals(admitted(throttler, 50), 5, "Partial tokens are not granted");
+
+        ticker.advance(1, TimeUnit.HOURS);
+        assertEquals(admitted(throttler, 50), 10, "Bucket never holds more than the burst");
+    }
+
+    @Test
+    public void testNoDoubleRateAtBoundary() {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucketThrottler<Object, Object> throttler = new TokenBucketThrottler<>(
+                immediateSuccess(new Object()), 100, 1, TimeUnit.SECONDS, 100, ticker);
+
+        int total = 0;
+        for (int ms = 0; ms < 2000; ms++) {
+            total += admitted(throttler, 10);
+            ticker.advance(1, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(total <= 100 + 200, "At most the burst plus two seconds of refill, got " + total);
+    }
+
+    @Test
+    public void testSubSecondRefill() {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucketThrottler<Object, Object> throttler = new TokenBucketThrottler<>(
+                immediateSuccess(new Object()), 5, 100, TimeUnit.MICROSECONDS, 1, ticker);
+
+        assertEquals(admitted(throttler, 10), 1);
+        ticker.advance(20, TimeUnit.MICROSECONDS);
+        assertEquals(admitted(throttler, 10), 1);
+        ticker.advance(19, TimeUnit.MICROSECONDS);
+        assertEquals(admitted(throttler, 10), 0);
+    }
+
+    @Test(expectedExceptions = ExecutionException.class)
+    public void testBackendExceptionIsReturnedAsFailure() throws ExecutionException, InterruptedException {
+        TokenBucketThrottler<Object, Object> throttler = new TokenBucketThrottler<>(
+                new FunctionalRpcService<>(req -> {
+                    throw new IllegalStateException("Test");
+                }, () -> true), 1, 1, TimeUnit.SECONDS, 1);
+
+        throttler.apply(new Object()).get();
+        fail();
+    }
+
+    @Test
+    public void testConcurrentAcquireNeverExceedsBurst() throws InterruptedException {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucketThrottler<Object, Object> throttler = new TokenBucketThrottler<>(
+                immediateSuccess(new Object()), 1000, 1, TimeUnit.SECONDS, 500, ticker);
+
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                admitted.addAndGet(admitted(throttler, 1000));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(admitted.get(), 500, "Exactly the burst must be admitted");
+    }
+}
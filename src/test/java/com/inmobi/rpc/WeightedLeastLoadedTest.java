@@ -0,0 +1,118 @@
+package com.inmobi.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static com.inmobi.rpc.RpcTestUtils.custom;
+import static com.inmobi.rpc.RpcTestUtils.immediateSuccess;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WeightedLeastLoadedTest {
+
+    @Test
+    public void testOneBackendSuccessBlocking() throws ExecutionException, InterruptedException {
+        Object req = new Object();
+        Object resp = new Object();
+
+        RpcService<Object, Object> healthy = immediateSuccess(resp);
+
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.of(healthy), ImmutableList.of(1));
+
+        assertTrue(balancer.isHealthy());
+        assertEquals(balancer.apply(req).get(), resp, "Response must match what is sent by backend");
+    }
+
+    @Test
+    public void testIdleBiggerBackendPreferred() throws ExecutionException, InterruptedException {
+        Object small = new Object();
+        Object big = new Object();
+
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.of(immediateSuccess(small), immediateSuccess(big)),
+                ImmutableList.of(16, 64), 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(balancer.apply(new Object()).get(), big, "Idle big backend must be picked first");
+        }
+    }
+
+    @Test
+    public void testLoadSplitByWeight() {
+        SettableFuture<Object> smallFuture = SettableFuture.create();
+        SettableFuture<Object> bigFuture = SettableFuture.create();
+        int[] calls = new int[2];
+        RpcService<Object, Object> small = new FunctionalRpcService<>(req -> {
+            calls[0]++;
+            return smallFuture;
+        }, () -> true);
+        RpcService<Object, Object> big = new FunctionalRpcService<>(req -> {
+            calls[1]++;
+            return bigFuture;
+        }, () -> true);
+
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.of(small, big), ImmutableList.of(1, 4), 0);
+
+        for (int i = 0; i < 50; i++) {
+            balancer.apply(new Object());
+        }
+        assertEquals(calls[0], 10, "Small backend must hold a fifth of outstanding requests");
+        assertEquals(calls[1], 40, "Big backend must hold four fifths of outstanding requests");
+    }
+
+    @Test
+    public void testRuntimeWeightUpdate() throws ExecutionException, InterruptedException {
+        Object resp1 = new Object();
+        Object resp2 = new Object();
+        RpcService<Object, Object> backend1 = immediateSuccess(resp1);
+        RpcService<Object, Object> backend2 = immediateSuccess(resp2);
+
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.of(backend1, backend2), ImmutableList.of(1, 1), 0);
+
+        balancer.setWeight(backend1, 0);
+        assertEquals(balancer.getWeight(backend1), 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(balancer.apply(new Object()).get(), resp2, "Zero weight backend must not be picked");
+        }
+
+        balancer.setWeight(backend2, 0);
+        assertFalse(balancer.isHealthy(), "All backends have zero weight");
+
+        balancer.setWeight(backend1, 2);
+        assertEquals(balancer.apply(new Object()).get(), resp1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownBackendWeight() {
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.of(custom(SettableFuture.create())), ImmutableList.of(1));
+        balancer.setWeight(immediateSuccess(new Object()), 3);
+    }
+
+    @Test
+    public void testHeterogeneousCapacity() {
+        Simulator simulator = new Simulator(3);
+
+        // Same per request latency, but the big box processes four requests in parallel.
+        SimulatedBackend small = new SimulatedBackend(simulator, ServiceTime.exponential(10), 1);
+        SimulatedBackend big = new SimulatedBackend(simulator, ServiceTime.exponential(10), 4);
+
+        WeightedLeastLoaded<Object, Object> balancer = new WeightedLeastLoaded<>(
+                ImmutableList.<RpcService<Object, Object>>of(small, big), ImmutableList.of(1, 4), 0);
+
+        Simulator.Result result = simulator.drive(balancer, ArrivalProcess.poisson(400), 8000);
+
+        System.err.println("WeightedLeastLoaded: (" + result + ")" +
+                " Backend (small: " + small.getNumRequests() + ") (big: " + big.getNumRequests() + ")");
+        assertTrue(big.getNumRequests() > 3 * small.getNumRequests(),
+                "Big backend must take most of the traffic");
+        assertTrue(result.getLatencyMillis(99) < 100, "Neither backend should be overloaded");
+    }
+}
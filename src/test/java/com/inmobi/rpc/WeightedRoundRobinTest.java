@@ -1,33 +1,28 @@
 package com.inmobi.rpc;
 
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.testng.annotations.Test;
 
-import java.util.Arrays;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.inmobi.rpc.RpcTestUtils.counting;
+import static com.inmobi.rpc.RpcTestUtils.custom;
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
 public class WeightedRoundRobinTest {
 
     @Test
-    public void testRoundRobinBehaviourForPoissonProcess() throws ExecutionException, InterruptedException {
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    public void testRoundRobinBehaviourForPoissonProcess() {
+        Simulator simulator = new Simulator(1);
 
-        long delay1 = 10;
-        long delay2 = 20;
-        long delay3 = 30;
-
-        FakeBackend backend1 = new FakeBackend(scheduler, delay1);
-        FakeBackend backend2 = new FakeBackend(scheduler, delay2);
-        FakeBackend backend3 = new FakeBackend(scheduler, delay3);
+        SimulatedBackend backend1 = new SimulatedBackend(simulator, ServiceTime.constant(10));
+        SimulatedBackend backend2 = new SimulatedBackend(simulator, ServiceTime.constant(20));
+        SimulatedBackend backend3 = new SimulatedBackend(simulator, ServiceTime.constant(30));
 
         WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
                 ImmutableList.<RpcService<Object, Object>>of(backend1, backend2, backend3),
@@ -35,32 +30,10 @@ public class WeightedRoundRobinTest {
 
         assertTrue(weightedRoundRobin.isHealthy());
 
-        double duration = TimeUnit.SECONDS.toMillis(1);
-        double rate = (duration / delay1) + (duration / delay2) + (duration / delay3);
-        int numRequests = (int) Math.floor(rate);
-
-        long[] arrivalRates = new long[numRequests];
-        ThreadLocalRandom current = ThreadLocalRandom.current();
-
-        for (int i = 0; i < numRequests; i++) {
-            arrivalRates[i] = current.nextLong(TimeUnit.SECONDS.toNanos(1));
-        }
-
-        CountDownLatch countDownLatch = new CountDownLatch(numRequests);
-
-        Arrays.sort(arrivalRates);
-
-        Stopwatch watch = Stopwatch.createStarted();
-        for (int i = 0; i < numRequests; i++) {
-            scheduler.schedule(() -> weightedRoundRobin.apply(new Object())
-                            .addListener(countDownLatch::countDown, MoreExecutors.directExecutor()),
-                    arrivalRates[i], TimeUnit.NANOSECONDS);
-        }
-        countDownLatch.await();
+        double rate = 1000.0 / 10 + 1000.0 / 20 + 1000.0 / 30;
+        Simulator.Result result = simulator.drive(weightedRoundRobin, ArrivalProcess.poisson(rate), 10 * (int) rate);
 
-        double achievedRate = numRequests * 1e9 / watch.elapsed(TimeUnit.NANOSECONDS);
-        System.err.println("WeightedRoundRobin: Throughput (Maximum = " + rate +")" +
-                " (Actual = " + achievedRate + ")" );
+        System.err.println("WeightedRoundRobin: Throughput (Maximum = " + rate + ") (" + result + ")");
         System.err.println("Backend (1: " + backend1.getNumRequests() + ")" +
                 " (2: " + backend2.getNumRequests() + ")" +
                 " (3: " + backend3.getNumRequests() + ")");
@@ -68,6 +41,163 @@ public class WeightedRoundRobinTest {
                 "Backend 1 must process more than Backend 2");
         assertTrue(backend2.getNumRequests() > backend3.getNumRequests(),
                 "Backend 2 must process more than Backend 3");
-        scheduler.shutdown();
     }
+
+    @Test
+    public void testAddedBackendGetsItsShare() {
+        AtomicInteger calls1 = new AtomicInteger();
+        AtomicInteger calls2 = new AtomicInteger();
+        RpcService<Object, Object> backend1 = counting(calls1);
+        RpcService<Object, Object> backend2 = counting(calls2);
+
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(backend1), ImmutableList.of(1));
+        for (int i = 0; i < 1000; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+
+        weightedRoundRobin.addBackend(backend2, 1);
+        for (int i = 0; i < 100; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls1.get(), 1050, "New backend must not receive all requests");
+        assertEquals(calls2.get(), 50);
+        assertEquals(weightedRoundRobin.getRequestsAttempted(backend1), 1050);
+        assertEquals(weightedRoundRobin.getRequestsAttempted(backend2), 50);
+    }
+
+    @Test
+    public void testRemoveAndReplaceBackends() {
+        AtomicInteger calls1 = new AtomicInteger();
+        AtomicInteger calls2 = new AtomicInteger();
+        AtomicInteger calls3 = new AtomicInteger();
+        RpcService<Object, Object> backend1 = counting(calls1);
+        RpcService<Object, Object> backend2 = counting(calls2);
+        RpcService<Object, Object> backend3 = counting(calls3);
+
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(backend1, backend2), ImmutableList.of(1, 1));
+        weightedRoundRobin.removeBackend(backend1);
+        for (int i = 0; i < 10; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls1.get(), 0);
+        assertEquals(calls2.get(), 10);
+
+        weightedRoundRobin.replaceBackends(ImmutableList.of(backend2, backend3), ImmutableList.of(1, 3));
+        for (int i = 0; i < 40; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls2.get(), 20);
+        assertEquals(calls3.get(), 30);
+    }
+
+    @Test
+    public void testRemovalDoesNotWait() {
+        SettableFuture<Object> pending = SettableFuture.create();
+        RpcService<Object, Object> backend1 = custom(pending);
+        RpcService<Object, Object> backend2 = counting(new AtomicInteger());
+
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(backend1, backend2), ImmutableList.of(1, 0));
+        ListenableFuture<Object> inFlight = weightedRoundRobin.apply(new Object());
+        assertTrue(weightedRoundRobin.removeBackend(backend1).isDone(), "Requests are not tracked");
+
+        pending.set(new Object());
+        assertTrue(inFlight.isDone(), "Outstanding request must complete normally");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testReplaceWithNoBackends() {
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(counting(new AtomicInteger())), ImmutableList.of(1));
+        weightedRoundRobin.replaceBackends(ImmutableList.of(), ImmutableList.of());
+    }
+
+    @Test
+    public void testInterleavedSchedule() {
+        assertEquals(WeightedRoundRobin.interleave(new int[] {5, 1, 1}), new int[] {0, 0, 0, 1, 2, 0, 0});
+        assertEquals(WeightedRoundRobin.interleave(new int[] {20, 0, 10}), new int[] {0, 2, 0});
+        assertEquals(WeightedRoundRobin.interleave(new int[] {0, 0}).length, 0);
+    }
+
+    @Test
+    public void testExactDistribution() {
+        AtomicInteger calls1 = new AtomicInteger();
+        AtomicInteger calls2 = new AtomicInteger();
+        AtomicInteger calls3 = new AtomicInteger();
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(counting(calls1), counting(calls2), counting(calls3)),
+                ImmutableList.of(7, 2, 0));
+        for (int i = 0; i < 900; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls1.get(), 700);
+        assertEquals(calls2.get(), 200);
+        assertEquals(calls3.get(), 0, "Weight zero must not be selected");
+    }
+
+    @Test
+    public void testLargeWeights() {
+        int[] slots = WeightedRoundRobin.interleave(new int[] {1_000_000, 3_000_000, 1});
+        assertTrue(slots.length <= 1 << 16);
+        int[] counts = new int[3];
+        for (int slot : slots) {
+            counts[slot]++;
+        }
+        assertEquals(counts[2], 1, "Non zero weight must keep a position");
+        assertEquals(counts[1] / (double) counts[0], 3.0, 0.001);
+    }
+
+    @Test
+    public void testUnhealthyShareIsSpread() {
+        AtomicInteger calls1 = new AtomicInteger();
+        AtomicInteger calls2 = new AtomicInteger();
+        AtomicInteger calls3 = new AtomicInteger();
+        AtomicBoolean healthy = new AtomicBoolean(true);
+        RpcService<Object, Object> backend2 = new FunctionalRpcService<>(req -> {
+            calls2.incrementAndGet();
+            return Futures.immediateFuture(req);
+        }, healthy::get);
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(counting(calls1), backend2, counting(calls3)),
+                ImmutableList.of(1, 2, 1));
+
+        healthy.set(false);
+        for (int i = 0; i < 400; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls2.get(), 0);
+        assertEquals(calls1.get(), 200);
+        assertEquals(calls3.get(), 200);
+    }
+
+    @Test
+    public void testSkipDoesNotWalkSchedule() {
+        AtomicInteger checks = new AtomicInteger();
+        RpcService<Object, Object> unhealthy = new FunctionalRpcService<>(req -> Futures.immediateFuture(req), () -> {
+            checks.incrementAndGet();
+            return false;
+        });
+        AtomicInteger calls2 = new AtomicInteger();
+        AtomicInteger calls3 = new AtomicInteger();
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(unhealthy, counting(calls2), counting(calls3)),
+                ImmutableList.of(60_000, 1, 1));
+
+        for (int i = 0; i < 100; i++) {
+            weightedRoundRobin.apply(new Object());
+        }
+        assertEquals(calls2.get(), 50);
+        assertEquals(calls3.get(), 50);
+        assertTrue(checks.get() <= 200, "Unhealthy backend checked at most twice per call, was " + checks.get());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRemoveUnknownBackend() {
+        WeightedRoundRobin<Object, Object> weightedRoundRobin = new WeightedRoundRobin<>(
+                ImmutableList.of(counting(new AtomicInteger())), ImmutableList.of(1));
+        weightedRoundRobin.removeBackend(counting(new AtomicInteger()));
+    }
+
 }